@@ -17,13 +17,15 @@
 package examples;
 
 import org.trypticon.xmpp.command.AbstractCommandHandler;
+import org.trypticon.xmpp.command.CommandSession;
+import org.trypticon.xmpp.command.FormField;
+import org.trypticon.xmpp.command.FormTemplate;
+import org.trypticon.xmpp.command.FormValues;
 
-import net.outer_planes.jso.JSO;
-import org.jabberstudio.jso.StreamDataFactory;
+import org.jabberstudio.jso.util.PacketException;
 import org.jabberstudio.jso.x.commands.CommandQuery;
 import org.jabberstudio.jso.x.commands.CommandNote;
 import org.jabberstudio.jso.x.disco.DiscoInfoQuery;
-import org.jabberstudio.jso.x.xdata.XDataField;
 import org.jabberstudio.jso.x.xdata.XDataForm;
 
 /**
@@ -31,6 +33,13 @@ import org.jabberstudio.jso.x.xdata.XDataForm;
  */
 public class CalculatorCommand extends AbstractCommandHandler
 {
+    /**
+     * The form to be displayed to the user.
+     */
+    private static final FormTemplate FORM = new FormTemplate(null, "Enter the two numbers to add.",
+            new FormField("param1", null, FormField.ValueType.DOUBLE),
+            new FormField("param2", null, FormField.ValueType.DOUBLE));
+
     /**
      * Construct the command handler.
      */
@@ -44,20 +53,24 @@ public class CalculatorCommand extends AbstractCommandHandler
      *
      * @param request  the request query.
      * @param response the response query.
+     * @param session  the session.
+     * @throws PacketException if the submitted form is not filled in properly.
      */
-    public void handleCommand(CommandQuery request, CommandQuery response)
+    public void handleCommand(CommandQuery request, CommandQuery response, CommandSession session)
+            throws PacketException
     {
         if (request.getPayload() == null)
         {
-            response.setPayload(buildForm());
+            response.setPayload(FORM.newForm());
 
             response.setStatus(CommandQuery.EXECUTING);
         }
         else
         {
             XDataForm form = (XDataForm) request.getPayload();
-            double param1 = Double.parseDouble(form.getFieldValue("param1"));
-            double param2 = Double.parseDouble(form.getFieldValue("param2"));
+            FormValues values = FORM.bind(form);
+            double param1 = values.getDouble("param1");
+            double param2 = values.getDouble("param2");
 
             double sum = param1 + param2;
 
@@ -73,23 +86,6 @@ public class CalculatorCommand extends AbstractCommandHandler
         }
     }
 
-    /**
-     * Builds the form to be displayed to the user.
-     *
-     * @return the form.
-     */
-    private XDataForm buildForm()
-    {
-        StreamDataFactory factory = JSO.getInstance().getDataFactory();
-        XDataForm form = (XDataForm) factory.createExtensionNode(XDataForm.NAME);
-        form.addInstruction("Enter the two numbers to add.");
-
-        form.addField("param1", XDataField.TEXT_SINGLE);
-        form.addField("param2", XDataField.TEXT_SINGLE);
-
-        return form;
-    }
-
     /**
      * Populates info into the provided query, to form the response.
      *
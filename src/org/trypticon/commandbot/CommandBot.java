@@ -21,11 +21,13 @@ import java.util.Collections;
 import java.util.List;
 
 import org.trypticon.xmpp.bot.BaseBot;
+import org.trypticon.xmpp.bot.EventLoopGroup;
 import org.trypticon.xmpp.command.CommandQueryHandler;
 import org.trypticon.xmpp.disco.DiscoQueryHandler;
 import org.trypticon.xmpp.disco.Discoverable;
 import org.trypticon.xmpp.logging.LoggingPacketListener;
 import org.trypticon.xmpp.logging.LoggingStreamStatusListener;
+import org.trypticon.xmpp.util.ConfigListener;
 import org.trypticon.xmpp.util.FeatureNotImplementedHandler;
 import org.trypticon.xmpp.util.FirstPacketListenerRelay;
 import org.trypticon.xmpp.version.VersionQueryHandler;
@@ -42,7 +44,7 @@ import org.jdom.Element;
  * A simple XMPP bot.
  */
 public class CommandBot extends BaseBot
-        implements Discoverable
+        implements Discoverable, ConfigListener
 {
     /**
      * The client name.
@@ -81,15 +83,41 @@ public class CommandBot extends BaseBot
      */
     public CommandBot(Element config)
     {
-        super(config);
+        this(config, null);
+    }
+
+    /**
+     * Constructs a bot which is processed on a shared event loop group instead of its own thread.
+     *
+     * @param config the configuration for the bot.
+     * @param eventLoopGroup the event loop group, or <code>null</code> to give the bot its own thread.
+     */
+    public CommandBot(Element config, EventLoopGroup eventLoopGroup)
+    {
+        super(config, eventLoopGroup);
 
         discoHandler = new DiscoQueryHandler(this);
 
         commandHandler = new CommandQueryHandler(discoHandler);
         commandHandler.configure(config.getChild("commands"));
+        commandHandler.setRouter(getOutboundQueue());
 
         conversationHandler = new ConversationHandler();
         conversationHandler.configure(config.getChild("conversation"));
+        conversationHandler.setRouter(getOutboundQueue());
+    }
+
+    /**
+     * Reconfigures the commands and conversation topics from a changed configuration, without dropping
+     * the connection or any conversations.  Changes to anything else take effect the next time the bot
+     * is started.
+     *
+     * @param config the new configuration for the bot.
+     */
+    public void configChanged(Element config)
+    {
+        commandHandler.configure(config.getChild("commands"));
+        conversationHandler.configureTopics(config.getChild("conversation"));
     }
 
     /**
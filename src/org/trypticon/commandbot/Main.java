@@ -16,7 +16,10 @@
 
 package org.trypticon.commandbot;
 
+import java.io.File;
+
 import org.trypticon.xmpp.bot.Bot;
+import org.trypticon.xmpp.util.ConfigWatcher;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -28,7 +31,7 @@ import org.jdom.Element;
 import org.jdom.input.SAXBuilder;
 
 /**
- * Main class.  Does nothing but create and launch a {@link Bot}.
+ * Main class.  Creates and launches a {@link Bot}, and watches its configuration for changes.
  */
 public class Main
 {
@@ -57,9 +60,22 @@ public class Main
         {
             MainOptions options = new MainOptions(args);
 
-            Element config = new SAXBuilder().build(options.getConfigPath()).getRootElement();
+            File configFile = new File(options.getConfigPath());
+            Element config = new SAXBuilder().build(configFile).getRootElement();
+
+            final CommandBot bot = new CommandBot(config);
 
-            final Bot bot = new CommandBot(config);
+            // Pick up changes to commands and topics while running, unless turned off.
+            long reloadInterval = 5000;
+            String reloadIntervalString = config.getChildTextTrim("reloadinterval");
+            if (reloadIntervalString != null)
+            {
+                reloadInterval = Long.parseLong(reloadIntervalString);
+            }
+            if (reloadInterval > 0)
+            {
+                new ConfigWatcher(configFile, bot).start(reloadInterval);
+            }
 
             Runtime.getRuntime().addShutdownHook(new Thread()
                     {
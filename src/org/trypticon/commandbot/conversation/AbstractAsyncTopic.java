@@ -0,0 +1,93 @@
+package org.trypticon.commandbot.conversation;
+
+import org.jabberstudio.jso.Message;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Base implementation of an {@link AsyncTopic}.
+ */
+public abstract class AbstractAsyncTopic extends AbstractTopic implements AsyncTopic
+{
+    /**
+     * Log.
+     */
+    private static final Log log = LogFactory.getLog(AbstractAsyncTopic.class);
+
+    /**
+     * Handles a message for this topic, waiting until it has been handled.  This is only for callers which
+     * can't handle a message asynchronously; the conversation handler never calls it.
+     *
+     * @param conversation the conversation which is taking place.
+     * @param message the message which came in.
+     * @return <code>true</code> if the conversation is still in progess, <code>false</code> otherwise.
+     */
+    public boolean handle(Conversation conversation, Message message)
+    {
+        WaitingCompletion completion = new WaitingCompletion();
+        handle(conversation, message, completion);
+        return completion.await();
+    }
+
+    /**
+     * A completion which can be waited on.
+     */
+    private static class WaitingCompletion implements TopicCompletion
+    {
+        /**
+         * Set once the message has been handled.
+         */
+        private boolean done;
+
+        /**
+         * Whether the conversation is still in progress.
+         */
+        private boolean ongoing = true;
+
+        public synchronized void complete(boolean ongoing)
+        {
+            if (!done)
+            {
+                this.ongoing = ongoing;
+                done = true;
+                notifyAll();
+            }
+        }
+
+        public synchronized void fail(Throwable cause)
+        {
+            if (!done)
+            {
+                log.error("Error handling message", cause);
+                done = true;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits until the message has been handled.
+         *
+         * @return <code>true</code> if the conversation is still in progess, <code>false</code> otherwise.
+         */
+        private synchronized boolean await()
+        {
+            boolean interrupted = false;
+            while (!done)
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+            return ongoing;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.trypticon.commandbot.conversation;
+
+import org.jabberstudio.jso.Message;
+
+/**
+ * A topic which can finish handling a message after returning, such as one which waits on a slow backend
+ * without holding up the thread which handed it the message.
+ * <p>
+ * The conversation handler still gives a conversation one message at a time, so the next message in the
+ * same conversation waits until the completion has been told about the last one.
+ */
+public interface AsyncTopic extends Topic
+{
+    /**
+     * Starts handling a message for this topic.
+     *
+     * @param conversation the conversation which is taking place.
+     * @param message the message which came in.
+     * @param completion to be told when the message has been handled, which may be before this returns.
+     */
+    public void handle(Conversation conversation, Message message, TopicCompletion completion);
+}
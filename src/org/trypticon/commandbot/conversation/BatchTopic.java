@@ -0,0 +1,23 @@
+package org.trypticon.commandbot.conversation;
+
+import java.util.List;
+
+import org.jabberstudio.jso.Message;
+
+/**
+ * A topic which can handle several messages at once, such as lines pasted as separate messages in quick
+ * succession.  When the conversation handler has a coalescing window, it gathers the messages which
+ * arrive within the window and gives them to this topic together, so that it can answer them with a
+ * single reply.
+ */
+public interface BatchTopic extends Topic
+{
+    /**
+     * Handles a batch of messages for this topic.
+     *
+     * @param conversation the conversation which is taking place.
+     * @param messages the messages which came in, oldest first.  There is always at least one.
+     * @return <code>true</code> if the conversation is still in progess, <code>false</code> otherwise.
+     */
+    public boolean handle(Conversation conversation, List<Message> messages);
+}
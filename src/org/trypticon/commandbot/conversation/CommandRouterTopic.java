@@ -0,0 +1,327 @@
+package org.trypticon.commandbot.conversation;
+
+import java.util.List;
+
+import org.jabberstudio.jso.Message;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jdom.Element;
+
+/**
+ * A topic which hands each message to one of several other topics, chosen by how the message starts.
+ * <p>
+ * Each route either matches a keyword, which must be the whole first word of the message, or a prefix,
+ * which may run straight into the rest of the message.  The routes are compiled into a trie, so choosing
+ * one takes a single pass over the start of the message however many routes there are.  If more than one
+ * route matches, the longest wins.  Messages which match nothing go to the fallback topic, if there is
+ * one, and are otherwise ignored.  Routes to an {@link AsyncTopic} are handled asynchronously when the
+ * conversation handler allows it.
+ * <p>
+ * The configuration looks like this:
+ * <pre>
+ * &lt;config&gt;
+ *     &lt;ignorecase&gt;true&lt;/ignorecase&gt;
+ *     &lt;route keyword="weather" classname="examples.WeatherTopic"&gt;
+ *         &lt;config/&gt;
+ *     &lt;/route&gt;
+ *     &lt;route prefix="!" classname="examples.BangTopic"/&gt;
+ *     &lt;fallback classname="examples.EchoTopic"/&gt;
+ * &lt;/config&gt;
+ * </pre>
+ */
+public class CommandRouterTopic extends AbstractTopic implements AsyncTopic
+{
+    /**
+     * Log.
+     */
+    private static final Log log = LogFactory.getLog(CommandRouterTopic.class);
+
+    /**
+     * The root of the trie.  Replaced as a whole when reconfigured.
+     */
+    private volatile Node root = new Node();
+
+    /**
+     * The topic for messages which match no route, or <code>null</code> to ignore them.
+     */
+    private volatile Topic fallback;
+
+    /**
+     * Whether routes match regardless of case.
+     */
+    private volatile boolean ignoreCase = true;
+
+    /**
+     * Configures the topic.
+     *
+     * @param config the XML configuration.
+     */
+    public void configure(Element config)
+    {
+        Node newRoot = new Node();
+        Topic newFallback = null;
+        boolean newIgnoreCase = true;
+
+        if (config != null)
+        {
+            String ignoreCaseString = config.getChildTextTrim("ignorecase");
+            if (ignoreCaseString != null)
+            {
+                newIgnoreCase = Boolean.valueOf(ignoreCaseString).booleanValue();
+            }
+
+            for (Element routeElement : (List<Element>) config.getChildren("route"))
+            {
+                String keyword = routeElement.getAttributeValue("keyword");
+                String prefix = routeElement.getAttributeValue("prefix");
+                if ((keyword == null) == (prefix == null) || "".equals(keyword) || "".equals(prefix))
+                {
+                    log.error("Route must have either a keyword or a prefix, which can't be empty");
+                    continue;
+                }
+
+                Topic topic = loadTopic(routeElement);
+                if (topic != null)
+                {
+                    String pattern = (keyword != null) ? keyword : prefix;
+                    Node node = newRoot.add(pattern, newIgnoreCase);
+                    if (keyword != null)
+                    {
+                        node.keywordTopic = topic;
+                    }
+                    else
+                    {
+                        node.prefixTopic = topic;
+                    }
+                }
+            }
+
+            Element fallbackElement = config.getChild("fallback");
+            if (fallbackElement != null)
+            {
+                newFallback = loadTopic(fallbackElement);
+            }
+        }
+
+        ignoreCase = newIgnoreCase;
+        fallback = newFallback;
+        root = newRoot;
+    }
+
+    /**
+     * Handles a message by passing it to the topic for the longest matching route.
+     *
+     * @param conversation the conversation which is taking place.
+     * @param message the message which came in.
+     * @return <code>true</code> if the conversation is still in progess, <code>false</code> otherwise.
+     */
+    public boolean handle(Conversation conversation, Message message)
+    {
+        Topic topic = route(message.getBody());
+        if (topic == null)
+        {
+            topic = fallback;
+        }
+        return (topic == null) || topic.handle(conversation, message);
+    }
+
+    /**
+     * Starts handling a message by passing it to the topic for the longest matching route.
+     *
+     * @param conversation the conversation which is taking place.
+     * @param message the message which came in.
+     * @param completion to be told once the message has been handled.
+     */
+    public void handle(Conversation conversation, Message message, TopicCompletion completion)
+    {
+        Topic topic = route(message.getBody());
+        if (topic == null)
+        {
+            topic = fallback;
+        }
+
+        if (topic == null)
+        {
+            completion.complete(true);
+        }
+        else if (topic instanceof AsyncTopic)
+        {
+            ((AsyncTopic) topic).handle(conversation, message, completion);
+        }
+        else
+        {
+            completion.complete(topic.handle(conversation, message));
+        }
+    }
+
+    /**
+     * Finds the topic for the longest route matching a message body.
+     *
+     * @param body the message body.
+     * @return the topic, or <code>null</code> if no route matches.
+     */
+    public Topic route(String body)
+    {
+        boolean foldCase = ignoreCase;
+        Topic match = null;
+
+        // Leading whitespace isn't part of the command.
+        int start = 0;
+        while (start < body.length() && Character.isWhitespace(body.charAt(start)))
+        {
+            start++;
+        }
+
+        Node node = root;
+        for (int i = start; node != null; i++)
+        {
+            boolean atEnd = (i == body.length());
+            char c = atEnd ? 0 : body.charAt(i);
+
+            if (node.prefixTopic != null)
+            {
+                match = node.prefixTopic;
+            }
+            if (node.keywordTopic != null && (atEnd || Character.isWhitespace(c)))
+            {
+                match = node.keywordTopic;
+            }
+
+            if (atEnd)
+            {
+                break;
+            }
+            node = node.child(foldCase ? Character.toLowerCase(c) : c);
+        }
+        return match;
+    }
+
+    /**
+     * Loads and configures the topic for a route.
+     *
+     * @param element the route's element.
+     * @return the topic, or <code>null</code> if it couldn't be loaded.
+     */
+    private Topic loadTopic(Element element)
+    {
+        String topicClassName = element.getAttributeValue("classname");
+        try
+        {
+            Topic topic = (Topic) Class.forName(topicClassName).newInstance();
+            topic.configure(element.getChild("config"));
+            return topic;
+        }
+        catch (Throwable t)
+        {
+            log.error("Error loading topic class " + topicClassName, t);
+            return null;
+        }
+    }
+
+    /**
+     * A node of the trie.  Children are kept in arrays sorted by character, which is far smaller than a
+     * map when there are thousands of nodes with only one or two children each.
+     */
+    private static class Node
+    {
+        /**
+         * The characters leading to the children, in order.
+         */
+        private char[] keys = new char[0];
+
+        /**
+         * The children, in the same order as their characters.
+         */
+        private Node[] children = new Node[0];
+
+        /**
+         * The topic for a keyword ending here, or <code>null</code> if there is none.
+         */
+        private Topic keywordTopic;
+
+        /**
+         * The topic for a prefix ending here, or <code>null</code> if there is none.
+         */
+        private Topic prefixTopic;
+
+        /**
+         * Gets a child.
+         *
+         * @param c the character leading to the child.
+         * @return the child, or <code>null</code> if there is none.
+         */
+        private Node child(char c)
+        {
+            int low = 0;
+            int high = keys.length - 1;
+            while (low <= high)
+            {
+                int middle = (low + high) >>> 1;
+                if (keys[middle] < c)
+                {
+                    low = middle + 1;
+                }
+                else if (keys[middle] > c)
+                {
+                    high = middle - 1;
+                }
+                else
+                {
+                    return children[middle];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Adds the nodes for a pattern below this one.
+         *
+         * @param pattern the pattern.
+         * @param foldCase whether to fold the pattern to lower case.
+         * @return the node where the pattern ends.
+         */
+        private Node add(String pattern, boolean foldCase)
+        {
+            Node node = this;
+            for (int i = 0; i < pattern.length(); i++)
+            {
+                char c = foldCase ? Character.toLowerCase(pattern.charAt(i)) : pattern.charAt(i);
+                Node next = node.child(c);
+                if (next == null)
+                {
+                    next = new Node();
+                    node.insert(c, next);
+                }
+                node = next;
+            }
+            return node;
+        }
+
+        /**
+         * Inserts a child, keeping the children in order.
+         *
+         * @param c the character leading to the child.
+         * @param child the child.
+         */
+        private void insert(char c, Node child)
+        {
+            int position = 0;
+            while (position < keys.length && keys[position] < c)
+            {
+                position++;
+            }
+
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, position);
+            System.arraycopy(children, 0, newChildren, 0, position);
+            newKeys[position] = c;
+            newChildren[position] = child;
+            System.arraycopy(keys, position, newKeys, position + 1, keys.length - position);
+            System.arraycopy(children, position, newChildren, position + 1, children.length - position);
+
+            keys = newKeys;
+            children = newChildren;
+        }
+    }
+}
@@ -1,9 +1,16 @@
 package org.trypticon.commandbot.conversation;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.trypticon.xmpp.util.OutboundQueue;
 
 import org.jabberstudio.jso.Message;
 import org.jabberstudio.jso.JID;
+import org.jabberstudio.jso.Packet;
 import org.jabberstudio.jso.StreamDataFactory;
 import org.jabberstudio.jso.StreamException;
 import org.jabberstudio.jso.PacketRouter;
@@ -24,7 +31,7 @@ public class Conversation
     /**
      * The router to route responses to.
      */
-    private PacketRouter router;
+    private volatile PacketRouter router;
 
     /**
      * The JID at the other end of the conversation.
@@ -37,14 +44,15 @@ public class Conversation
     private String thread;
 
     /**
-     * The map of topics available to the conversation.
+     * The map of topics available to the conversation, which may change as the topics are reconfigured.
      */
     private Map<String, Topic> topicMap;
 
     /**
-     * The current topic.
+     * The name of the current topic, or <code>null</code> for the default topic.  Read by the
+     * conversation handler when deciding whether to gather messages.
      */
-    private Topic currentTopic;
+    private volatile String currentTopicName;
 
     /**
      * Constructs the conversation.
@@ -66,6 +74,47 @@ public class Conversation
         resetTopic();
     }
 
+    /**
+     * Gets the router to route responses to.
+     *
+     * @return the router.
+     */
+    public PacketRouter getRouter()
+    {
+        return router;
+    }
+
+    /**
+     * Sets the router to route responses to.  Conversations outlive the stream they started on when the
+     * bot reconnects, so this is updated whenever a message arrives.
+     *
+     * @param router the router to route responses to.
+     */
+    public void setRouter(PacketRouter router)
+    {
+        this.router = router;
+    }
+
+    /**
+     * Gets the JID at the other end of the conversation.
+     *
+     * @return the JID.
+     */
+    public JID getOtherJID()
+    {
+        return otherJID;
+    }
+
+    /**
+     * Gets the thread ID for the conversation.
+     *
+     * @return the thread ID, which may be <code>null</code>.
+     */
+    public String getThread()
+    {
+        return thread;
+    }
+
     /**
      * Handles a message for this conversation.
      *
@@ -75,7 +124,82 @@ public class Conversation
      */
     public boolean handle(Message message)
     {
-        return currentTopic.handle(this, message);
+        return currentTopic().handle(this, message);
+    }
+
+    /**
+     * Starts handling a message for this conversation.  If the current topic is an {@link AsyncTopic}, it
+     * may finish after this returns; otherwise the completion is told before this returns.
+     *
+     * @param message the message.
+     * @param completion to be told when the message has been handled.
+     */
+    public void handle(Message message, TopicCompletion completion)
+    {
+        Topic topic = currentTopic();
+        if (topic instanceof AsyncTopic)
+        {
+            ((AsyncTopic) topic).handle(this, message, completion);
+        }
+        else
+        {
+            completion.complete(topic.handle(this, message));
+        }
+    }
+
+    /**
+     * Handles a batch of messages for this conversation.
+     *
+     * @param messages the messages, oldest first.
+     * @param completion to be told when the messages have been handled.
+     * @throws IllegalStateException if the current topic is not a {@link BatchTopic}.
+     */
+    public void handle(List<Message> messages, TopicCompletion completion)
+    {
+        Topic topic = currentTopic();
+        if (!(topic instanceof BatchTopic))
+        {
+            throw new IllegalStateException("Current topic cannot handle batches of messages");
+        }
+        completion.complete(((BatchTopic) topic).handle(this, messages));
+    }
+
+    /**
+     * Checks whether the current topic can handle batches of messages.
+     *
+     * @return <code>true</code> if the current topic is a {@link BatchTopic}.
+     */
+    public boolean acceptsBatches()
+    {
+        return currentTopic() instanceof BatchTopic;
+    }
+
+    /**
+     * Checks whether the current topic may finish handling a message after returning.
+     *
+     * @return <code>true</code> if the current topic is an {@link AsyncTopic}.
+     */
+    public boolean isAsync()
+    {
+        return currentTopic() instanceof AsyncTopic;
+    }
+
+    /**
+     * Gets the current topic.  The topic is looked up by name each time, so that the conversation moves
+     * to the new topic when the topics are reconfigured.
+     *
+     * @return the topic.
+     */
+    private Topic currentTopic()
+    {
+        Topic topic = topicMap.get(currentTopicName);
+        if (topic == null)
+        {
+            // The topic went away when the topics were reconfigured.
+            currentTopicName = null;
+            topic = topicMap.get(null);
+        }
+        return topic;
     }
 
     /**
@@ -86,14 +210,22 @@ public class Conversation
      */
     public void changeTopicByName(String name)
     {
-        Topic newTopic = topicMap.get(name);
-
-        if (newTopic == null)
+        if (topicMap.get(name) == null)
         {
             throw new IllegalArgumentException("Topic \"" + name + "\" does not exist");
         }
 
-        currentTopic = newTopic;
+        currentTopicName = name;
+    }
+
+    /**
+     * Gets the name of the current topic.
+     *
+     * @return the name, or <code>null</code> for the default topic.
+     */
+    public String getTopicName()
+    {
+        return currentTopicName;
     }
 
     /**
@@ -105,11 +237,14 @@ public class Conversation
     }
 
     /**
-     * Sends a reply to the user at the other end of the conversation.
+     * Sends a reply to the user at the other end of the conversation.  If the router is an
+     * {@link OutboundQueue}, this only queues the message, and never blocks.
      *
      * @param message the message to send.
+     * @return a future which completes once the message has been sent, or <code>null</code> if there was
+     *         nothing to send.
      */
-    public void sendMessage(String message)
+    public Future<Packet> sendMessage(String message)
     {
         if (Utilities.isValidString(message))
         {
@@ -120,18 +255,54 @@ public class Conversation
             packet.setThread(thread);
             packet.setBody(message);
 
+            if (router instanceof OutboundQueue)
+            {
+                return ((OutboundQueue) router).enqueue(packet);
+            }
+
+            FutureTask<Packet> send = new FutureTask<Packet>(new SendCallable(packet));
+            send.run();
+            return send;
+        }
+        else
+        {
+            log.debug("Empty message received at Conversation", new Exception());
+            return null;
+        }
+    }
+
+    /**
+     * Sends a message straight away through a router which isn't a queue.
+     */
+    private class SendCallable implements Callable<Packet>
+    {
+        /**
+         * The message.
+         */
+        private Message packet;
+
+        /**
+         * Constructs the callable.
+         *
+         * @param packet the message.
+         */
+        private SendCallable(Message packet)
+        {
+            this.packet = packet;
+        }
+
+        public Packet call() throws StreamException
+        {
             try
             {
                 router.send(packet);
+                return packet;
             }
             catch (StreamException e)
             {
-                log.error("Stream exception sending message \"" + message + "\" to " + otherJID);
+                log.error("Stream exception sending message \"" + packet.getBody() + "\" to " + otherJID);
+                throw e;
             }
         }
-        else
-        {
-            log.debug("Empty message received at Conversation", new Exception());
-        }
     }
 }
@@ -0,0 +1,18 @@
+package org.trypticon.commandbot.conversation;
+
+/**
+ * Notified when the {@link ConversationHandler} forgets a conversation which never ended by itself.
+ */
+public interface ConversationExpiryListener
+{
+    /**
+     * Called when a conversation has been forgotten, either because it was idle for too long or to make
+     * room for a new conversation.  Any further message from the same peer and thread starts a new
+     * conversation.
+     *
+     * @param conversation the conversation which expired.
+     * @param idle <code>true</code> if the conversation was idle for too long, <code>false</code> if it
+     *        was evicted to make room.
+     */
+    public void conversationExpired(Conversation conversation, boolean idle);
+}
@@ -1,8 +1,31 @@
 package org.trypticon.commandbot.conversation;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.trypticon.xmpp.util.LazyLoader;
 
 import org.jabberstudio.jso.JID;
 import org.jabberstudio.jso.Message;
@@ -13,9 +36,48 @@ import org.jabberstudio.jso.event.PacketEvent;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jdom.Element;
+import org.jdom.output.XMLOutputter;
 
 /**
  * A class which maps sender JIDs and thread IDs from messages to a {@link Conversation}.
+ * <p>
+ * Each conversation has a mailbox of messages waiting to be handled.  By default, mailboxes are emptied
+ * straight away on the thread which received the message.  If a pool of workers is configured, or an
+ * executor is set, mailboxes are emptied there instead, so that a slow topic only holds up its own
+ * conversation.  Messages in the same conversation are always handled one at a time, in the order they
+ * arrived, but different conversations may be handled at the same time, so topics must then be thread
+ * safe.  Without an executor, a conversation which becomes ready to carry on away from the receiving
+ * thread is carried on by a single dispatcher thread belonging to the handler, and topics are never
+ * called at the same time, so they need not be thread safe.
+ * <p>
+ * An {@link AsyncTopic} may finish handling a message after returning.  The conversation's next message
+ * waits until it does, or until the topic timeout passes, without holding up any thread meanwhile.  A
+ * conversation can only have so many messages waiting, beyond which further messages are rejected.
+ * <p>
+ * With a coalescing window, a message which arrives at an idle conversation whose topic is a
+ * {@link BatchTopic} waits for the window to pass, and the topic gets it together with any others which
+ * arrived meanwhile.  Messages which arrive while a batch is being handled make up the next batch.
+ * <p>
+ * Routing a message takes no lock other than that of its own mailbox.  Conversations are looked up in a
+ * concurrent map using a probe key which belongs to the receiving thread, so a message for an existing
+ * conversation allocates nothing on the way to its mailbox.
+ * <p>
+ * Conversations which never end by themselves are forgotten once they have been idle for the idle
+ * timeout, and the least recently used conversations are forgotten whenever there would otherwise be more
+ * than the maximum number.  A conversation with messages waiting or being handled is never forgotten.  An
+ * {@link ConversationExpiryListener} can be set to hear about conversations as they are forgotten.
+ * <p>
+ * If a {@link ConversationStore} is configured, the topic of each conversation is stored whenever it
+ * changes, and a conversation which starts with the same peer and thread as a stored one picks up its
+ * topic, so that conversations survive a restart.  Conversations which end are removed from the store,
+ * as are conversations which are forgotten, unless the handler is set to keep forgotten conversations in
+ * the store.  With that set, and a store such as {@link OffHeapConversationStore}, only active
+ * conversations take up space on the heap, while idle ones wait in the store to be picked up again.
+ * <p>
+ * A topic whose element has <code>lazy="true"</code> is only created the first time a conversation
+ * turns to it.  With <code>&lt;warmup&gt;true&lt;/warmup&gt;</code>, such topics are instead created one
+ * by one in the background once the topics have been configured.  The time taken to create each topic is
+ * logged.
  */
 public class ConversationHandler implements PacketListener
 {
@@ -25,122 +87,1663 @@ public class ConversationHandler implements PacketListener
     private static final Log log = LogFactory.getLog(ConversationHandler.class);
 
     /**
-     * The map of topics.
+     * The scheduler which sweeps away idle conversations, shared by all handlers.
+     */
+    private static final ScheduledExecutorService sweeper =
+            Executors.newSingleThreadScheduledExecutor(new SweeperThreadFactory());
+
+    /**
+     * How often to sweep away ended conversations when there is no idle timeout, in milliseconds.
+     */
+    private static final long DEFAULT_SWEEP_PERIOD = 60000;
+
+    /**
+     * The map of topics.  Never modified, only replaced as a whole when the topics are reconfigured.
+     */
+    private volatile Map<String, LazyLoader<Topic>> topicMap;
+
+    /**
+     * A view of whichever map of topics is current, which conversations look their topics up in.
+     */
+    private Map<String, Topic> topicView;
+
+    /**
+     * The configured topics, keyed by their class name and configuration, so that reconfiguring only
+     * creates topics which have changed.
+     */
+    private Map<String, LazyLoader<Topic>> topicsBySignature;
+
+    /**
+     * The map of conversations' mailboxes.
+     */
+    private ConcurrentMap<PeerThreadPair, Mailbox> conversationMap;
+
+    /**
+     * Every mailbox in the map, roughly least recently used first, along with mailboxes which have since
+     * been removed and not yet swept away.
+     */
+    private Queue<Mailbox> evictionQueue;
+
+    /**
+     * The number of conversations in the map.
+     */
+    private AtomicInteger conversationCount;
+
+    /**
+     * The probe key for looking up conversations, one per receiving thread.
+     */
+    private ThreadLocal<PeerThreadPair> probe;
+
+    /**
+     * The most conversations to remember at once, or <code>0</code> for no limit.
+     */
+    private volatile int maxConversations = 10000;
+
+    /**
+     * How long a conversation may be idle before it is forgotten, in milliseconds, or <code>0</code> to
+     * keep it until it has to make room.
+     */
+    private volatile long idleTimeout = 1800000;
+
+    /**
+     * How long an asynchronous topic may take to handle a message, in milliseconds, or <code>0</code> for
+     * no limit.
+     */
+    private volatile long topicTimeout = 60000;
+
+    /**
+     * The most messages which may wait in a conversation's mailbox, or <code>0</code> for no limit.
+     */
+    private volatile int maxPending = 1000;
+
+    /**
+     * How long to gather messages for a {@link BatchTopic}, in milliseconds, or <code>0</code> not to.
+     */
+    private volatile long coalesceWindow;
+
+    /**
+     * The sharder which forwards messages belonging to other bots, or <code>null</code> to handle all of
+     * them here.
+     */
+    private volatile ConversationSharder sharder;
+
+    /**
+     * The number of messages rejected because their conversation had too many waiting.
+     */
+    private AtomicLong rejectedCount;
+
+    /**
+     * The periodic sweep for idle conversations.  Guarded by this handler's lock.
+     */
+    private ScheduledFuture<?> sweep;
+
+    /**
+     * The listener to tell about forgotten conversations, or <code>null</code> if there is none.
+     */
+    private volatile ConversationExpiryListener expiryListener;
+
+    /**
+     * The number of conversations forgotten for being idle.
+     */
+    private AtomicLong expiredCount;
+
+    /**
+     * The number of conversations forgotten to make room.
+     */
+    private AtomicLong evictedCount;
+
+    /**
+     * The store for conversations' topics, or <code>null</code> if they aren't stored.
+     */
+    private volatile ConversationStore store;
+
+    /**
+     * Whether conversations which are forgotten stay in the store.
+     */
+    private volatile boolean keepForgotten;
+
+    /**
+     * Held around every call into a topic when there is no executor, so that a conversation carried on by
+     * the dispatcher never runs alongside one on the receiving thread.
+     */
+    private final Object serialLock = new Object();
+
+    /**
+     * The thread which carries on conversations away from the receiving thread when there is no executor,
+     * or <code>null</code> until it is first needed.
+     */
+    private ExecutorService dispatcher;
+
+    /**
+     * The executor which empties mailboxes, or <code>null</code> to empty them on the receiving thread.
+     */
+    private volatile Executor executor;
+
+    /**
+     * The pool of workers created by {@link #configure(Element)}, if any.  Guarded by this handler's lock.
+     */
+    private ExecutorService workers;
+
+    /**
+     * The router to route responses to, or <code>null</code> to route them back through the stream the
+     * message arrived on.
+     */
+    private volatile PacketRouter router;
+
+    /**
+     * Default constructor.
+     */
+    public ConversationHandler()
+    {
+        topicMap = Collections.emptyMap();
+        topicView = new TopicView();
+        topicsBySignature = new HashMap<String, LazyLoader<Topic>>();
+        conversationMap = new ConcurrentHashMap<PeerThreadPair, Mailbox>();
+        evictionQueue = new ConcurrentLinkedQueue<Mailbox>();
+        conversationCount = new AtomicInteger();
+        expiredCount = new AtomicLong();
+        evictedCount = new AtomicLong();
+        rejectedCount = new AtomicLong();
+        probe = new ThreadLocal<PeerThreadPair>()
+        {
+            protected PeerThreadPair initialValue()
+            {
+                return new PeerThreadPair();
+            }
+        };
+
+        setIdleTimeout(idleTimeout);
+    }
+
+    /**
+     * Configures the conversation handler.
+     *
+     * @param config the XML configuration element containing the topics.
+     */
+    public void configure(Element config)
+    {
+        if (config != null)
+        {
+            String workersString = config.getChildTextTrim("workers");
+            if (workersString != null)
+            {
+                int threads = Integer.parseInt(workersString);
+                if (threads < 1)
+                {
+                    throw new IllegalArgumentException("A conversation worker pool needs at least one thread");
+                }
+
+                synchronized (this)
+                {
+                    if (workers != null)
+                    {
+                        workers.shutdown();
+                    }
+                    workers = Executors.newFixedThreadPool(threads, new WorkerThreadFactory());
+                    executor = workers;
+                }
+            }
+
+            String maxConversationsString = config.getChildTextTrim("maxconversations");
+            if (maxConversationsString != null)
+            {
+                setMaxConversations(Integer.parseInt(maxConversationsString));
+            }
+
+            String idleTimeoutString = config.getChildTextTrim("idletimeout");
+            if (idleTimeoutString != null)
+            {
+                setIdleTimeout(Long.parseLong(idleTimeoutString));
+            }
+
+            String topicTimeoutString = config.getChildTextTrim("topictimeout");
+            if (topicTimeoutString != null)
+            {
+                setTopicTimeout(Long.parseLong(topicTimeoutString));
+            }
+
+            String maxPendingString = config.getChildTextTrim("maxpending");
+            if (maxPendingString != null)
+            {
+                setMaxPending(Integer.parseInt(maxPendingString));
+            }
+
+            String coalesceWindowString = config.getChildTextTrim("coalescewindow");
+            if (coalesceWindowString != null)
+            {
+                setCoalesceWindow(Long.parseLong(coalesceWindowString));
+            }
+
+            Element shardingElement = config.getChild("sharding");
+            if (shardingElement != null)
+            {
+                ConversationSharder newSharder = new ConversationSharder(this);
+                newSharder.configure(shardingElement);
+                setSharder(newSharder);
+            }
+
+            Element storeElement = config.getChild("store");
+            if (storeElement != null)
+            {
+                String storeClassName = storeElement.getAttributeValue("classname");
+
+                try
+                {
+                    ConversationStore store = (ConversationStore) Class.forName(storeClassName).newInstance();
+                    store.configure(storeElement.getChild("config"));
+                    setStore(store);
+                    setKeepForgotten("true".equals(storeElement.getAttributeValue("keepforgotten")));
+                }
+                catch (Throwable t)
+                {
+                    log.error("Error loading conversation store class " + storeClassName, t);
+                }
+            }
+
+        }
+
+        configureTopics(config);
+    }
+
+    /**
+     * Configures the topics, leaving everything else about the handler as it is.  Topics whose class and
+     * configuration haven't changed since last time are kept rather than created again, and the new set
+     * of topics replaces the old all at once.  Ongoing conversations carry on, moving to the new topic of
+     * the same name, or back to the default topic if theirs has gone.  Topics which fail to load are
+     * left out.
+     *
+     * @param config the XML configuration element containing the topics.
+     */
+    public synchronized void configureTopics(Element config)
+    {
+        Map<String, LazyLoader<Topic>> newTopicMap = new HashMap<String, LazyLoader<Topic>>();
+        Map<String, LazyLoader<Topic>> newTopicsBySignature = new HashMap<String, LazyLoader<Topic>>();
+        List<LazyLoader<Topic>> warmUpLoaders = new ArrayList<LazyLoader<Topic>>();
+        XMLOutputter outputter = new XMLOutputter();
+
+        if (config != null)
+        {
+            boolean warmUp = "true".equals(config.getChildTextTrim("warmup"));
+
+            for (Element commandElement : (List<Element>) config.getChildren("topic"))
+            {
+                String topicClassName = commandElement.getAttributeValue("classname");
+                Element topicConfig = commandElement.getChild("config");
+                boolean lazy = "true".equals(commandElement.getAttributeValue("lazy"));
+                String signature = topicClassName + '\n' +
+                                   ((topicConfig == null) ? "" : outputter.outputString(topicConfig));
+
+                LazyLoader<Topic> loader = topicsBySignature.get(signature);
+                if (loader == null)
+                {
+                    loader = newLoader(topicClassName, topicConfig);
+                }
+                if (!lazy && loader.get() == null)
+                {
+                    // Already logged by the loader.
+                    continue;
+                }
+                if (warmUp && !loader.isLoaded())
+                {
+                    warmUpLoaders.add(loader);
+                }
+                newTopicsBySignature.put(signature, loader);
+
+                newTopicMap.put(topicClassName, loader);
+
+                if ("true".equals(commandElement.getAttributeValue("default")))
+                {
+                    newTopicMap.put(null, loader);
+                }
+            }
+        }
+
+        topicsBySignature = newTopicsBySignature;
+        topicMap = Collections.unmodifiableMap(newTopicMap);
+
+        if (!warmUpLoaders.isEmpty())
+        {
+            LazyLoader.warmUp("topic-warmup", warmUpLoaders);
+        }
+    }
+
+    /**
+     * Creates a loader for a topic.
+     *
+     * @param className the name of the topic's class.
+     * @param config the topic's configuration, which may be <code>null</code>.
+     * @return the loader.
+     */
+    private static LazyLoader<Topic> newLoader(String className, Element config)
+    {
+        return new LazyLoader<Topic>(Topic.class, className, config)
+        {
+            protected void configure(Topic topic, Element config)
+            {
+                topic.configure(config);
+            }
+        };
+    }
+
+    /**
+     * Gets the time a topic took to create and configure.
+     *
+     * @param name the name of the topic.
+     * @return the time in milliseconds, or <code>-1</code> if there is no such topic or it hasn't been
+     *         created yet.
+     */
+    public long getTopicLoadTime(String name)
+    {
+        LazyLoader<Topic> loader = topicMap.get(name);
+        return (loader == null) ? -1 : loader.getLoadTime();
+    }
+
+    /**
+     * Sets the executor which empties conversations' mailboxes, replacing any configured pool of workers.
+     * Without an executor, a conversation whose {@link AsyncTopic} finishes late or times out carries on
+     * with its next message on the handler's dispatcher thread.
+     *
+     * @param executor the executor, or <code>null</code> to handle messages on the thread which received them.
+     */
+    public synchronized void setExecutor(Executor executor)
+    {
+        if (workers != null)
+        {
+            workers.shutdown();
+            workers = null;
+        }
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the store for conversations' topics, closing any previous store.
+     *
+     * @param store the store, or <code>null</code> to stop storing topics.
+     */
+    public void setStore(ConversationStore store)
+    {
+        ConversationStore previous = this.store;
+        this.store = store;
+        if (previous != null && previous != store)
+        {
+            previous.close();
+        }
+    }
+
+    /**
+     * Sets whether conversations which are forgotten for being idle or to make room stay in the store, so
+     * that they pick up where they left off when the peer next writes.  Conversations which end are always
+     * removed from the store.
+     *
+     * @param keepForgotten <code>true</code> to keep forgotten conversations in the store,
+     *        <code>false</code> to remove them.
+     */
+    public void setKeepForgotten(boolean keepForgotten)
+    {
+        this.keepForgotten = keepForgotten;
+    }
+
+    /**
+     * Sets the most conversations to remember at once.  Any excess is evicted when the next conversation
+     * starts.
+     *
+     * @param maxConversations the maximum, or <code>0</code> for no limit.
+     * @throws IllegalArgumentException if <code>maxConversations</code> is negative.
+     */
+    public void setMaxConversations(int maxConversations)
+    {
+        if (maxConversations < 0)
+        {
+            throw new IllegalArgumentException("Maximum number of conversations cannot be negative");
+        }
+        this.maxConversations = maxConversations;
+    }
+
+    /**
+     * Sets how long a conversation may be idle before it is forgotten, and reschedules the background
+     * sweep to suit.
+     *
+     * @param idleTimeout the timeout, in milliseconds, or <code>0</code> to keep idle conversations until
+     *        they have to make room.
+     * @throws IllegalArgumentException if <code>idleTimeout</code> is negative.
+     */
+    public synchronized void setIdleTimeout(long idleTimeout)
+    {
+        if (idleTimeout < 0)
+        {
+            throw new IllegalArgumentException("Idle timeout cannot be negative");
+        }
+        this.idleTimeout = idleTimeout;
+
+        if (sweep != null)
+        {
+            sweep.cancel(false);
+        }
+
+        // Conversations may then outstay the timeout by up to a quarter.  Even without a timeout, the
+        // sweep is still needed to clear ended conversations out of the eviction queue.
+        long period = (idleTimeout > 0) ? Math.max(1000, idleTimeout / 4) : DEFAULT_SWEEP_PERIOD;
+        sweep = sweeper.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                evictIdle();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets how long an asynchronous topic may take to handle a message.  Once the time has passed, the
+     * conversation carries on as if handling had failed, and any later completion is ignored.
+     *
+     * @param topicTimeout the timeout, in milliseconds, or <code>0</code> for no limit.
+     * @throws IllegalArgumentException if <code>topicTimeout</code> is negative.
+     */
+    public void setTopicTimeout(long topicTimeout)
+    {
+        if (topicTimeout < 0)
+        {
+            throw new IllegalArgumentException("Topic timeout cannot be negative");
+        }
+        this.topicTimeout = topicTimeout;
+    }
+
+    /**
+     * Sets the most messages which may wait in a single conversation's mailbox.
+     *
+     * @param maxPending the maximum, or <code>0</code> for no limit.
+     * @throws IllegalArgumentException if <code>maxPending</code> is negative.
      */
-    private Map<String, Topic> topicMap;
+    public void setMaxPending(int maxPending)
+    {
+        if (maxPending < 0)
+        {
+            throw new IllegalArgumentException("Maximum number of waiting messages cannot be negative");
+        }
+        this.maxPending = maxPending;
+    }
 
     /**
-     * The map of conversations.
+     * Sets how long to gather messages for a conversation whose topic is a {@link BatchTopic}, before
+     * handing them to it together.  When the window closes the batch is handed over on the executor, or
+     * on the dispatcher thread if there is no executor.
+     *
+     * @param coalesceWindow the window, in milliseconds, or <code>0</code> to hand over messages as soon
+     *        as they arrive.
+     * @throws IllegalArgumentException if <code>coalesceWindow</code> is negative.
      */
-    private Map<PeerThreadPair, Conversation> conversationMap;
+    public void setCoalesceWindow(long coalesceWindow)
+    {
+        if (coalesceWindow < 0)
+        {
+            throw new IllegalArgumentException("Coalescing window cannot be negative");
+        }
+        this.coalesceWindow = coalesceWindow;
+    }
+
+    /**
+     * Sets the sharder which forwards messages belonging to other bots, stopping any previous sharder.
+     *
+     * @param sharder the sharder, or <code>null</code> to handle all messages here.
+     */
+    public void setSharder(ConversationSharder sharder)
+    {
+        ConversationSharder previous = this.sharder;
+        this.sharder = sharder;
+        if (previous != null && previous != sharder)
+        {
+            previous.stop();
+        }
+    }
+
+    /**
+     * Sets the listener to tell about conversations as they are forgotten.  The listener is called without
+     * holding any lock, on whichever thread forgot the conversation.
+     *
+     * @param expiryListener the listener, or <code>null</code> for none.
+     */
+    public void setExpiryListener(ConversationExpiryListener expiryListener)
+    {
+        this.expiryListener = expiryListener;
+    }
+
+    /**
+     * Gets the number of conversations currently remembered.
+     *
+     * @return the number of conversations.
+     */
+    public int getConversationCount()
+    {
+        return conversationCount.get();
+    }
+
+    /**
+     * Gets the number of conversations which have been forgotten for being idle for too long.
+     *
+     * @return the number of conversations.
+     */
+    public long getExpiredCount()
+    {
+        return expiredCount.get();
+    }
+
+    /**
+     * Gets the number of conversations which have been forgotten to make room for new ones.  If this keeps
+     * rising, the maximum number of conversations is too low.
+     *
+     * @return the number of conversations.
+     */
+    public long getEvictedCount()
+    {
+        return evictedCount.get();
+    }
+
+    /**
+     * Gets the number of messages which have been rejected because their conversation already had too
+     * many waiting.
+     *
+     * @return the number of messages.
+     */
+    public long getRejectedCount()
+    {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Forgets any conversations which have been idle for too long.  This is done periodically anyway, but
+     * may be called to do it straight away.
+     */
+    public void evictIdle()
+    {
+        long timeout = idleTimeout;
+        long now = System.currentTimeMillis();
+        List<Mailbox> forgotten = new LinkedList<Mailbox>();
+
+        Iterator<Mailbox> iterator = evictionQueue.iterator();
+        while (iterator.hasNext())
+        {
+            Mailbox mailbox = iterator.next();
+            synchronized (mailbox)
+            {
+                if (!mailbox.removed)
+                {
+                    if (timeout <= 0 || mailbox.scheduled || now - mailbox.lastActive < timeout)
+                    {
+                        continue;
+                    }
+                    remove(mailbox, true);
+                    mailbox.expiredIdle = true;
+                    expiredCount.incrementAndGet();
+                    forgotten.add(mailbox);
+                }
+            }
+
+            // Removed from the map one way or another, so it has no business in the queue either.
+            iterator.remove();
+        }
+
+        notifyExpired(forgotten);
+    }
+
+    /**
+     * Sets the router to route responses to, such as an {@link org.trypticon.xmpp.util.OutboundQueue}.
+     *
+     * @param router the router, or <code>null</code> to route responses back through the stream each
+     *        message arrived on.
+     */
+    public void setRouter(PacketRouter router)
+    {
+        this.router = router;
+    }
+
+    /**
+     * Gets the router to route responses to.
+     *
+     * @return the router, or <code>null</code> if responses are routed back through the stream each
+     *         message arrived on.
+     */
+    public PacketRouter getRouter()
+    {
+        return router;
+    }
+
+    /**
+     * Method called when a <tt>Packet</tt> is received or sent.</p>
+     *
+     * @param event The <tt>PacketEvent</tt> object.
+     */
+    public void packetTransferred(PacketEvent event)
+    {
+        if (event.getType() == PacketEvent.RECEIVED && event.getData() instanceof Message)
+        {
+            Message message = (Message) event.getData();
+
+            // Only pay attention to chat messages which aren't empty, and only if there's a topic to handle them.
+            if (message.getType() == Message.CHAT && Utilities.isValidString(message.getBody()) &&
+                topicMap.containsKey(null))
+            {
+                PacketRouter target = (router == null) ? event.getContext().getRouter() : router;
+                ConversationSharder currentSharder = sharder;
+                if (currentSharder == null || !currentSharder.forward(target, message))
+                {
+                    handle(target, message);
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles a message by handing it off to the correct conversation.
+     *
+     * @param router the router to route responses to.
+     * @param message the XMPP message.
+     */
+    protected void handle(PacketRouter router, Message message)
+    {
+        enqueue(router, message, true);
+    }
+
+    /**
+     * Handles a message forwarded by the sharder.  The sharder's thread must not run topics, so the
+     * conversation is carried on by the executor, or by the dispatcher thread if there is no executor.
+     *
+     * @param router the router to route responses to.
+     * @param message the XMPP message.
+     */
+    void handleForwarded(PacketRouter router, Message message)
+    {
+        enqueue(router, message, false);
+    }
+
+    /**
+     * Puts a message in the mailbox of the correct conversation, and has the mailbox emptied if it isn't
+     * already due to be.
+     *
+     * @param router the router to route responses to.
+     * @param message the XMPP message.
+     * @param receiving <code>true</code> if the current thread may empty the mailbox itself when there is
+     *        no executor, <code>false</code> if it must be dispatched instead.
+     */
+    private void enqueue(PacketRouter router, Message message, boolean receiving)
+    {
+        while (true)
+        {
+            Mailbox mailbox = find(message);
+            if (mailbox == null)
+            {
+                mailbox = start(router, message);
+            }
+
+            synchronized (mailbox)
+            {
+                // The conversation ended or was forgotten since it was found, so look again.
+                if (mailbox.removed)
+                {
+                    continue;
+                }
+
+                if (maxPending > 0 && mailbox.size >= maxPending)
+                {
+                    rejectedCount.incrementAndGet();
+                    log.warn("Too many messages waiting in conversation with " + message.getFrom() +
+                             ", rejecting message");
+                    return;
+                }
+
+                mailbox.conversation.setRouter(router);
+                mailbox.add(message);
+                if (mailbox.scheduled)
+                {
+                    return;
+                }
+                mailbox.scheduled = true;
+            }
+
+            long window = coalesceWindow;
+            if (window > 0 && mailbox.conversation.acceptsBatches())
+            {
+                // The sweeper only closes the window; the batch itself is handled wherever dispatch says.
+                final Mailbox gathering = mailbox;
+                sweeper.schedule(new Runnable()
+                {
+                    public void run()
+                    {
+                        dispatch(gathering);
+                    }
+                }, window, TimeUnit.MILLISECONDS);
+            }
+            else if (receiving)
+            {
+                schedule(mailbox);
+            }
+            else
+            {
+                dispatch(mailbox);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Finds the mailbox of the conversation a message belongs to.
+     *
+     * @param message the XMPP message.
+     * @return the mailbox, or <code>null</code> if there is no such conversation.
+     */
+    private Mailbox find(Message message)
+    {
+        PeerThreadPair key = probe.get();
+        key.set(message.getFrom(), false, message.getThread());
+        Mailbox mailbox = conversationMap.get(key);
+
+        // If the conversation wasn't found, try searching for the version with the bare JID.
+        if (mailbox == null && key.resource.length() > 0)
+        {
+            key.set(message.getFrom(), true, message.getThread());
+            mailbox = conversationMap.get(key);
+        }
+
+        // Don't keep the message's strings alive through the probe.
+        key.clear();
+        return mailbox;
+    }
+
+    /**
+     * Starts a new conversation for a message, unless another thread just did.
+     *
+     * @param router the router to route responses to.
+     * @param message the XMPP message.
+     * @return the mailbox of the conversation.
+     */
+    private Mailbox start(PacketRouter router, Message message)
+    {
+        PeerThreadPair key = new PeerThreadPair();
+        key.set(message.getFrom(), false, message.getThread());
+
+        Conversation conversation = new Conversation(router, message.getFrom(), message.getThread(), topicView);
+        Mailbox mailbox = new Mailbox(key, conversation);
+        restore(mailbox);
+
+        Mailbox existing = conversationMap.putIfAbsent(key, mailbox);
+        if (existing != null)
+        {
+            return existing;
+        }
+
+        evictionQueue.offer(mailbox);
+        if (conversationCount.incrementAndGet() > maxConversations && maxConversations > 0)
+        {
+            evict(mailbox);
+        }
+        return mailbox;
+    }
+
+    /**
+     * Gives a new conversation the topic it had when it was stored, if it was.
+     *
+     * @param mailbox the conversation's mailbox, which no other thread can see yet.
+     */
+    private void restore(Mailbox mailbox)
+    {
+        ConversationStore store = this.store;
+        if (store == null)
+        {
+            return;
+        }
+
+        Conversation conversation = mailbox.conversation;
+        String topicName = store.getTopic(conversation.getOtherJID(), conversation.getThread());
+        if (topicName == null)
+        {
+            return;
+        }
+
+        try
+        {
+            conversation.changeTopicByName(topicName);
+            mailbox.storedTopic = topicName;
+        }
+        catch (IllegalArgumentException e)
+        {
+            log.info("Stored topic " + topicName + " for " + conversation.getOtherJID() +
+                     " no longer exists, starting over");
+            store.remove(conversation.getOtherJID(), conversation.getThread());
+        }
+    }
+
+    /**
+     * Stores the topic of a conversation if it has changed.
+     *
+     * @param mailbox the conversation's mailbox.
+     */
+    private void save(Mailbox mailbox)
+    {
+        ConversationStore store = this.store;
+        if (store == null)
+        {
+            return;
+        }
+
+        Conversation conversation = mailbox.conversation;
+        String topicName = conversation.getTopicName();
+        synchronized (mailbox)
+        {
+            boolean changed = (topicName == null) ? mailbox.storedTopic != null : !topicName.equals(mailbox.storedTopic);
+            if (changed && !mailbox.removed)
+            {
+                store.setTopic(conversation.getOtherJID(), conversation.getThread(), topicName);
+                mailbox.storedTopic = topicName;
+            }
+        }
+    }
+
+    /**
+     * Removes a conversation from the store, if it is there.  Must be called while holding the mailbox's
+     * lock, so that it can't overtake a new conversation storing its own topic under the same key.
+     *
+     * @param mailbox the conversation's mailbox.
+     */
+    private void unstore(Mailbox mailbox)
+    {
+        ConversationStore store = this.store;
+        if (store != null && mailbox.storedTopic != null)
+        {
+            store.remove(mailbox.conversation.getOtherJID(), mailbox.conversation.getThread());
+            mailbox.storedTopic = null;
+        }
+    }
+
+    /**
+     * Makes sure the store holds a conversation's current topic, as it is about to be forgotten.  Must be
+     * called while holding the mailbox's lock.
+     *
+     * @param mailbox the conversation's mailbox.
+     */
+    private void park(Mailbox mailbox)
+    {
+        ConversationStore store = this.store;
+        String topicName = mailbox.conversation.getTopicName();
+        if (store != null && topicName != null)
+        {
+            // Stored again even if unchanged, in case the store dropped it to make room.
+            store.setTopic(mailbox.conversation.getOtherJID(), mailbox.conversation.getThread(), topicName);
+            mailbox.storedTopic = topicName;
+        }
+        else
+        {
+            unstore(mailbox);
+        }
+    }
+
+    /**
+     * Forgets least recently used conversations until there are no more than the maximum.  Each
+     * conversation used since it was last considered gets a second chance, so this only approximates least
+     * recently used order, but nothing has to be reordered when a message arrives.
+     *
+     * @param keep the mailbox of the conversation being started, which must not be forgotten.
+     */
+    private void evict(Mailbox keep)
+    {
+        List<Mailbox> forgotten = new LinkedList<Mailbox>();
+
+        // Give up once everything has had its second chance, in case every conversation is busy.  Entries
+        // for conversations which have already ended are dropped without counting towards this.
+        int attempts = 2 * conversationCount.get();
+        while (conversationCount.get() > maxConversations && maxConversations > 0 && attempts > 0)
+        {
+            Mailbox mailbox = evictionQueue.poll();
+            if (mailbox == null)
+            {
+                break;
+            }
+
+            synchronized (mailbox)
+            {
+                if (mailbox.removed)
+                {
+                    continue;
+                }
+                attempts--;
+
+                // Forgetting a busy conversation would let a new one for the same peer run alongside it.
+                if (mailbox == keep || mailbox.scheduled || mailbox.referenced)
+                {
+                    mailbox.referenced = false;
+                    evictionQueue.offer(mailbox);
+                    continue;
+                }
+
+                remove(mailbox, true);
+                mailbox.expiredIdle = false;
+                evictedCount.incrementAndGet();
+                forgotten.add(mailbox);
+            }
+        }
+
+        notifyExpired(forgotten);
+    }
+
+    /**
+     * Removes a conversation from the map.  Must be called while holding the mailbox's lock.
+     *
+     * @param mailbox the conversation's mailbox.
+     * @param forgotten <code>true</code> if the conversation is being forgotten, <code>false</code> if it
+     *        ended.
+     */
+    private void remove(Mailbox mailbox, boolean forgotten)
+    {
+        mailbox.removed = true;
+        if (forgotten && keepForgotten)
+        {
+            park(mailbox);
+        }
+        else
+        {
+            unstore(mailbox);
+        }
+        if (conversationMap.remove(mailbox.key, mailbox))
+        {
+            conversationCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Tells the expiry listener about forgotten conversations.  Must be called without holding any
+     * mailbox's lock.
+     *
+     * @param forgotten the mailboxes of the forgotten conversations.
+     */
+    private void notifyExpired(List<Mailbox> forgotten)
+    {
+        if (forgotten.isEmpty())
+        {
+            return;
+        }
+
+        if (log.isDebugEnabled())
+        {
+            log.debug("Forgot " + forgotten.size() + " conversations");
+        }
+
+        ConversationExpiryListener listener = expiryListener;
+        if (listener == null)
+        {
+            return;
+        }
+
+        for (Mailbox mailbox : forgotten)
+        {
+            try
+            {
+                listener.conversationExpired(mailbox.conversation, mailbox.expiredIdle);
+            }
+            catch (Throwable t)
+            {
+                log.error("Error in conversation expiry listener", t);
+            }
+        }
+    }
+
+    /**
+     * Has a mailbox emptied, either by the executor or straight away.
+     *
+     * @param mailbox the mailbox.
+     */
+    private void schedule(Mailbox mailbox)
+    {
+        Executor executor = this.executor;
+        if (executor == null)
+        {
+            mailbox.run();
+        }
+        else
+        {
+            executor.execute(mailbox);
+        }
+    }
+
+    /**
+     * Has a conversation carried on away from the thread which found it ready, on the executor if there is
+     * one, or else on the dispatcher thread.  Used wherever the current thread is one which must not run
+     * topics, such as a timer.
+     *
+     * @param task the work which carries the conversation on.
+     */
+    private void dispatch(Runnable task)
+    {
+        Executor executor = this.executor;
+        if (executor == null)
+        {
+            executor = getDispatcher();
+        }
+        executor.execute(task);
+    }
+
+    /**
+     * Gets the dispatcher thread, starting it if this is the first time it is needed.
+     *
+     * @return the dispatcher.
+     */
+    private synchronized Executor getDispatcher()
+    {
+        if (dispatcher == null)
+        {
+            dispatcher = Executors.newSingleThreadExecutor(new DispatcherThreadFactory());
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Ends a conversation.  Any messages which arrived for it after the one which ended it are handed to a
+     * new conversation, which takes its place in the map before any later message can find it, so that
+     * the order is kept.
+     *
+     * @param mailbox the conversation's mailbox.
+     */
+    private void end(Mailbox mailbox)
+    {
+        Mailbox successor = null;
+        synchronized (mailbox)
+        {
+            mailbox.scheduled = false;
+
+            Message first = mailbox.peek();
+            if (first == null)
+            {
+                remove(mailbox, false);
+            }
+            else
+            {
+                mailbox.removed = true;
+                unstore(mailbox);
+
+                Conversation conversation = new Conversation(mailbox.conversation.getRouter(),
+                                                             first.getFrom(), first.getThread(), topicView);
+                successor = new Mailbox(mailbox.key, conversation);
+                for (Message message = mailbox.poll(); message != null; message = mailbox.poll())
+                {
+                    successor.add(message);
+                }
+                successor.scheduled = true;
+
+                // Only the conversation itself removes it from the map while it is scheduled.
+                conversationMap.replace(mailbox.key, mailbox, successor);
+                evictionQueue.offer(successor);
+            }
+        }
+
+        if (successor != null)
+        {
+            schedule(successor);
+        }
+    }
+
+    /**
+     * The messages waiting to be handled by a conversation.  Emptying the mailbox handles them in order.
+     * Everything but the key and conversation is guarded by the mailbox's own lock.
+     */
+    private class Mailbox implements Runnable
+    {
+        /**
+         * The key which the conversation is stored under.
+         */
+        private final PeerThreadPair key;
+
+        /**
+         * The conversation.
+         */
+        private final Conversation conversation;
+
+        /**
+         * Messages waiting to be handled, as a circular buffer with the oldest at {@link #head}.
+         */
+        private Message[] messages = new Message[4];
+
+        /**
+         * The index of the oldest waiting message.
+         */
+        private int head;
+
+        /**
+         * The number of waiting messages.
+         */
+        private int size;
+
+        /**
+         * Set while the mailbox is queued or being emptied.
+         */
+        private boolean scheduled;
+
+        /**
+         * Set once the conversation has been removed from the map, after which nothing more may be added.
+         */
+        private boolean removed;
+
+        /**
+         * Set when a message arrives, and cleared when eviction passes the conversation over.
+         */
+        private boolean referenced;
+
+        /**
+         * The time the last message arrived.
+         */
+        private long lastActive;
+
+        /**
+         * Once forgotten, whether that was for being idle rather than to make room.
+         */
+        private boolean expiredIdle;
+
+        /**
+         * The topic name last stored for the conversation, or <code>null</code> if it isn't stored.
+         */
+        private String storedTopic;
+
+        /**
+         * Constructs the mailbox.
+         *
+         * @param key the key which the conversation is stored under.
+         * @param conversation the conversation.
+         */
+        private Mailbox(PeerThreadPair key, Conversation conversation)
+        {
+            this.key = key;
+            this.conversation = conversation;
+            this.lastActive = System.currentTimeMillis();
+        }
+
+        /**
+         * Adds a message to the end of the mailbox.  Must be called while holding the mailbox's lock.
+         *
+         * @param message the message.
+         */
+        private void add(Message message)
+        {
+            if (size == messages.length)
+            {
+                Message[] grown = new Message[size * 2];
+                for (int i = 0; i < size; i++)
+                {
+                    grown[i] = messages[(head + i) % messages.length];
+                }
+                messages = grown;
+                head = 0;
+            }
+            messages[(head + size) % messages.length] = message;
+            size++;
+            referenced = true;
+            lastActive = System.currentTimeMillis();
+        }
 
-    /**
-     * Default constructor.
-     */
-    public ConversationHandler()
-    {
-        topicMap = new HashMap<String, Topic>();
-        conversationMap = new HashMap<PeerThreadPair, Conversation>();
-    }
+        /**
+         * Gets the oldest message without removing it.  Must be called while holding the mailbox's lock.
+         *
+         * @return the message, or <code>null</code> if the mailbox is empty.
+         */
+        private Message peek()
+        {
+            return (size == 0) ? null : messages[head];
+        }
 
-    /**
-     * Configures the conversation handler.
-     *
-     * @param config the XML configuration element containing the topics.
-     */
-    public void configure(Element config)
-    {
-        topicMap.clear();
+        /**
+         * Removes the oldest message.  Must be called while holding the mailbox's lock.
+         *
+         * @return the message, or <code>null</code> if the mailbox is empty.
+         */
+        private Message poll()
+        {
+            if (size == 0)
+            {
+                return null;
+            }
+            Message message = messages[head];
+            messages[head] = null;
+            head = (head + 1) % messages.length;
+            size--;
+            return message;
+        }
 
-        if (config != null)
+        /**
+         * Removes all the waiting messages.  Must be called while holding the mailbox's lock.
+         *
+         * @return the messages, oldest first.
+         */
+        private List<Message> pollAll()
         {
-            for (Element commandElement : (List<Element>) config.getChildren("topic"))
+            List<Message> batch = new ArrayList<Message>(size);
+            for (Message message = poll(); message != null; message = poll())
             {
-                String topicClassName = commandElement.getAttributeValue("classname");
+                batch.add(message);
+            }
+            return batch;
+        }
 
-                try
+        /**
+         * Handles the waiting messages until there are none left or the conversation ends.  A completion
+         * is only created for topics which might finish later, so that handling a message with any other
+         * topic allocates nothing.
+         */
+        public void run()
+        {
+            while (true)
+            {
+                boolean batching = conversation.acceptsBatches();
+                Message message;
+                List<Message> batch = null;
+                synchronized (this)
                 {
-                    Topic topic = (Topic) Class.forName(topicClassName).newInstance();
-                    topic.configure(commandElement.getChild("config"));
+                    message = peek();
+                    if (message == null)
+                    {
+                        scheduled = false;
+                        return;
+                    }
+                    if (batching)
+                    {
+                        batch = pollAll();
+                    }
+                    else
+                    {
+                        poll();
+                    }
+                }
 
-                    topicMap.put(topicClassName, topic);
+                if (batch == null && !conversation.isAsync())
+                {
+                    boolean ongoing = true;
+                    try
+                    {
+                        ongoing = deliver(message);
+                    }
+                    catch (Throwable t)
+                    {
+                        log.error("Error handling message from " + message.getFrom(), t);
+                    }
 
-                    if ("true".equals(commandElement.getAttributeValue("default")))
+                    if (!finish(ongoing))
                     {
-                        topicMap.put(null, topic);
+                        return;
                     }
+                    continue;
+                }
+
+                Completion completion = new Completion(this, message);
+                try
+                {
+                    deliver(message, batch, completion);
                 }
                 catch (Throwable t)
                 {
-                    log.error("Error loading command class " + topicClassName, t);
+                    completion.fail(t);
+                }
+
+                // If the topic hasn't finished yet, the completion carries on from here when it does.
+                if (completion.state.compareAndSet(Completion.HANDLING, Completion.PENDING))
+                {
+                    completion.startTimeout();
+                    return;
+                }
+
+                if (!finish(completion.ongoing))
+                {
+                    return;
                 }
             }
         }
+
+        /**
+         * Hands a message to the conversation's topic.
+         *
+         * @param message the message.
+         * @return <code>true</code> if the conversation is still in progress.
+         */
+        private boolean deliver(Message message)
+        {
+            if (executor == null)
+            {
+                synchronized (serialLock)
+                {
+                    return conversation.handle(message);
+                }
+            }
+            return conversation.handle(message);
+        }
+
+        /**
+         * Starts handing a message, or a batch of messages, to the conversation's topic.
+         *
+         * @param message the message, or the oldest message of the batch.
+         * @param batch the batch, or <code>null</code> to hand over just the message.
+         * @param completion to be told when the topic has finished.
+         */
+        private void deliver(Message message, List<Message> batch, Completion completion)
+        {
+            if (executor == null)
+            {
+                synchronized (serialLock)
+                {
+                    deliverUnlocked(message, batch, completion);
+                }
+            }
+            else
+            {
+                deliverUnlocked(message, batch, completion);
+            }
+        }
+
+        /**
+         * Starts handing a message, or a batch of messages, to the conversation's topic, without taking
+         * the serial lock.
+         *
+         * @param message the message, or the oldest message of the batch.
+         * @param batch the batch, or <code>null</code> to hand over just the message.
+         * @param completion to be told when the topic has finished.
+         */
+        private void deliverUnlocked(Message message, List<Message> batch, Completion completion)
+        {
+            if (batch != null)
+            {
+                conversation.handle(batch, completion);
+            }
+            else
+            {
+                conversation.handle(message, completion);
+            }
+        }
+
+        /**
+         * Deals with the result of handling a message.
+         *
+         * @param ongoing whether the conversation is still in progress.
+         * @return <code>true</code> if the conversation carries on, <code>false</code> if it ended.
+         */
+        private boolean finish(boolean ongoing)
+        {
+            if (!ongoing)
+            {
+                end(this);
+                return false;
+            }
+            save(this);
+            return true;
+        }
+
+        /**
+         * Carries on emptying the mailbox after an asynchronous topic has finished with a message.  Called
+         * on the executor or the dispatcher thread.
+         *
+         * @param completion the completion for the message.
+         */
+        private void resume(Completion completion)
+        {
+            if (finish(completion.ongoing))
+            {
+                run();
+            }
+        }
     }
 
     /**
-     * Method called when a <tt>Packet</tt> is received or sent.</p>
-     *
-     * @param event The <tt>PacketEvent</tt> object.
+     * The completion for a message handed to a conversation.  Whichever of the topic and the timeout
+     * finishes first decides the result, and whichever of finishing and the topic returning happens last
+     * carries on emptying the mailbox.  A topic which finishes after returning may do so on any thread,
+     * and the timeout fires on the shared sweeper, so the mailbox is then carried on by dispatching the
+     * completion, never on the finishing thread.
      */
-    public void packetTransferred(PacketEvent event)
+    private class Completion implements TopicCompletion, Runnable
     {
-        if (event.getType() == PacketEvent.RECEIVED && event.getData() instanceof Message)
+        /**
+         * The state while the topic is handling the message and hasn't finished.
+         */
+        private static final int HANDLING = 0;
+
+        /**
+         * The state once the topic finished before returning.
+         */
+        private static final int FINISHED = 1;
+
+        /**
+         * The state once the topic returned without having finished.
+         */
+        private static final int PENDING = 2;
+
+        /**
+         * The state once the topic finished after returning.
+         */
+        private static final int RESUMED = 3;
+
+        /**
+         * The mailbox the message came from.
+         */
+        private Mailbox mailbox;
+
+        /**
+         * The message.
+         */
+        private Message message;
+
+        /**
+         * The state, one of the constants above.
+         */
+        private AtomicInteger state = new AtomicInteger(HANDLING);
+
+        /**
+         * Set once there is a result, after which anything more is ignored.
+         */
+        private AtomicBoolean done = new AtomicBoolean();
+
+        /**
+         * Whether the conversation is still in progress.
+         */
+        private volatile boolean ongoing = true;
+
+        /**
+         * The timeout, or <code>null</code> if there is none.
+         */
+        private volatile ScheduledFuture<?> timeout;
+
+        /**
+         * Constructs the completion.
+         *
+         * @param mailbox the mailbox the message came from.
+         * @param message the message.
+         */
+        private Completion(Mailbox mailbox, Message message)
         {
-            Message message = (Message) event.getData();
+            this.mailbox = mailbox;
+            this.message = message;
+        }
+
+        public void complete(boolean ongoing)
+        {
+            if (done.compareAndSet(false, true))
+            {
+                this.ongoing = ongoing;
+                finished();
+            }
+        }
+
+        public void fail(Throwable cause)
+        {
+            if (done.compareAndSet(false, true))
+            {
+                log.error("Error handling message from " + message.getFrom(), cause);
+                finished();
+            }
+        }
+
+        /**
+         * Starts the timeout, if there is one.  Called once the topic has returned without finishing.
+         */
+        private void startTimeout()
+        {
+            long delay = topicTimeout;
+            if (delay > 0)
+            {
+                timeout = sweeper.schedule(new Runnable()
+                {
+                    public void run()
+                    {
+                        fail(new TimeoutException("Topic did not handle message within " + topicTimeout + "ms"));
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Carries on emptying the mailbox with the result.
+         */
+        public void run()
+        {
+            mailbox.resume(this);
+        }
+
+        /**
+         * Hands the result back to the mailbox, either straight away if the topic hasn't returned yet, or
+         * by dispatching the mailbox to carry on if it has.
+         */
+        private void finished()
+        {
+            if (state.compareAndSet(HANDLING, FINISHED))
+            {
+                return;
+            }
 
-            // Only pay attention to chat messages which aren't empty.
-            if (message.getType() == Message.CHAT && Utilities.isValidString(message.getBody()))
+            ScheduledFuture<?> pendingTimeout = timeout;
+            if (pendingTimeout != null)
             {
-                handle(event.getContext().getRouter(), message);
+                pendingTimeout.cancel(false);
             }
+            state.set(RESUMED);
+            dispatch(this);
         }
     }
 
     /**
-     * Handles a message by handing it off to the correct conversation.
-     *
-     * @param router the router to route responses to.
-     * @param message the XMPP message.
+     * Thread factory for the pool of workers.  The threads are daemons, so that they never keep the JVM
+     * alive on their own.
      */
-    protected void handle(PacketRouter router, Message message)
+    private static class WorkerThreadFactory implements ThreadFactory
     {
-        PeerThreadPair key = new PeerThreadPair(message.getFrom(), message.getThread());
-        Conversation conversation = conversationMap.get(key);
+        /**
+         * The number of the next thread to be created.
+         */
+        private AtomicInteger nextNumber = new AtomicInteger(1);
 
-        // If the conversation wasn't found, try searching for the version with the bare JID.
-        if (conversation == null)
+        /**
+         * Creates a new thread.
+         *
+         * @param runnable the runnable for the thread to run.
+         * @return the thread.
+         */
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "conversation-worker-" + nextNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Thread factory for the dispatcher thread.  The thread is a daemon, so that it never keeps the JVM
+     * alive on its own.
+     */
+    private static class DispatcherThreadFactory implements ThreadFactory
+    {
+        /**
+         * Creates a new thread.
+         *
+         * @param runnable the runnable for the thread to run.
+         * @return the thread.
+         */
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "conversation-dispatcher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * A read-only view of whichever map of topics is current.  Looking a topic up creates it if it hasn't
+     * been created yet.  A topic which fails to load looks as if it doesn't exist.
+     */
+    private class TopicView extends AbstractMap<String, Topic>
+    {
+        public Topic get(Object key)
         {
-            PeerThreadPair newKey = new PeerThreadPair(message.getFrom().toBareJID(), message.getThread());
-            conversation = conversationMap.get(newKey);
+            LazyLoader<Topic> loader = topicMap.get(key);
+            return (loader == null) ? null : loader.get();
+        }
 
-            // If this was found, this becomes the new key.
-            conversationMap.put(newKey, conversation);
-            conversationMap.remove(key);
-            key = newKey;
+        public boolean containsKey(Object key)
+        {
+            return get(key) != null;
         }
 
-        if (conversation == null)
+        /**
+         * Gets the topics, creating all of them which haven't been created yet.
+         *
+         * @return the topics which could be created, keyed by name.
+         */
+        public Set<Map.Entry<String, Topic>> entrySet()
         {
-            conversation = new Conversation(router, message.getFrom(), message.getThread(), topicMap);
-            conversationMap.put(key, conversation);
+            Map<String, Topic> topics = new HashMap<String, Topic>();
+            for (Map.Entry<String, LazyLoader<Topic>> entry : topicMap.entrySet())
+            {
+                Topic topic = entry.getValue().get();
+                if (topic != null)
+                {
+                    topics.put(entry.getKey(), topic);
+                }
+            }
+            return Collections.unmodifiableMap(topics).entrySet();
         }
+    }
 
-        if (!conversation.handle(message))
+    /**
+     * Thread factory for the shared sweeper thread.  The thread is a daemon, so that it never keeps the
+     * JVM alive on its own.
+     */
+    private static class SweeperThreadFactory implements ThreadFactory
+    {
+        /**
+         * Creates a new thread.
+         *
+         * @param runnable the runnable for the thread to run.
+         * @return the thread.
+         */
+        public Thread newThread(Runnable runnable)
         {
-            conversationMap.remove(key);
+            Thread thread = new Thread(runnable, "conversation-sweeper");
+            thread.setDaemon(true);
+            return thread;
         }
     }
 
     /**
      * A pair formed by the "from" JID and the thread ID of a message.
+     * <p>
+     * The JID is held as its parts, and the hash code is worked out once, without the lower-case copies
+     * that {@link JID#hashCode()} makes, so that looking up a key never allocates.  A pair is only ever
+     * changed while it is being used as a probe; a pair stored in the map never changes.
      */
-    private class PeerThreadPair
+    private static class PeerThreadPair
     {
         /**
-         * The JID which we're communicating with.
+         * The node of the JID which we're communicating with, compared ignoring case.
+         */
+        private String node;
+
+        /**
+         * The domain of the JID which we're communicating with, compared ignoring case.
+         */
+        private String domain;
+
+        /**
+         * The resource of the JID which we're communicating with, or the empty string if it is bare.
          */
-        private JID peer;
+        private String resource;
 
         /**
          * The ID of the thread.
@@ -148,21 +1751,49 @@ public class ConversationHandler implements PacketListener
         private String thread;
 
         /**
-         * Constructs the pair.
+         * The hash code.
+         */
+        private int hashCode;
+
+        /**
+         * Sets the contents of the pair.
          *
          * @param peer the JID which we're communicating with.
+         * @param bare whether to use the bare form of the JID.
          * @param thread the ID of the thread.
          * @throws IllegalArgumentException if <code>peer</code> is <code>null</code>.
          */
-        private PeerThreadPair(JID peer, String thread)
+        private void set(JID peer, boolean bare, String thread)
         {
             if (peer == null)
             {
                 throw new IllegalArgumentException("Peer cannot be null.");
             }
 
-            this.peer = peer;
+            this.node = peer.getNode();
+            this.domain = peer.getDomain();
+            this.resource = bare ? "" : peer.getResource();
             this.thread = thread;
+
+            int hash = hashIgnoringCase(domain);
+            hash = 31 * hash + hashIgnoringCase(node);
+            hash = 31 * hash + resource.hashCode();
+            if (thread != null)
+            {
+                hash = 31 * hash + thread.hashCode();
+            }
+            this.hashCode = hash;
+        }
+
+        /**
+         * Clears the contents of the pair.
+         */
+        private void clear()
+        {
+            node = null;
+            domain = null;
+            resource = null;
+            thread = null;
         }
 
         /**
@@ -178,7 +1809,10 @@ public class ConversationHandler implements PacketListener
                 return false;
             }
             PeerThreadPair that = (PeerThreadPair) other;
-            return this.peer.equals(that.peer) &&
+            return this.hashCode == that.hashCode &&
+                   this.domain.equalsIgnoreCase(that.domain) &&
+                   this.node.equalsIgnoreCase(that.node) &&
+                   this.resource.equals(that.resource) &&
                    ((this.thread == null) ? that.thread == null : this.thread.equals(that.thread));
         }
 
@@ -189,12 +1823,23 @@ public class ConversationHandler implements PacketListener
          */
         public int hashCode()
         {
-            int hashCode = peer.hashCode();
-            if (thread != null)
+            return hashCode;
+        }
+
+        /**
+         * Hashes a string ignoring case, without making a lower-case copy.
+         *
+         * @param string the string.
+         * @return the hash code.
+         */
+        private static int hashIgnoringCase(String string)
+        {
+            int hash = 0;
+            for (int i = 0; i < string.length(); i++)
             {
-                hashCode *= 27 + thread.hashCode();
+                hash = 31 * hash + Character.toLowerCase(string.charAt(i));
             }
-            return hashCode;
+            return hash;
         }
     }
 }
@@ -0,0 +1,510 @@
+package org.trypticon.commandbot.conversation;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jabberstudio.jso.JID;
+import org.jabberstudio.jso.Message;
+import org.jabberstudio.jso.PacketRouter;
+import org.jabberstudio.jso.StreamDataFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.input.SAXBuilder;
+import org.jdom.output.XMLOutputter;
+
+/**
+ * Shares conversations out between several bots logged in to the same account with different resources.
+ * <p>
+ * Each bare JID belongs to one of the bots, chosen by a {@link HashRing} over the bots' names, so adding
+ * a bot only moves a small share of the conversations.  A bot which receives a message for a JID
+ * belonging to another bot forwards it through a directory shared between them, where each bot has an
+ * inbox named after itself.  Messages are written to a temporary file and renamed into place, so a bot
+ * never reads half a message.  Only what conversations use is forwarded: the sender, thread and body.
+ * <p>
+ * Forwarded messages are answered through the conversation handler's router, so a bot drains its inbox
+ * even if the server never delivers anything to it directly.  The inbox is read on a shared thread
+ * which never runs topics itself; forwarded messages are handed to the conversation handler's executor
+ * or dispatcher thread.  Each bot touches a heartbeat file next to its inbox whenever it reads the
+ * inbox.  A bot whose heartbeat is older than the maximum age is taken to be down: messages belonging
+ * to it are handled here rather than forwarded, and any waiting in its inbox are taken over by
+ * renaming them into this bot's inbox.  Messages left unread for longer than the maximum age by a bot
+ * which is still up are logged.
+ * <p>
+ * The configuration looks like this, and must list the same members on every bot:
+ * <pre>
+ * &lt;sharding&gt;
+ *     &lt;name&gt;alpha&lt;/name&gt;
+ *     &lt;member&gt;alpha&lt;/member&gt;
+ *     &lt;member&gt;beta&lt;/member&gt;
+ *     &lt;directory&gt;/var/spool/commandbot&lt;/directory&gt;
+ *     &lt;replicas&gt;128&lt;/replicas&gt;
+ *     &lt;pollinterval&gt;100&lt;/pollinterval&gt;
+ *     &lt;maxage&gt;60000&lt;/maxage&gt;
+ * &lt;/sharding&gt;
+ * </pre>
+ */
+public class ConversationSharder
+{
+    /**
+     * Log.
+     */
+    private static final Log log = LogFactory.getLog(ConversationSharder.class);
+
+    /**
+     * The scheduler shared by all sharders, which reads their inboxes.
+     */
+    private static final ScheduledExecutorService poller =
+            Executors.newSingleThreadScheduledExecutor(new PollerThreadFactory());
+
+    /**
+     * The suffix of a forwarded message which has been completely written.
+     */
+    private static final String MESSAGE_SUFFIX = ".msg";
+
+    /**
+     * The suffix of a forwarded message which is still being written.
+     */
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /**
+     * The suffix of a bot's heartbeat file, which sits next to its inbox.
+     */
+    private static final String HEARTBEAT_SUFFIX = ".alive";
+
+    /**
+     * The handler which messages belonging to this bot go to.
+     */
+    private ConversationHandler handler;
+
+    /**
+     * The name of this bot.
+     */
+    private String name;
+
+    /**
+     * The ring which decides which bot each JID belongs to.
+     */
+    private HashRing ring;
+
+    /**
+     * The directory holding every bot's inbox.
+     */
+    private File directory;
+
+    /**
+     * This bot's inbox.
+     */
+    private File inbox;
+
+    /**
+     * The names of the other bots.
+     */
+    private List<String> otherMembers;
+
+    /**
+     * How long another bot's heartbeat may go untouched before it is taken to be down, in milliseconds,
+     * or <code>0</code> to take every bot to be up.
+     */
+    private long maxAge;
+
+    /**
+     * This bot's heartbeat file.
+     */
+    private File heartbeat;
+
+    /**
+     * When the other bots were last checked.
+     */
+    private long lastCheck;
+
+    /**
+     * The other bots which are taken to be down.
+     */
+    private volatile Set<String> downMembers = Collections.emptySet();
+
+    /**
+     * The router the last message received directly arrived on, for handing forwarded messages to this
+     * bot's conversations if the conversation handler has no router of its own.
+     */
+    private volatile PacketRouter router;
+
+    /**
+     * The number of messages written, for naming the files.
+     */
+    private AtomicLong sequence = new AtomicLong();
+
+    /**
+     * The number of messages forwarded to other bots.
+     */
+    private AtomicLong forwardedCount = new AtomicLong();
+
+    /**
+     * The periodic read of the inbox, or <code>null</code> if not started.
+     */
+    private ScheduledFuture<?> poll;
+
+    /**
+     * Constructs the sharder.
+     *
+     * @param handler the handler which messages belonging to this bot go to.
+     */
+    public ConversationSharder(ConversationHandler handler)
+    {
+        this.handler = handler;
+    }
+
+    /**
+     * Configures the sharder and starts reading this bot's inbox.
+     *
+     * @param config the XML configuration.
+     * @throws IllegalArgumentException if the configuration is incomplete, or this bot isn't a member.
+     */
+    public synchronized void configure(Element config)
+    {
+        String newName = config.getChildTextTrim("name");
+        List<String> members = new ArrayList<String>();
+        for (Element memberElement : (List<Element>) config.getChildren("member"))
+        {
+            members.add(memberElement.getTextTrim());
+        }
+        String directoryString = config.getChildTextTrim("directory");
+        if (newName == null || directoryString == null || !members.contains(newName))
+        {
+            throw new IllegalArgumentException("Sharding needs a directory, and a name which is one of the members");
+        }
+
+        int replicas = 128;
+        String replicasString = config.getChildTextTrim("replicas");
+        if (replicasString != null)
+        {
+            replicas = Integer.parseInt(replicasString);
+        }
+
+        long pollInterval = 100;
+        String pollIntervalString = config.getChildTextTrim("pollinterval");
+        if (pollIntervalString != null)
+        {
+            pollInterval = Long.parseLong(pollIntervalString);
+        }
+        if (pollInterval <= 0)
+        {
+            throw new IllegalArgumentException("Poll interval must be positive");
+        }
+
+        long newMaxAge = 60000;
+        String maxAgeString = config.getChildTextTrim("maxage");
+        if (maxAgeString != null)
+        {
+            newMaxAge = Long.parseLong(maxAgeString);
+        }
+
+        ring = new HashRing(members, replicas);
+        name = newName;
+        otherMembers = new ArrayList<String>(members);
+        otherMembers.remove(name);
+        maxAge = newMaxAge;
+        downMembers = Collections.emptySet();
+        directory = new File(directoryString);
+        inbox = new File(directory, name);
+        heartbeat = new File(directory, name + HEARTBEAT_SUFFIX);
+        if (!inbox.isDirectory() && !inbox.mkdirs())
+        {
+            log.error("Could not create inbox " + inbox);
+        }
+
+        stop();
+        poll = poller.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                readInbox();
+            }
+        }, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops reading this bot's inbox.
+     */
+    public synchronized void stop()
+    {
+        if (poll != null)
+        {
+            poll.cancel(false);
+            poll = null;
+        }
+    }
+
+    /**
+     * Gets the number of messages which have been forwarded to other bots.
+     *
+     * @return the number of messages.
+     */
+    public long getForwardedCount()
+    {
+        return forwardedCount.get();
+    }
+
+    /**
+     * Forwards a message to the bot it belongs to, if that isn't this one.
+     *
+     * @param router the router the message arrived on.
+     * @param message the message.
+     * @return <code>true</code> if the message was forwarded, <code>false</code> if it belongs to this bot.
+     */
+    public boolean forward(PacketRouter router, Message message)
+    {
+        this.router = router;
+
+        JID from = message.getFrom();
+        String key = (from.getNode() == null) ? from.getDomain() : from.getNode() + '@' + from.getDomain();
+        String owner = ring.nodeFor(key.toLowerCase(Locale.ENGLISH));
+        if (owner.equals(name))
+        {
+            return false;
+        }
+        if (downMembers.contains(owner))
+        {
+            return false;
+        }
+
+        try
+        {
+            write(new File(directory, owner), message);
+            forwardedCount.incrementAndGet();
+            return true;
+        }
+        catch (IOException e)
+        {
+            log.error("Could not forward message from " + from + " to " + owner + ", handling it here", e);
+            return false;
+        }
+    }
+
+    /**
+     * Writes a message to another bot's inbox.
+     *
+     * @param ownerInbox the inbox.
+     * @param message the message.
+     * @throws IOException if an I/O error occurs.
+     */
+    private void write(File ownerInbox, Message message) throws IOException
+    {
+        Element element = new Element("message");
+        element.setAttribute("from", message.getFrom().toString());
+        if (message.getThread() != null)
+        {
+            element.setAttribute("thread", message.getThread());
+        }
+        element.setText(message.getBody());
+
+        // Named so that the inbox lists in the order messages were written.
+        String baseName = String.format("%013d-%s-%010d", System.currentTimeMillis(), name,
+                                        sequence.incrementAndGet());
+        File temporary = new File(ownerInbox, baseName + TEMPORARY_SUFFIX);
+        OutputStream out = new FileOutputStream(temporary);
+        try
+        {
+            new XMLOutputter().output(new Document(element), out);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        if (!temporary.renameTo(new File(ownerInbox, baseName + MESSAGE_SUFFIX)))
+        {
+            temporary.delete();
+            throw new IOException("Could not rename " + temporary + " into place");
+        }
+    }
+
+    /**
+     * Hands any messages in this bot's inbox to the conversation handler, oldest first.
+     */
+    private void readInbox()
+    {
+        if (maxAge > 0)
+        {
+            beat();
+            checkOthers();
+        }
+
+        PacketRouter currentRouter = handler.getRouter();
+        if (currentRouter == null)
+        {
+            currentRouter = router;
+        }
+        if (currentRouter == null)
+        {
+            // Nothing can be replied to until a message has arrived directly.
+            return;
+        }
+
+        StreamDataFactory factory;
+        String namespace;
+        try
+        {
+            factory = currentRouter.getDataFactory();
+            namespace = currentRouter.getDefaultNamespace();
+        }
+        catch (IllegalStateException e)
+        {
+            // Not connected yet, so leave the messages until it is.
+            return;
+        }
+
+        String[] names = inbox.list();
+        if (names == null)
+        {
+            return;
+        }
+        Arrays.sort(names);
+
+        SAXBuilder builder = new SAXBuilder();
+        for (String fileName : names)
+        {
+            if (!fileName.endsWith(MESSAGE_SUFFIX))
+            {
+                continue;
+            }
+
+            File file = new File(inbox, fileName);
+            try
+            {
+                Element element = builder.build(file).getRootElement();
+                file.delete();
+
+                Message message = (Message) factory.createPacketNode(factory.createNSI("message", namespace));
+                message.setType(Message.CHAT);
+                message.setFrom(JID.valueOf(element.getAttributeValue("from")));
+                message.setThread(element.getAttributeValue("thread"));
+                message.setBody(element.getText());
+
+                handler.handleForwarded(currentRouter, message);
+            }
+            catch (Throwable t)
+            {
+                log.error("Error reading forwarded message " + file + ", discarding it", t);
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Touches this bot's heartbeat file.
+     */
+    private void beat()
+    {
+        try
+        {
+            if (!heartbeat.setLastModified(System.currentTimeMillis()))
+            {
+                heartbeat.createNewFile();
+            }
+        }
+        catch (IOException e)
+        {
+            log.error("Could not touch heartbeat " + heartbeat, e);
+        }
+    }
+
+    /**
+     * Checks which other bots are down, taking over the messages waiting for them, and logs messages
+     * left unread by bots which are up.  The other bots are checked at most twice per maximum age.
+     */
+    private void checkOthers()
+    {
+        long now = System.currentTimeMillis();
+        if (now - lastCheck < maxAge / 2)
+        {
+            return;
+        }
+        lastCheck = now;
+
+        Set<String> newDownMembers = new HashSet<String>();
+        for (String member : otherMembers)
+        {
+            // A missing heartbeat reads as zero, so a bot which never started is down.
+            boolean down = now - new File(directory, member + HEARTBEAT_SUFFIX).lastModified() > maxAge;
+            if (down)
+            {
+                newDownMembers.add(member);
+                if (!downMembers.contains(member))
+                {
+                    log.warn("Bot " + member + " is down, handling its messages here");
+                }
+            }
+            else if (downMembers.contains(member))
+            {
+                log.info("Bot " + member + " is back up, forwarding its messages again");
+            }
+
+            File memberInbox = new File(directory, member);
+            String[] names = memberInbox.list();
+            if (names == null)
+            {
+                continue;
+            }
+            for (String fileName : names)
+            {
+                if (!fileName.endsWith(MESSAGE_SUFFIX))
+                {
+                    continue;
+                }
+
+                File file = new File(memberInbox, fileName);
+                if (down)
+                {
+                    // Renaming is atomic, so if the other bot reads the message meanwhile, this fails harmlessly.
+                    if (file.renameTo(new File(inbox, fileName)))
+                    {
+                        log.info("Took over message " + fileName + " from " + member);
+                    }
+                }
+                else if (now - file.lastModified() > maxAge)
+                {
+                    log.warn("Message " + fileName + " has been waiting for " + member + " for over " +
+                             maxAge + " ms");
+                }
+            }
+        }
+        downMembers = newDownMembers;
+    }
+
+    /**
+     * Thread factory for the shared inbox thread.  The thread is a daemon, so that it never keeps the
+     * JVM alive on its own.
+     */
+    private static class PollerThreadFactory implements ThreadFactory
+    {
+        /**
+         * Creates a new thread.
+         *
+         * @param runnable the runnable for the thread to run.
+         * @return the thread.
+         */
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "conversation-sharder");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.trypticon.commandbot.conversation;
+
+import org.jabberstudio.jso.JID;
+import org.jdom.Element;
+
+/**
+ * Remembers the topic of each conversation, so that conversations can pick up where they left off after
+ * the bot restarts.  Only conversations which have moved away from the default topic are stored.
+ * <p>
+ * Implementations must be thread safe.
+ */
+public interface ConversationStore
+{
+    /**
+     * Configures the store.
+     *
+     * @param config the XML configuration, which may be <code>null</code>.
+     */
+    public void configure(Element config);
+
+    /**
+     * Gets the stored topic of a conversation.
+     *
+     * @param peer the JID at the other end of the conversation.
+     * @param thread the thread ID for the conversation, which may be <code>null</code>.
+     * @return the name of the topic, or <code>null</code> if the conversation is not stored.
+     */
+    public String getTopic(JID peer, String thread);
+
+    /**
+     * Stores the topic of a conversation.
+     *
+     * @param peer the JID at the other end of the conversation.
+     * @param thread the thread ID for the conversation, which may be <code>null</code>.
+     * @param topicName the name of the topic, or <code>null</code> for the default topic, which removes
+     *        the conversation from the store.
+     */
+    public void setTopic(JID peer, String thread, String topicName);
+
+    /**
+     * Removes a conversation from the store.
+     *
+     * @param peer the JID at the other end of the conversation.
+     * @param thread the thread ID for the conversation, which may be <code>null</code>.
+     */
+    public void remove(JID peer, String thread);
+
+    /**
+     * Writes out anything outstanding and releases any resources held by the store.
+     */
+    public void close();
+}
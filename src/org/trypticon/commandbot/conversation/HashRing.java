@@ -0,0 +1,110 @@
+package org.trypticon.commandbot.conversation;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A consistent hash ring, which assigns keys to a fixed set of nodes.
+ * <p>
+ * Each node is placed on the ring at a number of pseudo-random points, and a key belongs to the node at
+ * the first point at or after the key's own hash.  Adding a node to the ring only moves the keys which
+ * now fall just before one of its points, which is roughly a share of one in the new number of nodes;
+ * keys never move between nodes which were already there.  The points depend only on the node names, so
+ * every process given the same names agrees on where every key belongs.
+ */
+public class HashRing
+{
+    /**
+     * The points on the ring, in order.
+     */
+    private int[] points;
+
+    /**
+     * The node at each point.
+     */
+    private String[] owners;
+
+    /**
+     * Constructs the ring.
+     *
+     * @param nodes the names of the nodes.
+     * @param replicas the number of points for each node.  More points spread the keys more evenly.
+     * @throws IllegalArgumentException if there are no nodes, or <code>replicas</code> is not positive.
+     */
+    public HashRing(Collection<String> nodes, int replicas)
+    {
+        if (nodes.isEmpty() || replicas < 1)
+        {
+            throw new IllegalArgumentException("A hash ring needs at least one node and one replica");
+        }
+
+        // Sorted so that points which collide are broken the same way everywhere.
+        String[] names = nodes.toArray(new String[nodes.size()]);
+        Arrays.sort(names);
+
+        long[] entries = new long[names.length * replicas];
+        int count = 0;
+        for (int n = 0; n < names.length; n++)
+        {
+            for (int r = 0; r < replicas; r++)
+            {
+                int point = hash(names[n] + '#' + r);
+                entries[count++] = ((long) point << 32) | n;
+            }
+        }
+        Arrays.sort(entries);
+
+        points = new int[count];
+        owners = new String[count];
+        for (int i = 0; i < count; i++)
+        {
+            points[i] = (int) (entries[i] >> 32);
+            owners[i] = names[(int) entries[i]];
+        }
+    }
+
+    /**
+     * Gets the node which a key belongs to.
+     *
+     * @param key the key.
+     * @return the name of the node.
+     */
+    public String nodeFor(String key)
+    {
+        int h = hash(key);
+
+        // Binary search for the first point at or after the hash, wrapping around to the start.
+        int low = 0;
+        int high = points.length;
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if (points[middle] < h)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+        return owners[(low == points.length) ? 0 : low];
+    }
+
+    /**
+     * Hashes a string, mixing the bits so that similar strings land far apart on the ring.
+     *
+     * @param s the string.
+     * @return the hash.
+     */
+    private static int hash(String s)
+    {
+        int h = s.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,742 @@
+package org.trypticon.commandbot.conversation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.jabberstudio.jso.JID;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jdom.Element;
+
+/**
+ * A {@link ConversationStore} which keeps an append-only journal in a memory-mapped file on local disk.
+ * <p>
+ * Every change is appended to the journal, so storing a topic costs no more than copying a few bytes into
+ * memory.  The operating system writes the pages out in its own time, so a crash of the bot loses
+ * nothing, although a crash of the machine may lose the most recent changes.  The journal is read in the
+ * background as soon as the store is configured, so the bot connects just as quickly however many
+ * conversations are stored; only a conversation looked up before the read has finished waits for it.
+ * Once most of the journal is made up of superseded records, it is compacted in the background down to
+ * one record per stored conversation.  The new journal is written from a copy of the stored topics, so
+ * conversations are only held up while the few records appended in the meantime are carried over.
+ * <p>
+ * Each record is its length, an operation, the key and, when storing, the topic name.  The length is
+ * written last, so a record which was cut short reads as the end of the journal.  Keys hold the node and
+ * domain of the JID in lower case, so that they match conversations the way the conversation handler
+ * does.
+ */
+public class JournalConversationStore implements ConversationStore
+{
+    /**
+     * Log.
+     */
+    private static final Log log = LogFactory.getLog(JournalConversationStore.class);
+
+    /**
+     * The operation which stores a topic.
+     */
+    private static final byte PUT = 1;
+
+    /**
+     * The operation which removes a conversation.
+     */
+    private static final byte REMOVE = 2;
+
+    /**
+     * The longest key or topic name which can be stored, in bytes.
+     */
+    private static final int MAX_STRING_LENGTH = 0xFFFF;
+
+    /**
+     * The fewest records the journal must hold before it is worth compacting.
+     */
+    private static final int MIN_COMPACT_RECORDS = 1024;
+
+    /**
+     * The scheduler which reads and compacts journals, shared by all stores.
+     */
+    private static final ScheduledExecutorService compactor =
+            Executors.newSingleThreadScheduledExecutor(new CompactorThreadFactory());
+
+    /**
+     * The journal file.
+     */
+    private File file = new File("conversations.journal");
+
+    /**
+     * The size to map a new journal at, in bytes.
+     */
+    private int initialSize = 1048576;
+
+    /**
+     * How often to check whether the journal needs compacting, in milliseconds.
+     */
+    private long compactInterval = 60000;
+
+    /**
+     * The open journal file, or <code>null</code> if it isn't open.
+     */
+    private RandomAccessFile journal;
+
+    /**
+     * The mapped journal, positioned at the end of the last record, or <code>null</code> if changes can't
+     * be written.
+     */
+    private MappedByteBuffer buffer;
+
+    /**
+     * The stored topic names by key, or <code>null</code> if the journal hasn't been read yet.
+     */
+    private Map<String, String> topics;
+
+    /**
+     * A single copy of each topic name, so that a million conversations don't hold a million copies.
+     */
+    private Map<String, String> topicNames = new HashMap<String, String>();
+
+    /**
+     * The number of records in the journal.
+     */
+    private int records;
+
+    /**
+     * The periodic compaction check, or <code>null</code> if there is none.
+     */
+    private ScheduledFuture<?> compaction;
+
+    /**
+     * Configures the store.
+     *
+     * @param config the XML configuration, which may be <code>null</code>.
+     */
+    public synchronized void configure(Element config)
+    {
+        if (config != null)
+        {
+            String fileString = config.getChildTextTrim("file");
+            if (fileString != null)
+            {
+                file = new File(fileString);
+            }
+
+            String initialSizeString = config.getChildTextTrim("initialsize");
+            if (initialSizeString != null)
+            {
+                initialSize = Integer.parseInt(initialSizeString);
+            }
+
+            String compactIntervalString = config.getChildTextTrim("compactinterval");
+            if (compactIntervalString != null)
+            {
+                compactInterval = Long.parseLong(compactIntervalString);
+            }
+        }
+
+        if (initialSize < 1024 || compactInterval <= 0)
+        {
+            throw new IllegalArgumentException("Journal initial size must be at least 1024 bytes and compact " +
+                                               "interval must be positive");
+        }
+
+        if (compaction != null)
+        {
+            compaction.cancel(false);
+        }
+        compactor.execute(new Runnable()
+        {
+            public void run()
+            {
+                preload();
+            }
+        });
+        compaction = compactor.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                compactIfWorthwhile();
+            }
+        }, compactInterval, compactInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets the stored topic of a conversation.
+     *
+     * @param peer the JID at the other end of the conversation.
+     * @param thread the thread ID for the conversation, which may be <code>null</code>.
+     * @return the name of the topic, or <code>null</code> if the conversation is not stored.
+     */
+    public synchronized String getTopic(JID peer, String thread)
+    {
+        open();
+        return topics.get(key(peer, thread));
+    }
+
+    /**
+     * Stores the topic of a conversation.
+     *
+     * @param peer the JID at the other end of the conversation.
+     * @param thread the thread ID for the conversation, which may be <code>null</code>.
+     * @param topicName the name of the topic, or <code>null</code> for the default topic, which removes
+     *        the conversation from the store.
+     */
+    public synchronized void setTopic(JID peer, String thread, String topicName)
+    {
+        if (topicName == null)
+        {
+            remove(peer, thread);
+            return;
+        }
+
+        open();
+        String key = key(peer, thread);
+        if (topicName.equals(topics.get(key)))
+        {
+            return;
+        }
+
+        String sharedName = share(topicName);
+        topics.put(key, sharedName);
+        append(PUT, key, sharedName);
+    }
+
+    /**
+     * Removes a conversation from the store.
+     *
+     * @param peer the JID at the other end of the conversation.
+     * @param thread the thread ID for the conversation, which may be <code>null</code>.
+     */
+    public synchronized void remove(JID peer, String thread)
+    {
+        open();
+        String key = key(peer, thread);
+        if (topics.remove(key) != null)
+        {
+            append(REMOVE, key, null);
+        }
+    }
+
+    /**
+     * Writes out the journal and closes it.  The store can still be used afterwards, in which case the
+     * journal is read again.
+     */
+    public synchronized void close()
+    {
+        if (compaction != null)
+        {
+            compaction.cancel(false);
+            compaction = null;
+        }
+        if (buffer != null)
+        {
+            buffer.force();
+        }
+        closeJournal();
+        topics = null;
+    }
+
+    /**
+     * Reads the journal ahead of its first use, unless the store has been closed since it was configured.
+     * Runs on the shared compactor thread.
+     */
+    private synchronized void preload()
+    {
+        if (compaction != null)
+        {
+            open();
+        }
+    }
+
+    /**
+     * Opens and reads the journal, unless that has already been done.  If the journal can't be opened,
+     * conversations are only stored in memory.
+     */
+    private void open()
+    {
+        if (topics != null)
+        {
+            return;
+        }
+        topics = new HashMap<String, String>();
+        records = 0;
+
+        long start = System.currentTimeMillis();
+        try
+        {
+            journal = new RandomAccessFile(file, "rw");
+            FileChannel channel = journal.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), initialSize));
+            replay();
+        }
+        catch (IOException e)
+        {
+            log.error("Could not open conversation journal " + file + ", conversations will not survive a restart", e);
+            closeJournal();
+            return;
+        }
+
+        log.info("Read " + topics.size() + " stored conversations from " + records + " journal records in " +
+                 (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Reads every record in the journal, leaving the buffer positioned after the last one.
+     */
+    private void replay()
+    {
+        int position = 0;
+        int limit = buffer.limit();
+        while (position + 4 <= limit)
+        {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > limit - position - 4)
+            {
+                break;
+            }
+
+            buffer.position(position + 4);
+            byte operation;
+            String key;
+            String topicName = null;
+            try
+            {
+                operation = buffer.get();
+                key = canonicalKey(readString());
+                if (operation == PUT)
+                {
+                    topicName = readString();
+                }
+            }
+            catch (RuntimeException e)
+            {
+                log.warn("Corrupt record in conversation journal at " + position + ", ignoring the rest", e);
+                break;
+            }
+
+            if ((operation != PUT && operation != REMOVE) || buffer.position() != position + 4 + length)
+            {
+                log.warn("Corrupt record in conversation journal at " + position + ", ignoring the rest");
+                break;
+            }
+
+            if (operation == PUT)
+            {
+                topics.put(key, share(topicName));
+            }
+            else
+            {
+                topics.remove(key);
+            }
+
+            records++;
+            position += 4 + length;
+        }
+
+        // Anything after the last good record is a record which was cut short or corrupted.  Clear it, in
+        // case a shorter record is written over its start and leaves the rest looking like a record.
+        for (int i = position; i < limit; i++)
+        {
+            if (buffer.get(i) != 0)
+            {
+                for (int j = i; j < limit; j++)
+                {
+                    buffer.put(j, (byte) 0);
+                }
+                break;
+            }
+        }
+        buffer.position(position);
+    }
+
+    /**
+     * Appends a record to the journal.
+     *
+     * @param operation the operation.
+     * @param key the key.
+     * @param topicName the topic name, or <code>null</code> if there is none.
+     */
+    private void append(byte operation, String key, String topicName)
+    {
+        if (buffer == null)
+        {
+            return;
+        }
+
+        try
+        {
+            byte[] keyBytes = encode(key);
+            byte[] topicBytes = (topicName == null) ? null : encode(topicName);
+            int length = recordLength(keyBytes, topicBytes);
+
+            if (buffer.remaining() < 4 + length)
+            {
+                grow(4 + length);
+            }
+            writeRecord(buffer, operation, keyBytes, topicBytes);
+            records++;
+        }
+        catch (IOException e)
+        {
+            log.error("Could not write to conversation journal " + file + ", conversations will not survive a restart", e);
+            closeJournal();
+        }
+    }
+
+    /**
+     * Maps more of the journal file.
+     *
+     * @param needed the number of bytes needed after the current position.
+     * @throws IOException if the file could not be grown.
+     */
+    private void grow(int needed) throws IOException
+    {
+        int position = buffer.position();
+        long size = Math.max(2L * buffer.capacity(), (long) position + needed);
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new IOException("Conversation journal is full");
+        }
+
+        buffer = journal.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buffer.position(position);
+    }
+
+    /**
+     * Compacts the journal if most of its records have been superseded.  Runs on the shared compactor
+     * thread, and only holds the lock while copying the stored topics and while putting the new journal
+     * in place.
+     */
+    private void compactIfWorthwhile()
+    {
+        Map<String, String> snapshot;
+        RandomAccessFile snapshotJournal;
+        int snapshotPosition;
+        int snapshotRecords;
+        synchronized (this)
+        {
+            if (buffer == null || records < MIN_COMPACT_RECORDS || records < 2 * topics.size())
+            {
+                return;
+            }
+            snapshot = new HashMap<String, String>(topics);
+            snapshotJournal = journal;
+            snapshotPosition = buffer.position();
+            snapshotRecords = records;
+        }
+
+        try
+        {
+            compact(snapshot, snapshotJournal, snapshotPosition, snapshotRecords);
+        }
+        catch (IOException e)
+        {
+            log.warn("Could not compact conversation journal " + file + ", will try again later", e);
+        }
+    }
+
+    /**
+     * Writes a new journal with a single record for each conversation in a snapshot, then carries over
+     * anything appended to the old journal since the snapshot and puts the new journal in place of the old
+     * one.
+     *
+     * @param snapshot a copy of the stored topics.
+     * @param snapshotJournal the journal the snapshot was taken from.
+     * @param snapshotPosition the end of the last record in the journal when the snapshot was taken.
+     * @param snapshotRecords the number of records in the journal when the snapshot was taken.
+     * @throws IOException if the new journal could not be written.
+     */
+    private void compact(Map<String, String> snapshot, RandomAccessFile snapshotJournal, int snapshotPosition,
+                         int snapshotRecords) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        int oldRecords;
+        int newRecords;
+
+        File compacted = new File(file.getPath() + ".compact");
+        RandomAccessFile newJournal = new RandomAccessFile(compacted, "rw");
+        boolean replaced = false;
+        try
+        {
+            newJournal.setLength(0);
+
+            long length = 0;
+            for (Map.Entry<String, String> entry : snapshot.entrySet())
+            {
+                length += 4 + recordLength(encode(entry.getKey()), encode(entry.getValue()));
+            }
+
+            // Leave room to grow, so that the journal isn't remapped straight away.
+            long size = Math.max(initialSize, 2 * length);
+            if (size > Integer.MAX_VALUE)
+            {
+                throw new IOException("Conversation journal is full");
+            }
+
+            MappedByteBuffer newBuffer = newJournal.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            for (Map.Entry<String, String> entry : snapshot.entrySet())
+            {
+                writeRecord(newBuffer, PUT, encode(entry.getKey()), encode(entry.getValue()));
+            }
+            newBuffer.force();
+
+            synchronized (this)
+            {
+                if (journal != snapshotJournal)
+                {
+                    // The journal was closed or failed while compacting, so the snapshot is out of date.
+                    return;
+                }
+
+                // Later records supersede the snapshot's, so they can be copied over as they are.
+                int tail = buffer.position() - snapshotPosition;
+                if (newBuffer.remaining() < tail)
+                {
+                    int position = newBuffer.position();
+                    long newSize = Math.max(2L * newBuffer.capacity(), (long) position + tail);
+                    if (newSize > Integer.MAX_VALUE)
+                    {
+                        throw new IOException("Conversation journal is full");
+                    }
+                    newBuffer = newJournal.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+                    newBuffer.position(position);
+                }
+                ByteBuffer appended = buffer.duplicate();
+                appended.limit(buffer.position());
+                appended.position(snapshotPosition);
+                newBuffer.put(appended);
+                newBuffer.force();
+
+                if (!compacted.renameTo(file))
+                {
+                    // Some platforms won't rename over an existing file.
+                    if (!file.delete() || !compacted.renameTo(file))
+                    {
+                        throw new IOException("Could not rename " + compacted + " to " + file);
+                    }
+                }
+
+                oldRecords = records;
+                newRecords = snapshot.size() + records - snapshotRecords;
+                closeJournal();
+                journal = newJournal;
+                buffer = newBuffer;
+                records = newRecords;
+                replaced = true;
+            }
+        }
+        finally
+        {
+            if (!replaced)
+            {
+                newJournal.close();
+                compacted.delete();
+            }
+        }
+
+        log.info("Compacted conversation journal from " + oldRecords + " to " + newRecords + " records in " +
+                 (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Closes the journal file, after which changes are no longer written.
+     */
+    private void closeJournal()
+    {
+        buffer = null;
+        if (journal != null)
+        {
+            try
+            {
+                journal.close();
+            }
+            catch (IOException e)
+            {
+                log.warn("Error closing conversation journal " + file, e);
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * Gets the single shared copy of a topic name.
+     *
+     * @param topicName the topic name.
+     * @return the shared copy.
+     */
+    private String share(String topicName)
+    {
+        String sharedName = topicNames.get(topicName);
+        if (sharedName == null)
+        {
+            sharedName = topicName;
+            topicNames.put(topicName, topicName);
+        }
+        return sharedName;
+    }
+
+    /**
+     * Reads a string written by {@link #writeRecord(MappedByteBuffer, byte, byte[], byte[])}.
+     *
+     * @return the string.
+     */
+    private String readString()
+    {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return decode(bytes);
+    }
+
+    /**
+     * Works out the length of a record, not counting the length itself.
+     *
+     * @param keyBytes the encoded key.
+     * @param topicBytes the encoded topic name, or <code>null</code> if there is none.
+     * @return the length.
+     * @throws IOException if a string is too long to store.
+     */
+    private static int recordLength(byte[] keyBytes, byte[] topicBytes) throws IOException
+    {
+        if (keyBytes.length > MAX_STRING_LENGTH || (topicBytes != null && topicBytes.length > MAX_STRING_LENGTH))
+        {
+            throw new IOException("Key or topic name too long to store");
+        }
+        return 1 + 2 + keyBytes.length + ((topicBytes == null) ? 0 : 2 + topicBytes.length);
+    }
+
+    /**
+     * Writes a record at the buffer's position, which must have room for it.  The length goes in last.
+     *
+     * @param buffer the buffer.
+     * @param operation the operation.
+     * @param keyBytes the encoded key.
+     * @param topicBytes the encoded topic name, or <code>null</code> if there is none.
+     * @throws IOException if a string is too long to store.
+     */
+    private static void writeRecord(MappedByteBuffer buffer, byte operation, byte[] keyBytes, byte[] topicBytes)
+        throws IOException
+    {
+        int length = recordLength(keyBytes, topicBytes);
+        int position = buffer.position();
+
+        buffer.position(position + 4);
+        buffer.put(operation);
+        buffer.putShort((short) keyBytes.length);
+        buffer.put(keyBytes);
+        if (topicBytes != null)
+        {
+            buffer.putShort((short) topicBytes.length);
+            buffer.put(topicBytes);
+        }
+        buffer.putInt(position, length);
+    }
+
+    /**
+     * Works out the key for a conversation.
+     *
+     * @param peer the JID at the other end of the conversation.
+     * @param thread the thread ID for the conversation, which may be <code>null</code>.
+     * @return the key.
+     */
+    private static String key(JID peer, String thread)
+    {
+        // A null character can't appear in a JID, and separates the thread when there is one.
+        return canonicalKey((thread == null) ? peer.toString() : peer.toString() + '\u0000' + thread);
+    }
+
+    /**
+     * Lower-cases the node and domain of a key, which run up to the first slash or null character, leaving
+     * the resource and thread as they are.  Keys read from the journal go through here too, since older
+     * journals kept them as they were given.
+     *
+     * @param key the key.
+     * @return the key, or a copy with its node and domain in lower case.
+     */
+    private static String canonicalKey(String key)
+    {
+        int end = 0;
+        boolean upper = false;
+        while (end < key.length() && key.charAt(end) != '/' && key.charAt(end) != '\u0000')
+        {
+            upper |= Character.toLowerCase(key.charAt(end)) != key.charAt(end);
+            end++;
+        }
+        if (!upper)
+        {
+            return key;
+        }
+
+        StringBuilder builder = new StringBuilder(key.length());
+        for (int i = 0; i < end; i++)
+        {
+            builder.append(Character.toLowerCase(key.charAt(i)));
+        }
+        return builder.append(key, end, key.length()).toString();
+    }
+
+    /**
+     * Encodes a string as UTF-8.
+     *
+     * @param string the string.
+     * @return the bytes.
+     */
+    private static byte[] encode(String string)
+    {
+        try
+        {
+            return string.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException("UTF-8 is always supported", e);
+        }
+    }
+
+    /**
+     * Decodes a UTF-8 string.
+     *
+     * @param bytes the bytes.
+     * @return the string.
+     */
+    private static String decode(byte[] bytes)
+    {
+        try
+        {
+            return new String(bytes, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException("UTF-8 is always supported", e);
+        }
+    }
+
+    /**
+     * Thread factory for the shared compactor thread.  The thread is a daemon, so that it never keeps the
+     * JVM alive on its own.
+     */
+    private static class CompactorThreadFactory implements ThreadFactory
+    {
+        /**
+         * Creates a new thread.
+         *
+         * @param runnable the runnable for the thread to run.
+         * @return the thread.
+         */
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "journal-compactor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
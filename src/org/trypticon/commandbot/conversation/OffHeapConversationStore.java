@@ -0,0 +1,493 @@
+package org.trypticon.commandbot.conversation;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jabberstudio.jso.JID;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jdom.Element;
+
+/**
+ * A {@link ConversationStore} which keeps conversations outside the Java heap, in a compact binary form.
+ * <p>
+ * This is meant to be used with the conversation handler's <code>keepforgotten</code> option, so that
+ * only conversations which are actually in use are held as objects on the heap.  Idle conversations are
+ * forgotten by the handler as usual, but their peer, thread and topic stay here, costing a few dozen bytes
+ * each and nothing at all to the garbage collector, and are brought back when the peer next writes.
+ * Nothing survives a restart.
+ * <p>
+ * Entries are appended to a fixed-size arena in a direct buffer, and found through a hash index held in
+ * another.  Each entry is the offset of the next entry in its bucket, the hash, a live flag, the topic's
+ * number in a small table of topic names, and the key.  Removed entries are only marked dead; when the
+ * arena fills up it is compacted in place, and if it is still more than three quarters full, the oldest
+ * entries are dropped until it is half full.
+ */
+public class OffHeapConversationStore implements ConversationStore
+{
+    /**
+     * Log.
+     */
+    private static final Log log = LogFactory.getLog(OffHeapConversationStore.class);
+
+    /**
+     * The size of an entry apart from its key: next, hash, live flag, topic number and key length.
+     */
+    private static final int HEADER_SIZE = 4 + 4 + 1 + 2 + 2;
+
+    /**
+     * The offset of the hash within an entry.
+     */
+    private static final int HASH_OFFSET = 4;
+
+    /**
+     * The offset of the live flag within an entry.
+     */
+    private static final int LIVE_OFFSET = 8;
+
+    /**
+     * The offset of the topic number within an entry.
+     */
+    private static final int TOPIC_OFFSET = 9;
+
+    /**
+     * The offset of the key length within an entry.
+     */
+    private static final int KEY_LENGTH_OFFSET = 11;
+
+    /**
+     * The longest key which can be stored, in bytes.
+     */
+    private static final int MAX_KEY_LENGTH = 0xFFFF;
+
+    /**
+     * The size of the arena, in bytes.
+     */
+    private int size = 64 * 1048576;
+
+    /**
+     * The arena holding the entries, or <code>null</code> until first used.
+     */
+    private ByteBuffer arena;
+
+    /**
+     * The hash index, holding one more than the offset of the first entry in each bucket, or
+     * <code>0</code> for an empty bucket.
+     */
+    private IntBuffer index;
+
+    /**
+     * The offset in the arena where the next entry will go.
+     */
+    private int end;
+
+    /**
+     * The number of bytes taken up by dead entries.
+     */
+    private int deadBytes;
+
+    /**
+     * The number of live entries.
+     */
+    private int count;
+
+    /**
+     * The number of entries dropped to make room.
+     */
+    private long droppedCount;
+
+    /**
+     * The names of the topics, by number.
+     */
+    private List<String> topicNames = new ArrayList<String>();
+
+    /**
+     * The numbers of the topics, by name.
+     */
+    private Map<String, Integer> topicNumbers = new HashMap<String, Integer>();
+
+    /**
+     * Scratch space for moving entries during compaction.
+     */
+    private byte[] scratch;
+
+    /**
+     * Configures the store.
+     *
+     * @param config the XML configuration, which may be <code>null</code>.
+     */
+    public synchronized void configure(Element config)
+    {
+        if (config != null)
+        {
+            String sizeString = config.getChildTextTrim("size");
+            if (sizeString != null)
+            {
+                size = Integer.parseInt(sizeString);
+            }
+        }
+
+        if (size < 262144)
+        {
+            throw new IllegalArgumentException("Off-heap conversation store must be at least 262144 bytes");
+        }
+        close();
+    }
+
+    /**
+     * Gets the stored topic of a conversation.
+     *
+     * @param peer the JID at the other end of the conversation.
+     * @param thread the thread ID for the conversation, which may be <code>null</code>.
+     * @return the name of the topic, or <code>null</code> if the conversation is not stored.
+     */
+    public synchronized String getTopic(JID peer, String thread)
+    {
+        if (arena == null)
+        {
+            return null;
+        }
+
+        byte[] key = key(peer, thread);
+        int entry = find(key, hash(key));
+        return (entry < 0) ? null : topicNames.get(arena.getShort(entry + TOPIC_OFFSET) & 0xFFFF);
+    }
+
+    /**
+     * Stores the topic of a conversation.
+     *
+     * @param peer the JID at the other end of the conversation.
+     * @param thread the thread ID for the conversation, which may be <code>null</code>.
+     * @param topicName the name of the topic, or <code>null</code> for the default topic, which removes
+     *        the conversation from the store.
+     */
+    public synchronized void setTopic(JID peer, String thread, String topicName)
+    {
+        if (topicName == null)
+        {
+            remove(peer, thread);
+            return;
+        }
+
+        byte[] key = key(peer, thread);
+        if (key.length > MAX_KEY_LENGTH)
+        {
+            log.warn("Key too long to store conversation with " + peer);
+            return;
+        }
+
+        Integer topicNumber = topicNumbers.get(topicName);
+        if (topicNumber == null)
+        {
+            if (topicNames.size() > 0xFFFF)
+            {
+                log.warn("Too many topics to store conversation with " + peer);
+                return;
+            }
+            topicNumber = topicNames.size();
+            topicNames.add(topicName);
+            topicNumbers.put(topicName, topicNumber);
+        }
+
+        allocate();
+        int hash = hash(key);
+        int entry = find(key, hash);
+        if (entry >= 0)
+        {
+            arena.putShort(entry + TOPIC_OFFSET, (short) topicNumber.intValue());
+            return;
+        }
+
+        int entrySize = HEADER_SIZE + key.length;
+        if (end + entrySize > size)
+        {
+            compact(entrySize);
+        }
+
+        int bucket = hash & (index.capacity() - 1);
+        entry = end;
+        arena.putInt(entry, index.get(bucket));
+        arena.putInt(entry + HASH_OFFSET, hash);
+        arena.put(entry + LIVE_OFFSET, (byte) 1);
+        arena.putShort(entry + TOPIC_OFFSET, (short) topicNumber.intValue());
+        arena.putShort(entry + KEY_LENGTH_OFFSET, (short) key.length);
+        for (int i = 0; i < key.length; i++)
+        {
+            arena.put(entry + HEADER_SIZE + i, key[i]);
+        }
+        index.put(bucket, entry + 1);
+        end += entrySize;
+        count++;
+    }
+
+    /**
+     * Removes a conversation from the store.
+     *
+     * @param peer the JID at the other end of the conversation.
+     * @param thread the thread ID for the conversation, which may be <code>null</code>.
+     */
+    public synchronized void remove(JID peer, String thread)
+    {
+        if (arena == null)
+        {
+            return;
+        }
+
+        byte[] key = key(peer, thread);
+        int hash = hash(key);
+        int bucket = hash & (index.capacity() - 1);
+
+        int previous = -1;
+        int entry = index.get(bucket) - 1;
+        while (entry >= 0)
+        {
+            int next = arena.getInt(entry) - 1;
+            if (matches(entry, key, hash))
+            {
+                if (previous < 0)
+                {
+                    index.put(bucket, next + 1);
+                }
+                else
+                {
+                    arena.putInt(previous, next + 1);
+                }
+                arena.put(entry + LIVE_OFFSET, (byte) 0);
+                deadBytes += entrySize(entry);
+                count--;
+                return;
+            }
+            previous = entry;
+            entry = next;
+        }
+    }
+
+    /**
+     * Releases the memory held by the store, discarding everything in it.
+     */
+    public synchronized void close()
+    {
+        arena = null;
+        index = null;
+        scratch = null;
+        end = 0;
+        deadBytes = 0;
+        count = 0;
+    }
+
+    /**
+     * Gets the number of conversations in the store.
+     *
+     * @return the number of conversations.
+     */
+    public synchronized int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Gets the number of bytes of the arena in use, including dead entries not yet compacted away.
+     *
+     * @return the number of bytes.
+     */
+    public synchronized int getUsedBytes()
+    {
+        return end;
+    }
+
+    /**
+     * Gets the number of conversations dropped from the store to make room for others.
+     *
+     * @return the number of conversations.
+     */
+    public synchronized long getDroppedCount()
+    {
+        return droppedCount;
+    }
+
+    /**
+     * Allocates the arena and index, unless that has already been done.
+     */
+    private void allocate()
+    {
+        if (arena != null)
+        {
+            return;
+        }
+
+        arena = ByteBuffer.allocateDirect(size);
+
+        // Aim for around one bucket per entry, guessing at entries of 64 bytes.
+        int buckets = Integer.highestOneBit(Math.max(1024, size / 64));
+        index = ByteBuffer.allocateDirect(buckets * 4).asIntBuffer();
+    }
+
+    /**
+     * Finds the live entry for a key.
+     *
+     * @param key the key.
+     * @param hash the hash of the key.
+     * @return the offset of the entry, or <code>-1</code> if there is none.
+     */
+    private int find(byte[] key, int hash)
+    {
+        int entry = index.get(hash & (index.capacity() - 1)) - 1;
+        while (entry >= 0)
+        {
+            if (matches(entry, key, hash))
+            {
+                return entry;
+            }
+            entry = arena.getInt(entry) - 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Tests whether an entry has a key.
+     *
+     * @param entry the offset of the entry.
+     * @param key the key.
+     * @param hash the hash of the key.
+     * @return <code>true</code> if the entry has the key, <code>false</code> otherwise.
+     */
+    private boolean matches(int entry, byte[] key, int hash)
+    {
+        if (arena.getInt(entry + HASH_OFFSET) != hash ||
+            (arena.getShort(entry + KEY_LENGTH_OFFSET) & 0xFFFF) != key.length)
+        {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++)
+        {
+            if (arena.get(entry + HEADER_SIZE + i) != key[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the size of an entry.
+     *
+     * @param entry the offset of the entry.
+     * @return the size, in bytes.
+     */
+    private int entrySize(int entry)
+    {
+        return HEADER_SIZE + (arena.getShort(entry + KEY_LENGTH_OFFSET) & 0xFFFF);
+    }
+
+    /**
+     * Compacts the arena in place, sliding the live entries down over the dead ones and rebuilding the
+     * index.  If that doesn't leave enough room, the oldest entries are dropped as well.
+     *
+     * @param needed the number of bytes needed for the entry about to be added.
+     */
+    private void compact(int needed)
+    {
+        // Only drop entries if compaction alone would leave the arena more than three quarters full.
+        int liveBytes = end - deadBytes;
+        int toDrop = 0;
+        if (liveBytes + needed > size - size / 4)
+        {
+            toDrop = liveBytes + needed - size / 2;
+        }
+
+        if (scratch == null)
+        {
+            scratch = new byte[HEADER_SIZE + MAX_KEY_LENGTH];
+        }
+        for (int bucket = 0; bucket < index.capacity(); bucket++)
+        {
+            index.put(bucket, 0);
+        }
+
+        int dropped = 0;
+        int source = 0;
+        int destination = 0;
+        while (source < end)
+        {
+            int entrySize = entrySize(source);
+            if (arena.get(source + LIVE_OFFSET) != 0)
+            {
+                if (toDrop > 0)
+                {
+                    toDrop -= entrySize;
+                    dropped++;
+                    count--;
+                }
+                else
+                {
+                    // Going through scratch space keeps an overlapping move from copying over itself.
+                    ByteBuffer from = arena.duplicate();
+                    from.position(source);
+                    from.get(scratch, 0, entrySize);
+                    ByteBuffer to = arena.duplicate();
+                    to.position(destination);
+                    to.put(scratch, 0, entrySize);
+
+                    int bucket = arena.getInt(destination + HASH_OFFSET) & (index.capacity() - 1);
+                    arena.putInt(destination, index.get(bucket));
+                    index.put(bucket, destination + 1);
+                    destination += entrySize;
+                }
+            }
+            source += entrySize;
+        }
+
+        end = destination;
+        deadBytes = 0;
+        droppedCount += dropped;
+
+        if (dropped > 0)
+        {
+            log.warn("Off-heap conversation store full, dropped the " + dropped + " oldest conversations");
+        }
+    }
+
+    /**
+     * Works out the key for a conversation.
+     *
+     * @param peer the JID at the other end of the conversation.
+     * @param thread the thread ID for the conversation, which may be <code>null</code>.
+     * @return the key, encoded as UTF-8.
+     */
+    private static byte[] key(JID peer, String thread)
+    {
+        // A null character can't appear in a JID, and separates the thread when there is one.
+        String key = (thread == null) ? peer.toString() : peer.toString() + '\u0000' + thread;
+        try
+        {
+            return key.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException("UTF-8 is always supported", e);
+        }
+    }
+
+    /**
+     * Hashes a key.
+     *
+     * @param key the key.
+     * @return the hash.
+     */
+    private static int hash(byte[] key)
+    {
+        int hash = 0;
+        for (byte b : key)
+        {
+            hash = 31 * hash + b;
+        }
+
+        // Spread the bits, as only the low ones pick the bucket.
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,24 @@
+package org.trypticon.commandbot.conversation;
+
+/**
+ * Told by an {@link AsyncTopic} when it has finished handling a message.  Exactly one of the methods
+ * should be called, exactly once, from any thread.  Any later calls are ignored.
+ */
+public interface TopicCompletion
+{
+    /**
+     * Called when the message has been handled.
+     *
+     * @param ongoing <code>true</code> if the conversation is still in progress, <code>false</code> if
+     *        handling the message brought an end to it.
+     */
+    public void complete(boolean ongoing);
+
+    /**
+     * Called when handling the message failed.  The conversation carries on as if the message had been
+     * handled.
+     *
+     * @param cause the reason it failed.
+     */
+    public void fail(Throwable cause);
+}
@@ -18,10 +18,21 @@ package org.trypticon.xmpp.bot;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.trypticon.xmpp.bot.ConnectionStatistics.Phase;
+import org.trypticon.xmpp.sm.StreamManagement;
 import org.trypticon.xmpp.util.DummyTrustManager;
 import org.trypticon.xmpp.util.FixedCallbackHandler;
+import org.trypticon.xmpp.util.NotifyingSocketStreamSource;
+import org.trypticon.xmpp.util.OutboundQueue;
+import org.trypticon.xmpp.util.SocketConnector;
 import org.trypticon.xmpp.util.SrvLookup;
 
 import net.outer_planes.jso.JSO;
@@ -31,13 +42,18 @@ import org.jabberstudio.jso.JID;
 import org.jabberstudio.jso.JSOImplementation;
 import org.jabberstudio.jso.NSI;
 import org.jabberstudio.jso.PacketError;
+import org.jabberstudio.jso.PacketRouter;
 import org.jabberstudio.jso.Presence;
 import org.jabberstudio.jso.Stream;
 import org.jabberstudio.jso.StreamException;
+import org.jabberstudio.jso.StreamFeature;
+import org.jabberstudio.jso.StreamFeatureset;
+import org.jabberstudio.jso.event.PacketDispatcher;
+import org.jabberstudio.jso.features.FeatureConsumer;
+import org.jabberstudio.jso.features.FeatureContext;
 import org.jabberstudio.jso.features.FeaturesetConsumerManager;
 import org.jabberstudio.jso.sasl.SASLFeatureConsumer;
 import org.jabberstudio.jso.tls.StartTLSSocketFeatureConsumer;
-import org.jabberstudio.jso.tls.StartTLSSocketStreamSource;
 import org.jabberstudio.jso.util.Monitor;
 import org.jabberstudio.jso.util.PacketException;
 import org.jabberstudio.jso.util.Utilities;
@@ -56,6 +72,11 @@ public class BaseBot implements Bot
      */
     private static final Log log = LogFactory.getLog(BaseBot.class);
 
+    /**
+     * The longest time to wait for data before checking whether the bot has been stopped, in milliseconds.
+     */
+    private static final long READ_WAIT_TIMEOUT = 1000;
+
     /**
      * The configuration for the bot.
      */
@@ -66,10 +87,25 @@ public class BaseBot implements Bot
      */
     private Thread runnerThread;
 
+    /**
+     * The event loop group which processes the bot, or <code>null</code> if the bot has its own thread.
+     */
+    private EventLoopGroup eventLoopGroup;
+
+    /**
+     * The task processing the bot on the event loop group, when there is one.
+     */
+    private LoopRunner loopRunner;
+
     /**
      * The stream source.
      */
-    private StartTLSSocketStreamSource streamSource;
+    private NotifyingSocketStreamSource streamSource;
+
+    /**
+     * Whether to poll the stream at a fixed interval instead of waiting for data to arrive.
+     */
+    private boolean polling;
 
     /**
      * The XMPP stream to the server.
@@ -81,16 +117,97 @@ public class BaseBot implements Bot
      */
     private BaseRoster roster;
 
+    /**
+     * Decides how long to wait before reconnecting.
+     */
+    private ReconnectPolicy reconnectPolicy;
+
+    /**
+     * Counters and timings for connections to the server.
+     */
+    private ConnectionStatistics statistics;
+
+    /**
+     * Stream management, or <code>null</code> if it is not enabled.
+     */
+    private StreamManagement streamManagement;
+
+    /**
+     * Opens the socket to the server, trying several addresses at once if need be.
+     */
+    private SocketConnector socketConnector;
+
+    /**
+     * The longest time to wait for DNS when connecting, in milliseconds.
+     */
+    private long dnsTimeout = SrvLookup.DEFAULT_LOOKUP_TIMEOUT;
+
+    /**
+     * Sends keepalives and notices dead connections.
+     */
+    private KeepaliveMonitor keepalive;
+
+    /**
+     * Queue of packets waiting to be sent.
+     */
+    private OutboundQueue outboundQueue;
+
     /**
      * Constructs the bot.
      *
      * @param config the configuration for the bot.
      */
     public BaseBot(Element config)
+    {
+        this(config, null);
+    }
+
+    /**
+     * Constructs a bot which is processed on a shared event loop group instead of its own thread.
+     *
+     * @param config the configuration for the bot.
+     * @param eventLoopGroup the event loop group, or <code>null</code> to give the bot its own thread.
+     */
+    public BaseBot(Element config, EventLoopGroup eventLoopGroup)
     {
         this.config = config;
+        this.eventLoopGroup = eventLoopGroup;
 
         this.roster = new BaseRoster();
+
+        this.reconnectPolicy = new ReconnectPolicy();
+        this.reconnectPolicy.configure(config.getChild("connection").getChild("reconnect"));
+
+        this.statistics = new ConnectionStatistics();
+
+        Element connectionElement = config.getChild("connection");
+        this.socketConnector = new SocketConnector();
+        String attemptDelayString = connectionElement.getChildTextTrim("attemptdelay");
+        if (attemptDelayString != null)
+        {
+            this.socketConnector.setAttemptDelay(Long.parseLong(attemptDelayString));
+        }
+        String connectTimeoutString = connectionElement.getChildTextTrim("connecttimeout");
+        if (connectTimeoutString != null)
+        {
+            this.socketConnector.setConnectTimeout(Integer.parseInt(connectTimeoutString));
+        }
+        String dnsTimeoutString = connectionElement.getChildTextTrim("dnstimeout");
+        if (dnsTimeoutString != null)
+        {
+            this.dnsTimeout = Long.parseLong(dnsTimeoutString);
+        }
+
+        this.outboundQueue = new OutboundQueue(eventLoopGroup);
+        this.outboundQueue.configure(connectionElement.getChild("outbound"));
+
+        this.keepalive = new KeepaliveMonitor();
+        this.keepalive.configure(connectionElement.getChild("keepalive"));
+
+        if ("true".equals(connectionElement.getChildTextTrim("streammanagement")))
+        {
+            this.streamManagement = new StreamManagement();
+        }
     }
 
     /**
@@ -98,7 +215,15 @@ public class BaseBot implements Bot
      */
     public synchronized void start()
     {
-        if (runnerThread == null)
+        if (eventLoopGroup != null)
+        {
+            if (loopRunner == null)
+            {
+                loopRunner = new LoopRunner();
+                loopRunner.wakeUp();
+            }
+        }
+        else if (runnerThread == null)
         {
             runnerThread = new Thread(new BotRunner());
             runnerThread.start();
@@ -110,12 +235,29 @@ public class BaseBot implements Bot
      */
     public synchronized void stop()
     {
+        if (loopRunner != null)
+        {
+            loopRunner.stop();
+            loopRunner = null;
+        }
+
         if (runnerThread != null)
         {
             runnerThread = null;
         }
     }
 
+    /**
+     * Wakes up the bot on the event loop group, if it is running there.
+     */
+    private synchronized void wakeUpLoop()
+    {
+        if (loopRunner != null)
+        {
+            loopRunner.wakeUp();
+        }
+    }
+
     /**
      * Gets a reference to the roster.
      *
@@ -126,6 +268,16 @@ public class BaseBot implements Bot
         return roster;
     }
 
+    /**
+     * Gets the counters and timings for connections to the server.
+     *
+     * @return the connection statistics.
+     */
+    public ConnectionStatistics getConnectionStatistics()
+    {
+        return statistics;
+    }
+
     /**
      * Attach listeners to the bot.  Subclasses should remember to call this method.
      */
@@ -141,6 +293,37 @@ public class BaseBot implements Bot
      */
     public boolean connect()
     {
+        boolean connected = connectAndLogin();
+
+        statistics.recordAttempt(connected);
+        if (connected)
+        {
+            reconnectPolicy.connected();
+            outboundQueue.attach(stream, streamSource);
+
+            // A bot with its own thread checks in often enough to send keepalives without being woken.
+            keepalive.start(streamSource, (eventLoopGroup == null) ? null : new Runnable()
+            {
+                public void run()
+                {
+                    wakeUpLoop();
+                }
+            });
+            log.debug("Connected.  Connection statistics: " + statistics);
+        }
+
+        return connected;
+    }
+
+    /**
+     * Performs the work of {@link #connect()}, recording the time taken by each phase.
+     *
+     * @return <code>true</code> if connection is successful.
+     */
+    private boolean connectAndLogin()
+    {
+        PhaseTimer timer = new PhaseTimer();
+
         JSOImplementation jso = JSO.getInstance();
 
         Element connectionElement = config.getChild("connection");
@@ -150,66 +333,92 @@ public class BaseBot implements Bot
 
         try
         {
-            InetSocketAddress address = SrvLookup.resolveXmppClient(clientJID.getDomain());
+            boolean tls = "true".equals(connectionElement.getChildTextTrim("tls"));
+            polling = "true".equals(connectionElement.getChildTextTrim("polling"));
 
             String hostname = connectionElement.getChildTextTrim("hostname");
-            if (hostname == null)
+            String portString = connectionElement.getChildTextTrim("port");
+            int port = (portString == null) ? -1 : Integer.parseInt(portString);
+            if (port == -1 && tls)
             {
-                hostname = address.getHostName();
+                port = 5223;
             }
 
-            boolean tls = "true".equals(connectionElement.getChildTextTrim("tls"));
-
-            String portString = connectionElement.getChildTextTrim("port");
-            int port = (portString == null) ? -1 : Integer.parseInt(portString);
-            if (port == -1)
+            Set<InetSocketAddress> addresses = new LinkedHashSet<InetSocketAddress>();
+            if (hostname != null)
             {
-                if (tls)
-                {
-                    port = 5223;
-                }
-                else
+                // A configured host is connected to directly, so that it works even when DNS doesn't.
+                addresses.add(InetSocketAddress.createUnresolved(hostname, (port == -1) ? 5222 : port));
+            }
+            else
+            {
+                // A configured port replaces the one from each SRV record.
+                timer.begin(Phase.SRV_LOOKUP);
+                List<InetSocketAddress> targets = SrvLookup.resolveXmppClientTargets(clientJID.getDomain(), dnsTimeout);
+                for (InetSocketAddress target : targets)
                 {
-                    port = address.getPort();
+                    addresses.add(InetSocketAddress.createUnresolved(target.getHostName(),
+                                                                     (port == -1) ? target.getPort() : port));
                 }
             }
 
-            streamSource = new StartTLSSocketStreamSource(hostname, port);
+            timer.begin(Phase.TCP_CONNECT);
+            Socket socket = socketConnector.connect(new ArrayList<InetSocketAddress>(addresses));
+            streamSource = new NotifyingSocketStreamSource(socket);
             streamSource.getTLSContext().init(null, DummyTrustManager.asArray(), null);
 
             // Old-style TLS requires negotiation before sending any data.
             if (tls)
             {
+                timer.begin(Phase.TLS);
                 streamSource.negotiateClientTLS();
             }
+
+            timer.end();
         }
         catch (IOException e)
         {
+            timer.fail();
             log.error("Failure to create stream source", e);
             return false;
         }
         catch (GeneralSecurityException e)
         {
+            timer.fail();
             log.error("TLS is not supported by your JRE", e);
             return false;
         }
+        catch (InterruptedException e)
+        {
+            timer.fail();
+            log.warn("Interrupted while connecting");
+            Thread.currentThread().interrupt();
+            return false;
+        }
 
         // Create the stream...
         stream = jso.createStream(Utilities.CLIENT_NAMESPACE);
 
         // Attach listeners to the stream.
+        if (streamManagement != null)
+        {
+            streamManagement.attach(stream);
+        }
         attachListeners();
 
         // Try to connect.
         try
         {
+            timer.begin(Phase.STREAM_OPEN);
             stream.connect(streamSource);
             stream.getOutboundContext().setTo(serverJID);
             stream.getOutboundContext().setVersion("1.0");
             stream.open(5000);
+            timer.end();
         }
         catch (StreamException e)
         {
+            timer.fail();
             log.error("Failure to connect to stream", e);
             return false;
         }
@@ -226,7 +435,9 @@ public class BaseBot implements Bot
             }
             else if ("".equals(version))
             {
+                timer.begin(Phase.SASL);
                 authLogin(clientJID, password);
+                timer.end();
             }
             else
             {
@@ -235,19 +446,29 @@ public class BaseBot implements Bot
         }
         catch (PacketException e)
         {
+            timer.fail();
             log.error("Packet error while authenticating", e);
             return false;
         }
         catch (StreamException e)
         {
+            timer.fail();
             log.error("Stream error while authenticating", e);
             return false;
         }
 
+        // A resumed session keeps its presence, roster and conversations as they were.
+        if (streamManagement != null && streamManagement.isResumed())
+        {
+            return true;
+        }
+        roster.reset();
+
         // Set presence to online, but with negative priority.  Servers compliant with XMPP will therefore
         // not send us any messages which were sent to the bare JID.
         try
         {
+            timer.begin(Phase.PRESENCE);
             String priorityString = connectionElement.getChildTextTrim("priority");
             int priority = (priorityString == null) ? -1 : Integer.parseInt(priorityString);
 
@@ -255,9 +476,11 @@ public class BaseBot implements Bot
                     stream.getDataFactory().createPacketNode(new NSI("presence", Utilities.CLIENT_NAMESPACE));
             presence.setPriority(priority);
             stream.send(presence);
+            timer.end();
         }
         catch (StreamException e)
         {
+            timer.fail();
             log.error("Failure to set presence", e);
             return false;
         }
@@ -275,20 +498,40 @@ public class BaseBot implements Bot
     {
         FeaturesetConsumerManager manager = new FeaturesetConsumerManager();
 
-        StartTLSSocketFeatureConsumer tls = new StartTLSSocketFeatureConsumer(streamSource);
+        FeatureConsumer tls = new TimedFeatureConsumer(new StartTLSSocketFeatureConsumer(streamSource), Phase.TLS);
         manager.registerFeatureConsumer(tls);
 
-        SASLFeatureConsumer sasl = new SASLFeatureConsumer();
-        sasl.getClientInfo().setServer(client.getDomain());
-        sasl.getClientInfo().setCallbackHandler(new FixedCallbackHandler(client.getNode(), password));
+        SASLFeatureConsumer saslConsumer = new SASLFeatureConsumer();
+        saslConsumer.getClientInfo().setServer(client.getDomain());
+        saslConsumer.getClientInfo().setCallbackHandler(new FixedCallbackHandler(client.getNode(), password));
+        FeatureConsumer sasl = new TimedFeatureConsumer(saslConsumer, Phase.SASL);
         manager.registerFeatureConsumer(sasl);
 
-        BindFeatureConsumer bind = new BindFeatureConsumer(client.getResource());
+        // Resuming a session replaces binding a resource and establishing a session.
+        if (streamManagement != null)
+        {
+            manager.registerFeatureConsumer(streamManagement.createResumeConsumer());
+        }
+
+        FeatureConsumer bind = new TimedFeatureConsumer(new BindFeatureConsumer(client.getResource()), Phase.BIND);
+        if (streamManagement != null)
+        {
+            bind = streamManagement.unlessResumed(bind);
+        }
         manager.registerFeatureConsumer(bind);
 
-        SessionFeatureConsumer session = new SessionFeatureConsumer(false);
+        FeatureConsumer session = new TimedFeatureConsumer(new SessionFeatureConsumer(false), Phase.SESSION);
+        if (streamManagement != null)
+        {
+            session = streamManagement.unlessResumed(session);
+        }
         manager.registerFeatureConsumer(session);
 
+        if (streamManagement != null)
+        {
+            manager.registerFeatureConsumer(streamManagement.createEnableConsumer());
+        }
+
         try
         {
             // Attach and run the consumers.
@@ -319,9 +562,19 @@ public class BaseBot implements Bot
             // If the SASL consumer didn't complete, try an older-style login.
             if (!manager.isFeatureConsumerCompleted(sasl))
             {
-                authLogin(client, password);
+                PhaseTimer timer = new PhaseTimer();
+                timer.begin(Phase.SASL);
+                try
+                {
+                    authLogin(client, password);
+                    timer.end();
+                }
+                finally
+                {
+                    timer.fail();
+                }
             }
-            else
+            else if (streamManagement == null || !streamManagement.isResumed())
             {
                 // Make sure the resource was bound.
                 if (!manager.isFeatureConsumerCompleted(bind))
@@ -360,6 +613,9 @@ public class BaseBot implements Bot
      */
     private void disconnect()
     {
+        keepalive.stop();
+        outboundQueue.detach();
+
         try
         {
             if (stream != null)
@@ -381,13 +637,70 @@ public class BaseBot implements Bot
         }
     }
 
+    /**
+     * Processes everything which has arrived on the stream so far.
+     *
+     * @return <code>true</code> if the stream is still usable, <code>false</code> if the bot needs to reconnect.
+     */
+    private boolean processStream()
+    {
+        try
+        {
+            do
+            {
+                stream.process();
+            }
+            while (!polling && streamSource.hasPendingData() && isConnected());
+
+            keepalive.sendIfDue(stream);
+        }
+        catch (StreamException e)
+        {
+            log.error("Error processing stream", e);
+            connectionLost();
+            return false;
+        }
+
+        if (streamSource.isEnded())
+        {
+            log.warn("Connection to server was lost");
+            connectionLost();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Notes that the connection was lost, reconnecting straight away if it was closed for being dead.
+     */
+    private void connectionLost()
+    {
+        statistics.recordLoss();
+        if (keepalive.isDead())
+        {
+            reconnectPolicy.reconnectImmediately();
+        }
+    }
+
     /**
      * Tests if the bot is connected.
      * @return <code>true</code> if the bot is connected, <code>false</code> otherwise.
      */
     public boolean isConnected()
     {
-        return (stream != null && stream.getCurrentStatus() == Stream.OPENED);
+        return (stream != null && stream.getCurrentStatus() == Stream.OPENED && !streamSource.isEnded());
+    }
+
+    /**
+     * Gets the queue for sending packets without blocking.  The queue outlives the connection, so it can be
+     * handed out before the bot connects.
+     *
+     * @return the outbound queue.
+     */
+    public OutboundQueue getOutboundQueue()
+    {
+        return outboundQueue;
     }
 
     /**
@@ -400,6 +713,139 @@ public class BaseBot implements Bot
         return stream;
     }
 
+    /**
+     * Times the phases of connecting, one after another, and records them in the statistics.
+     */
+    private class PhaseTimer
+    {
+        /**
+         * The phase currently being timed, or <code>null</code> if none is.
+         */
+        private Phase phase;
+
+        /**
+         * The time the current phase began.
+         */
+        private long startTime;
+
+        /**
+         * Begins timing a phase.  If another phase was being timed, it is recorded as having succeeded.
+         *
+         * @param phase the phase.
+         */
+        public void begin(Phase phase)
+        {
+            end();
+            this.phase = phase;
+            this.startTime = System.currentTimeMillis();
+        }
+
+        /**
+         * Records the current phase, if any, as having succeeded.
+         */
+        public void end()
+        {
+            record(true);
+        }
+
+        /**
+         * Records the current phase, if any, as having failed.
+         */
+        public void fail()
+        {
+            record(false);
+        }
+
+        /**
+         * Records the current phase, if any.
+         *
+         * @param succeeded whether the phase succeeded.
+         */
+        private void record(boolean succeeded)
+        {
+            if (phase != null)
+            {
+                statistics.recordPhase(phase, System.currentTimeMillis() - startTime, succeeded);
+                phase = null;
+            }
+        }
+    }
+
+    /**
+     * Wraps a feature consumer to record the time it takes in the statistics.
+     */
+    private class TimedFeatureConsumer implements FeatureConsumer
+    {
+        /**
+         * The wrapped consumer.
+         */
+        private FeatureConsumer consumer;
+
+        /**
+         * The phase which the consumer performs.
+         */
+        private Phase phase;
+
+        /**
+         * Constructs the timed consumer.
+         *
+         * @param consumer the consumer to wrap.
+         * @param phase the phase which the consumer performs.
+         */
+        private TimedFeatureConsumer(FeatureConsumer consumer, Phase phase)
+        {
+            this.consumer = consumer;
+            this.phase = phase;
+        }
+
+        public StreamFeature findFeature(StreamFeatureset featureset)
+        {
+            return consumer.findFeature(featureset);
+        }
+
+        public void consume(final FeatureContext context) throws Exception
+        {
+            final PhaseTimer timer = new PhaseTimer();
+            timer.begin(phase);
+
+            // Consumers complete asynchronously, so we find out when via the context.
+            consumer.consume(new FeatureContext()
+            {
+                public StreamFeature getFeature()
+                {
+                    return context.getFeature();
+                }
+
+                public PacketRouter getRouter()
+                {
+                    return context.getRouter();
+                }
+
+                public PacketDispatcher getDispatcher()
+                {
+                    return context.getDispatcher();
+                }
+
+                public void completeFailed(Throwable failure)
+                {
+                    timer.fail();
+                    context.completeFailed(failure);
+                }
+
+                public void completeSucceeded(boolean restart)
+                {
+                    timer.end();
+                    context.completeSucceeded(restart);
+                }
+            });
+        }
+
+        public void reset()
+        {
+            consumer.reset();
+        }
+    }
+
     /**
      * <code>Runnable</code> which runs the bot.
      */
@@ -412,44 +858,13 @@ public class BaseBot implements Bot
             {
                 try
                 {
-                    if (!connect())
+                    if (connect())
                     {
-                        try
-                        {
-                            log.warn("Failed to connect.  Sleeping for a while before trying again.");
-                            Thread.sleep(20000);
-                            continue;
-                        }
-                        catch (InterruptedException e)
-                        {
-                            break;
-                        }
+                        processUntilDisconnected(currentThread);
                     }
-
-                    // Main processing loop.
-                    while (runnerThread == currentThread)
+                    else
                     {
-                        // Process a single packet.
-                        try
-                        {
-                            stream.process();
-                        }
-                        catch (StreamException e)
-                        {
-                            log.error("Error processing stream", e);
-                            break;
-                        }
-
-                        // Surely there is a better way to do this by now... can't we _wait_ for data?
-                        try
-                        {
-                            Thread.sleep(Monitor.DEFAULT_PROC_INTERVAL);
-                        }
-                        catch (InterruptedException e)
-                        {
-                            log.warn("Thread interrupted", e);
-                            break;
-                        }
+                        log.warn("Failed to connect.");
                     }
                 }
                 catch (Throwable t)
@@ -460,7 +875,190 @@ public class BaseBot implements Bot
                 {
                     disconnect();
                 }
+
+                // Back off before trying again, unless we're stopping anyway.
+                if (runnerThread == currentThread)
+                {
+                    try
+                    {
+                        long delay = reconnectPolicy.nextDelay();
+                        log.warn("Reconnecting in " + delay + "ms");
+                        Thread.sleep(delay);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        break;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Main processing loop.  Runs until the connection is lost or the bot is stopped.
+         *
+         * @param currentThread the thread running the bot.
+         */
+        private void processUntilDisconnected(Thread currentThread)
+        {
+            while (runnerThread == currentThread)
+            {
+                // Process everything which has arrived so far.
+                if (!processStream())
+                {
+                    break;
+                }
+
+                // Wait for more data, or fall back to polling if configured to.
+                try
+                {
+                    if (polling)
+                    {
+                        Thread.sleep(Monitor.DEFAULT_PROC_INTERVAL);
+                    }
+                    else
+                    {
+                        streamSource.awaitReadable(READ_WAIT_TIMEOUT);
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    log.warn("Thread interrupted", e);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * <code>Runnable</code> which runs the bot on an {@link EventLoopGroup}.  Each run performs whatever
+     * step the bot needs next, whether that is connecting, processing incoming data or disconnecting,
+     * and then returns the thread to the group.  The runner is only ever queued once at a time, so it
+     * never runs on two threads at once.
+     */
+    private class LoopRunner implements Runnable
+    {
+        /**
+         * Set while the runner is queued or running.
+         */
+        private AtomicBoolean scheduled = new AtomicBoolean();
+
+        /**
+         * Set once the bot has been stopped.
+         */
+        private volatile boolean stopped;
+
+        /**
+         * Whether the bot is currently connected.  Only accessed while running.
+         */
+        private boolean connected;
+
+        /**
+         * Callback for the stream source, to run the bot when data arrives.
+         */
+        private Runnable wakeUpCallback = new Runnable()
+        {
+            public void run()
+            {
+                wakeUp();
+            }
+        };
+
+        /**
+         * Queues the runner on the event loop group, unless it is already queued or running.
+         */
+        public void wakeUp()
+        {
+            if (scheduled.compareAndSet(false, true))
+            {
+                eventLoopGroup.execute(this);
+            }
+        }
+
+        /**
+         * Stops the bot, disconnecting it on the event loop group.
+         */
+        public void stop()
+        {
+            stopped = true;
+            wakeUp();
+        }
+
+        public void run()
+        {
+            try
+            {
+                if (stopped)
+                {
+                    if (connected)
+                    {
+                        close();
+                    }
+                    return;
+                }
+
+                if (!connected)
+                {
+                    if (!connect())
+                    {
+                        // A failed login may have got as far as opening the stream, so tear down whatever it left.
+                        disconnect();
+                        scheduleReconnect();
+                        return;
+                    }
+
+                    connected = true;
+                    streamSource.setReadableCallback(wakeUpCallback);
+                }
+
+                if (!processStream())
+                {
+                    close();
+                    scheduleReconnect();
+                }
+            }
+            catch (Throwable t)
+            {
+                log.error("Unexpected error from reconnection loop, reconnecting.", t);
+                if (connected)
+                {
+                    close();
+                }
+                else
+                {
+                    disconnect();
+                }
+                scheduleReconnect();
             }
+            finally
+            {
+                scheduled.set(false);
+
+                // Anything which arrived while we were running wouldn't have been able to queue us again.
+                if (connected && (stopped || streamSource.hasPendingData() || streamSource.isEnded()))
+                {
+                    wakeUp();
+                }
+            }
+        }
+
+        /**
+         * Schedules the next connection attempt according to the reconnect policy.
+         */
+        private void scheduleReconnect()
+        {
+            long delay = reconnectPolicy.nextDelay();
+            log.warn("Reconnecting in " + delay + "ms");
+            eventLoopGroup.schedule(wakeUpCallback, delay);
+        }
+
+        /**
+         * Detaches from the current stream source and disconnects.
+         */
+        private void close()
+        {
+            connected = false;
+            streamSource.setReadableCallback(null);
+            disconnect();
         }
     }
 }
@@ -78,7 +78,8 @@ public class BaseRoster implements Roster
     }
 
     /**
-     * Attaches the roster to a stream, resetting all state.
+     * Attaches the roster to a stream.  Presence already held is kept, as the stream may be resuming
+     * the previous session; {@link #reset()} should be called if it is not.
      *
      * @param stream the stream.
      * @throws IllegalArgumentException if <code>stream</code> is null.
@@ -100,14 +101,19 @@ public class BaseRoster implements Roster
 
         // TODO: Fetch the actual roster.
 
-        // Any presence we previously held is invalidated now.
-        presenceMap.clear();
-
         // Attach the handler to the new stream, which finally becomes the current stream.
         stream.addPacketListener(PacketEvent.RECEIVED, presenceHandler);
         this.stream = stream;
     }
 
+    /**
+     * Discards all presence held, as the server will send it again for a new session.
+     */
+    protected void reset()
+    {
+        presenceMap.clear();
+    }
+
     /**
      * Handles incoming presence packets.
      */
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2004-2005 Trypticon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trypticon.xmpp.bot;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Counters and timings for a bot's connections to the server.
+ */
+public class ConnectionStatistics
+{
+    /**
+     * The phases of connecting to the server.
+     */
+    public enum Phase
+    {
+        /**
+         * Looking up the server's host and port in DNS.
+         */
+        SRV_LOOKUP,
+
+        /**
+         * Opening the TCP connection.
+         */
+        TCP_CONNECT,
+
+        /**
+         * Exchanging stream headers.
+         */
+        STREAM_OPEN,
+
+        /**
+         * Negotiating TLS, either old-style or via STARTTLS.
+         */
+        TLS,
+
+        /**
+         * Authenticating, via SASL or the older non-SASL authentication.
+         */
+        SASL,
+
+        /**
+         * Binding the resource.
+         */
+        BIND,
+
+        /**
+         * Establishing the session.
+         */
+        SESSION,
+
+        /**
+         * Sending the initial presence.
+         */
+        PRESENCE
+    }
+
+    /**
+     * Timings for each phase.
+     */
+    private Map<Phase, Timing> timings = new EnumMap<Phase, Timing>(Phase.class);
+
+    /**
+     * The number of connection attempts.
+     */
+    private long attempts;
+
+    /**
+     * The number of connection attempts which failed.
+     */
+    private long failures;
+
+    /**
+     * The number of established connections which were later lost.
+     */
+    private long losses;
+
+    /**
+     * Constructs the statistics.
+     */
+    public ConnectionStatistics()
+    {
+        for (Phase phase : Phase.values())
+        {
+            timings.put(phase, new Timing());
+        }
+    }
+
+    /**
+     * Records a connection attempt.
+     *
+     * @param succeeded whether the attempt succeeded.
+     */
+    public synchronized void recordAttempt(boolean succeeded)
+    {
+        attempts++;
+        if (!succeeded)
+        {
+            failures++;
+        }
+    }
+
+    /**
+     * Records the loss of an established connection.
+     */
+    public synchronized void recordLoss()
+    {
+        losses++;
+    }
+
+    /**
+     * Records the completion of a phase.
+     *
+     * @param phase the phase.
+     * @param millis the time the phase took, in milliseconds.
+     * @param succeeded whether the phase succeeded.
+     */
+    public synchronized void recordPhase(Phase phase, long millis, boolean succeeded)
+    {
+        Timing timing = timings.get(phase);
+        timing.count++;
+        if (!succeeded)
+        {
+            timing.failures++;
+        }
+        timing.totalTime += millis;
+        timing.lastTime = millis;
+        timing.maxTime = Math.max(timing.maxTime, millis);
+    }
+
+    /**
+     * Gets the number of connection attempts.
+     *
+     * @return the number of connection attempts.
+     */
+    public synchronized long getAttempts()
+    {
+        return attempts;
+    }
+
+    /**
+     * Gets the number of connection attempts which failed.
+     *
+     * @return the number of failed connection attempts.
+     */
+    public synchronized long getFailures()
+    {
+        return failures;
+    }
+
+    /**
+     * Gets the number of established connections which were later lost.
+     *
+     * @return the number of lost connections.
+     */
+    public synchronized long getLosses()
+    {
+        return losses;
+    }
+
+    /**
+     * Gets the number of times a phase was performed.
+     *
+     * @param phase the phase.
+     * @return the number of times the phase was performed, whether it succeeded or not.
+     */
+    public synchronized long getPhaseCount(Phase phase)
+    {
+        return timings.get(phase).count;
+    }
+
+    /**
+     * Gets the number of times a phase failed.
+     *
+     * @param phase the phase.
+     * @return the number of times the phase failed.
+     */
+    public synchronized long getPhaseFailures(Phase phase)
+    {
+        return timings.get(phase).failures;
+    }
+
+    /**
+     * Gets the total time spent in a phase.
+     *
+     * @param phase the phase.
+     * @return the total time, in milliseconds.
+     */
+    public synchronized long getPhaseTotalTime(Phase phase)
+    {
+        return timings.get(phase).totalTime;
+    }
+
+    /**
+     * Gets the time the most recent performance of a phase took.
+     *
+     * @param phase the phase.
+     * @return the time, in milliseconds.
+     */
+    public synchronized long getPhaseLastTime(Phase phase)
+    {
+        return timings.get(phase).lastTime;
+    }
+
+    /**
+     * Gets the longest time a phase has taken.
+     *
+     * @param phase the phase.
+     * @return the time, in milliseconds.
+     */
+    public synchronized long getPhaseMaxTime(Phase phase)
+    {
+        return timings.get(phase).maxTime;
+    }
+
+    /**
+     * Gets a summary of the statistics, for logging.
+     *
+     * @return the summary.
+     */
+    public synchronized String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append("attempts=").append(attempts);
+        builder.append(" failures=").append(failures);
+        builder.append(" losses=").append(losses);
+        for (Map.Entry<Phase, Timing> entry : timings.entrySet())
+        {
+            Timing timing = entry.getValue();
+            builder.append(' ').append(entry.getKey()).append("=[count=").append(timing.count);
+            builder.append(" failures=").append(timing.failures);
+            builder.append(" last=").append(timing.lastTime);
+            builder.append(" max=").append(timing.maxTime);
+            builder.append(" total=").append(timing.totalTime).append(']');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Counters and timings for a single phase.
+     */
+    private static class Timing
+    {
+        /**
+         * The number of times the phase was performed.
+         */
+        private long count;
+
+        /**
+         * The number of times the phase failed.
+         */
+        private long failures;
+
+        /**
+         * The total time spent in the phase, in milliseconds.
+         */
+        private long totalTime;
+
+        /**
+         * The time the most recent performance of the phase took, in milliseconds.
+         */
+        private long lastTime;
+
+        /**
+         * The longest time the phase has taken, in milliseconds.
+         */
+        private long maxTime;
+    }
+}
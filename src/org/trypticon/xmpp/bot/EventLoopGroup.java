@@ -0,0 +1,142 @@
+/*
+ * Copyright 2004-2005 Trypticon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trypticon.xmpp.bot;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A small, fixed set of threads shared between many bots.
+ * <p>
+ * A {@link BaseBot} constructed with a group doesn't get a thread of its own.  Instead, its stream is
+ * processed on one of the group's threads whenever data arrives, and its reconnection attempts are
+ * scheduled on the group as well.  This keeps the number of threads flat no matter how many bots are
+ * running in the same JVM.
+ * <p>
+ * Connecting and logging in is still a blocking operation, so a bot occupies one of the group's
+ * threads while it connects.
+ */
+public class EventLoopGroup implements Executor
+{
+    /**
+     * Logger.
+     */
+    private static final Log log = LogFactory.getLog(EventLoopGroup.class);
+
+    /**
+     * The executor providing the threads.
+     */
+    private ScheduledExecutorService executor;
+
+    /**
+     * Constructs a group with one thread per available processor.
+     */
+    public EventLoopGroup()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a group.
+     *
+     * @param threads the number of threads in the group.
+     * @throws IllegalArgumentException if <code>threads</code> is less than one.
+     */
+    public EventLoopGroup(int threads)
+    {
+        if (threads < 1)
+        {
+            throw new IllegalArgumentException("An event loop group needs at least one thread");
+        }
+
+        executor = Executors.newScheduledThreadPool(threads, new LoopThreadFactory());
+    }
+
+    /**
+     * Runs a task on one of the group's threads as soon as possible.
+     *
+     * @param task the task.
+     */
+    public void execute(Runnable task)
+    {
+        try
+        {
+            executor.execute(task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            log.debug("Event loop group has been shut down, dropping task " + task);
+        }
+    }
+
+    /**
+     * Runs a task on one of the group's threads after a delay.
+     *
+     * @param task the task.
+     * @param delay the delay, in milliseconds.
+     */
+    public void schedule(Runnable task, long delay)
+    {
+        try
+        {
+            executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e)
+        {
+            log.debug("Event loop group has been shut down, dropping task " + task);
+        }
+    }
+
+    /**
+     * Shuts down the group.  Bots should be stopped first, as any work which is still queued is
+     * discarded.
+     */
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    /**
+     * Thread factory giving the group's threads recognisable names.
+     */
+    private static class LoopThreadFactory implements ThreadFactory
+    {
+        /**
+         * The number of the next thread to be created.
+         */
+        private AtomicInteger nextNumber = new AtomicInteger(1);
+
+        /**
+         * Creates a new thread.
+         *
+         * @param runnable the runnable for the thread to run.
+         * @return the thread.
+         */
+        public Thread newThread(Runnable runnable)
+        {
+            return new Thread(runnable, "bot-event-loop-" + nextNumber.getAndIncrement());
+        }
+    }
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright 2004-2005 Trypticon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trypticon.xmpp.bot;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.trypticon.xmpp.util.NotifyingSocketStreamSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jabberstudio.jso.Extension;
+import org.jabberstudio.jso.InfoQuery;
+import org.jabberstudio.jso.NSI;
+import org.jabberstudio.jso.Stream;
+import org.jabberstudio.jso.StreamDataFactory;
+import org.jabberstudio.jso.StreamException;
+import org.jabberstudio.jso.util.Utilities;
+import org.jdom.Element;
+
+/**
+ * Keeps a connection alive while it is idle, and notices when it has died.
+ * <p>
+ * Once nothing has arrived from the server for the idle interval, a keepalive is sent.  In
+ * {@link Mode#PING} mode this is an XMPP ping (XEP-0199), and if nothing at all arrives from the server
+ * within the timeout after that, the connection is considered dead and its socket is closed, so that
+ * the bot notices straight away and reconnects.  In {@link Mode#WHITESPACE} mode a single space is sent
+ * instead, which the server doesn't answer, so a dead connection is only noticed once a write fails.
+ * <p>
+ * The timers for every bot share a single thread.  That thread only ever decides what needs doing; the
+ * keepalive itself is sent from the bot's own processing via {@link #sendIfDue(Stream)}.
+ */
+public class KeepaliveMonitor
+{
+    /**
+     * The kinds of keepalive which can be sent.
+     */
+    public enum Mode
+    {
+        /**
+         * A single space between stanzas.
+         */
+        WHITESPACE,
+
+        /**
+         * An XMPP ping (XEP-0199), which the server must answer.
+         */
+        PING
+    }
+
+    /**
+     * The namespace for XMPP ping.
+     */
+    private static final String PING_NAMESPACE = "urn:xmpp:ping";
+
+    /**
+     * Logger.
+     */
+    private static final Log log = LogFactory.getLog(KeepaliveMonitor.class);
+
+    /**
+     * The scheduler shared by all monitors.
+     */
+    private static final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(new KeepaliveThreadFactory());
+
+    /**
+     * Whether keepalives are sent at all.
+     */
+    private boolean enabled;
+
+    /**
+     * The kind of keepalive to send.
+     */
+    private Mode mode = Mode.PING;
+
+    /**
+     * How long the connection may be idle before a keepalive is sent, in milliseconds.
+     */
+    private long interval = 60000;
+
+    /**
+     * How long to wait for a response to a ping, in milliseconds.
+     */
+    private long timeout = 30000;
+
+    /**
+     * The stream source for the current connection, or <code>null</code> if not started.
+     */
+    private NotifyingSocketStreamSource streamSource;
+
+    /**
+     * Callback to get the bot to process its stream when a keepalive is due.
+     */
+    private Runnable wakeUp;
+
+    /**
+     * The periodic check, or <code>null</code> if not started.
+     */
+    private ScheduledFuture<?> check;
+
+    /**
+     * The time the monitor was started or a keepalive was last sent.
+     */
+    private long lastSentTime;
+
+    /**
+     * The time the outstanding ping was sent, or <code>-1</code> if there is none.
+     */
+    private long pingSentTime = -1;
+
+    /**
+     * Set when a keepalive should be sent at the next opportunity.
+     */
+    private boolean due;
+
+    /**
+     * The number of pings sent, for generating IDs.
+     */
+    private long pingCount;
+
+    /**
+     * Set once the current connection has been closed for being dead.
+     */
+    private boolean dead;
+
+    /**
+     * Configures the monitor.  Keepalives are only sent if the configuration is present.
+     *
+     * @param config the XML configuration element, which may be <code>null</code>.
+     * @throws IllegalArgumentException if a value is out of range.
+     */
+    public void configure(Element config)
+    {
+        enabled = (config != null);
+        if (config == null)
+        {
+            return;
+        }
+
+        String modeString = config.getChildTextTrim("mode");
+        if (modeString != null)
+        {
+            mode = Mode.valueOf(modeString.toUpperCase());
+        }
+
+        String intervalString = config.getChildTextTrim("interval");
+        if (intervalString != null)
+        {
+            interval = Long.parseLong(intervalString);
+        }
+
+        String timeoutString = config.getChildTextTrim("timeout");
+        if (timeoutString != null)
+        {
+            timeout = Long.parseLong(timeoutString);
+        }
+
+        if (interval <= 0 || timeout <= 0)
+        {
+            throw new IllegalArgumentException("Keepalive interval and timeout must be positive");
+        }
+    }
+
+    /**
+     * Starts monitoring a new connection.
+     *
+     * @param streamSource the stream source for the connection.
+     * @param wakeUp callback to get the bot to process its stream, or <code>null</code> if the bot will
+     *        do so often enough on its own.
+     */
+    public synchronized void start(NotifyingSocketStreamSource streamSource, Runnable wakeUp)
+    {
+        stop();
+        if (!enabled)
+        {
+            return;
+        }
+
+        this.streamSource = streamSource;
+        this.wakeUp = wakeUp;
+        lastSentTime = System.currentTimeMillis();
+        pingSentTime = -1;
+        due = false;
+        dead = false;
+
+        // Check often enough that neither the interval nor the timeout overshoots by much.
+        long period = Math.max(100, Math.min(interval, timeout) / 4);
+        check = scheduler.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                check();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops monitoring the current connection.
+     */
+    public synchronized void stop()
+    {
+        if (check != null)
+        {
+            check.cancel(false);
+            check = null;
+        }
+        streamSource = null;
+        wakeUp = null;
+    }
+
+    /**
+     * Tests whether the current connection was closed for being dead.
+     *
+     * @return <code>true</code> if the connection was closed, <code>false</code> otherwise.
+     */
+    public synchronized boolean isDead()
+    {
+        return dead;
+    }
+
+    /**
+     * Sends a keepalive if one is due.  This should be called from the thread which processes the
+     * stream.  If sending fails, the connection is closed.
+     *
+     * @param stream the stream.
+     */
+    public void sendIfDue(Stream stream)
+    {
+        NotifyingSocketStreamSource source;
+        synchronized (this)
+        {
+            if (!due || streamSource == null)
+            {
+                return;
+            }
+            due = false;
+            lastSentTime = System.currentTimeMillis();
+            if (mode == Mode.PING)
+            {
+                pingSentTime = lastSentTime;
+            }
+            source = streamSource;
+        }
+
+        try
+        {
+            if (mode == Mode.PING)
+            {
+                stream.send(createPing(stream));
+            }
+            else
+            {
+                // JSO writes each packet while holding the stream's lock, so holding it too keeps the
+                // space from landing in the middle of one.
+                synchronized (stream)
+                {
+                    source.write(new byte[] { ' ' }, 0, 1);
+                }
+            }
+        }
+        catch (StreamException e)
+        {
+            log.warn("Failed to send keepalive, closing connection", e);
+            abort(source);
+        }
+        catch (IOException e)
+        {
+            log.warn("Failed to send keepalive, closing connection", e);
+            abort(source);
+        }
+    }
+
+    /**
+     * Periodic check, run on the shared thread.
+     */
+    private void check()
+    {
+        NotifyingSocketStreamSource deadSource = null;
+        Runnable wake = null;
+
+        synchronized (this)
+        {
+            if (streamSource == null)
+            {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            long lastArrivalTime = streamSource.getLastArrivalTime();
+
+            if (pingSentTime >= 0)
+            {
+                if (lastArrivalTime >= pingSentTime)
+                {
+                    // Anything at all from the server proves the connection is alive.
+                    pingSentTime = -1;
+                }
+                else if (now - pingSentTime >= timeout)
+                {
+                    log.warn("No response from server within " + timeout + "ms of keepalive, closing connection");
+                    deadSource = streamSource;
+                }
+            }
+
+            if (deadSource == null && pingSentTime < 0 && !due &&
+                now - Math.max(lastArrivalTime, lastSentTime) >= interval)
+            {
+                due = true;
+                wake = wakeUp;
+            }
+        }
+
+        if (deadSource != null)
+        {
+            abort(deadSource);
+        }
+        else if (wake != null)
+        {
+            wake.run();
+        }
+    }
+
+    /**
+     * Closes the connection without waiting for anything, so that the bot notices it has gone.
+     *
+     * @param source the stream source for the connection.
+     */
+    private void abort(NotifyingSocketStreamSource source)
+    {
+        synchronized (this)
+        {
+            dead = true;
+            stop();
+        }
+        if (source != null)
+        {
+            source.abort();
+        }
+    }
+
+    /**
+     * Creates an XMPP ping to the server.
+     *
+     * @param stream the stream.
+     * @return the ping.
+     */
+    private InfoQuery createPing(Stream stream)
+    {
+        StreamDataFactory factory = stream.getDataFactory();
+        InfoQuery ping = (InfoQuery) factory.createPacketNode(new NSI("iq", Utilities.CLIENT_NAMESPACE));
+        ping.setType(InfoQuery.GET);
+        ping.setTo(stream.getOutboundContext().getTo());
+        synchronized (this)
+        {
+            ping.setID("keepalive-" + (++pingCount));
+        }
+        Extension extension = factory.createExtensionNode(new NSI("ping", PING_NAMESPACE));
+        ping.addExtension(extension);
+        return ping;
+    }
+
+    /**
+     * Thread factory for the shared keepalive thread.  The thread is a daemon, so that it never keeps the
+     * JVM alive on its own.
+     */
+    private static class KeepaliveThreadFactory implements ThreadFactory
+    {
+        /**
+         * Creates a new thread.
+         *
+         * @param runnable the runnable for the thread to run.
+         * @return the thread.
+         */
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "keepalive");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2004-2005 Trypticon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trypticon.xmpp.bot;
+
+import java.util.Random;
+
+import org.jdom.Element;
+
+/**
+ * Decides how long a bot should wait before reconnecting.
+ * <p>
+ * The first retry happens quickly, after which the delay grows exponentially up to a cap.  Every delay
+ * has a random amount of jitter taken off it, so that many bots which lost their connection at the
+ * same time don't all come back at the same time.  Once a connection has stayed up for at least the
+ * maximum delay, the next failure starts again from the quick first retry.
+ */
+public class ReconnectPolicy
+{
+    /**
+     * The delay before the first retry, in milliseconds.
+     */
+    private long firstDelay = 1000;
+
+    /**
+     * The delay before the second retry, in milliseconds.
+     */
+    private long initialDelay = 5000;
+
+    /**
+     * The factor by which the delay grows on each subsequent retry.
+     */
+    private double multiplier = 2.0;
+
+    /**
+     * The maximum delay, in milliseconds.
+     */
+    private long maxDelay = 300000;
+
+    /**
+     * The largest fraction of each delay which may randomly be taken off it.
+     */
+    private double jitter = 0.5;
+
+    /**
+     * The number of retries since the last stable connection.
+     */
+    private int retries;
+
+    /**
+     * The time the last connection was established, or <code>-1</code> if it hasn't been.
+     */
+    private long connectedTime = -1;
+
+    /**
+     * Set when the next attempt should happen without any delay.
+     */
+    private boolean immediate;
+
+    /**
+     * Source of jitter.
+     */
+    private Random random = new Random();
+
+    /**
+     * Configures the policy.  Any value which is not present keeps its default.
+     *
+     * @param config the XML configuration element, which may be <code>null</code>.
+     * @throws IllegalArgumentException if a value is out of range.
+     */
+    public void configure(Element config)
+    {
+        if (config == null)
+        {
+            return;
+        }
+
+        String firstDelayString = config.getChildTextTrim("firstdelay");
+        if (firstDelayString != null)
+        {
+            firstDelay = Long.parseLong(firstDelayString);
+        }
+
+        String initialDelayString = config.getChildTextTrim("delay");
+        if (initialDelayString != null)
+        {
+            initialDelay = Long.parseLong(initialDelayString);
+        }
+
+        String multiplierString = config.getChildTextTrim("multiplier");
+        if (multiplierString != null)
+        {
+            multiplier = Double.parseDouble(multiplierString);
+        }
+
+        String maxDelayString = config.getChildTextTrim("maxdelay");
+        if (maxDelayString != null)
+        {
+            maxDelay = Long.parseLong(maxDelayString);
+        }
+
+        String jitterString = config.getChildTextTrim("jitter");
+        if (jitterString != null)
+        {
+            jitter = Double.parseDouble(jitterString);
+        }
+
+        if (firstDelay < 0 || initialDelay < 0 || maxDelay < 0)
+        {
+            throw new IllegalArgumentException("Reconnect delays cannot be negative");
+        }
+        if (multiplier < 1.0)
+        {
+            throw new IllegalArgumentException("Reconnect multiplier cannot be less than 1");
+        }
+        if (jitter < 0.0 || jitter > 1.0)
+        {
+            throw new IllegalArgumentException("Reconnect jitter must be between 0 and 1");
+        }
+    }
+
+    /**
+     * Notes that a connection was established.
+     */
+    public synchronized void connected()
+    {
+        connectedTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Notes that the connection was closed deliberately because it was found to be dead, so the next
+     * attempt should happen straight away.  This doesn't count as a retry.
+     */
+    public synchronized void reconnectImmediately()
+    {
+        immediate = true;
+    }
+
+    /**
+     * Gets the time to wait before the next connection attempt, and counts that attempt.
+     *
+     * @return the delay, in milliseconds.
+     */
+    public synchronized long nextDelay()
+    {
+        if (immediate)
+        {
+            immediate = false;
+            return 0;
+        }
+
+        // A connection which stayed up long enough means the problem has gone away, so start over.
+        if (connectedTime >= 0 && System.currentTimeMillis() - connectedTime >= maxDelay)
+        {
+            retries = 0;
+        }
+        connectedTime = -1;
+
+        double delay;
+        if (retries == 0)
+        {
+            delay = firstDelay;
+        }
+        else
+        {
+            delay = initialDelay * Math.pow(multiplier, retries - 1);
+        }
+        delay = Math.min(delay, maxDelay);
+
+        retries++;
+
+        return (long) (delay - delay * jitter * random.nextDouble());
+    }
+}
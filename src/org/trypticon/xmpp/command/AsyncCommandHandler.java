@@ -0,0 +1,43 @@
+/*
+ * Copyright 2004-2005 Trypticon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trypticon.xmpp.command;
+
+import org.trypticon.xmpp.util.QueryTask;
+
+import org.jabberstudio.jso.x.commands.CommandQuery;
+import org.jabberstudio.jso.util.PacketException;
+
+/**
+ * A handler for a command which takes a long time, and so is finished away from the thread processing
+ * the stream.  Other queries and chat carry on while the command runs.
+ */
+public interface AsyncCommandHandler extends CommandHandler
+{
+    /**
+     * Starts handling the command.  Anything quick, such as checking the request, should be done here;
+     * the slow part goes in the returned task, which is run on the command's executor.  The response is
+     * sent once the task is done, or with an error if it takes too long.
+     *
+     * @param request  the request query.
+     * @param response the response query.
+     * @param session  the session, which lasts across all the steps of the command.
+     * @return the task which finishes handling the command.  It must not have been run yet.
+     * @throws PacketException if an error occurs starting the command.
+     */
+    QueryTask handleCommandAsync(CommandQuery request, CommandQuery response, CommandSession session)
+            throws PacketException;
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright 2004-2005 Trypticon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trypticon.xmpp.command;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.trypticon.xmpp.disco.Discoverable;
+
+import org.jabberstudio.jso.StreamElement;
+import org.jabberstudio.jso.util.PacketException;
+import org.jabberstudio.jso.x.commands.CommandNote;
+import org.jabberstudio.jso.x.commands.CommandQuery;
+import org.jabberstudio.jso.x.disco.DiscoInfoQuery;
+import org.jabberstudio.jso.x.xdata.XDataField;
+import org.jabberstudio.jso.x.xdata.XDataForm;
+import org.jdom.Element;
+
+/**
+ * Remembers the results of a command whose result depends on nothing but the form submitted to it, so
+ * that submitting the same form again gives the same result without running the command.
+ * <p>
+ * Only responses which complete the command are remembered, keyed by a digest of the submitted form's
+ * fields and values.  The fields are sorted by name first, so the same form submitted with its fields in
+ * a different order finds the same result.  A remembered result is forgotten once it is older than the
+ * time to live, or when there are too many and it is the least recently used.
+ * <p>
+ * The configuration goes alongside the command's own, and looks like this:
+ * <pre>
+ * &lt;cache&gt;
+ *     &lt;maxentries&gt;1000&lt;/maxentries&gt;
+ *     &lt;ttl&gt;300000&lt;/ttl&gt;
+ * &lt;/cache&gt;
+ * </pre>
+ */
+public class CachingCommandHandler implements CommandHandler
+{
+    /**
+     * Orders form fields by name.
+     */
+    private static final Comparator<XDataField> FIELD_ORDER = new Comparator<XDataField>()
+    {
+        public int compare(XDataField field1, XDataField field2)
+        {
+            String var1 = (field1.getVar() == null) ? "" : field1.getVar();
+            String var2 = (field2.getVar() == null) ? "" : field2.getVar();
+            return var1.compareTo(var2);
+        }
+    };
+
+    /**
+     * The command whose results are remembered.
+     */
+    private CommandHandler delegate;
+
+    /**
+     * The most results to remember.
+     */
+    private int maxEntries = 1000;
+
+    /**
+     * How long to remember a result for, in milliseconds.
+     */
+    private long ttl = 300000;
+
+    /**
+     * The remembered results, keyed by digest, least recently used first.  Guarded by its own lock.
+     */
+    private Map<String, Result> results;
+
+    /**
+     * The number of requests answered from the cache.
+     */
+    private AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * The number of requests which had to run the command.
+     */
+    private AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Constructs the caching handler.
+     *
+     * @param delegate the command whose results are remembered, already configured.
+     * @param config the XML configuration for the cache, which may be <code>null</code> for the defaults.
+     * @throws IllegalArgumentException if a value is out of range.
+     */
+    public CachingCommandHandler(CommandHandler delegate, Element config)
+    {
+        this.delegate = delegate;
+
+        if (config != null)
+        {
+            String maxEntriesString = config.getChildTextTrim("maxentries");
+            if (maxEntriesString != null)
+            {
+                maxEntries = Integer.parseInt(maxEntriesString);
+            }
+
+            String ttlString = config.getChildTextTrim("ttl");
+            if (ttlString != null)
+            {
+                ttl = Long.parseLong(ttlString);
+            }
+        }
+
+        if (maxEntries < 1 || ttl <= 0)
+        {
+            throw new IllegalArgumentException("Cache size and time to live must be positive");
+        }
+
+        results = new LinkedHashMap<String, Result>(16, 0.75f, true)
+        {
+            protected boolean removeEldestEntry(Map.Entry<String, Result> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Gets the command whose results are remembered.
+     *
+     * @return the command.
+     */
+    public CommandHandler getDelegate()
+    {
+        return delegate;
+    }
+
+    /**
+     * Configures the command whose results are remembered.
+     *
+     * @param config the configuration element.
+     */
+    public void configure(Element config)
+    {
+        delegate.configure(config);
+    }
+
+    /**
+     * Gets the name of the command.
+     *
+     * @return the name of the command.
+     */
+    public String getName()
+    {
+        return delegate.getName();
+    }
+
+    /**
+     * Gets the node which the discoverable is located at.
+     *
+     * @return the node which the discoverable is located at.
+     */
+    public String getNode()
+    {
+        return delegate.getNode();
+    }
+
+    /**
+     * Populates info into the provided query, to form the response.
+     *
+     * @param query the query.
+     */
+    public void populateDiscoInfo(DiscoInfoQuery query)
+    {
+        delegate.populateDiscoInfo(query);
+    }
+
+    /**
+     * Gets disco items which exist at a child of this item.
+     */
+    public List<Discoverable> getDiscoChildren()
+    {
+        return delegate.getDiscoChildren();
+    }
+
+    /**
+     * Handles the command, from the cache if the same form has been submitted recently.
+     *
+     * @param request  the request query.
+     * @param response the response query.
+     * @param session  the session.
+     * @throws PacketException if an error occurs handling the command.
+     */
+    public void handleCommand(CommandQuery request, CommandQuery response, CommandSession session)
+            throws PacketException
+    {
+        StreamElement payload = request.getPayload();
+        if (!(payload instanceof XDataForm) || request.getAction() == CommandQuery.CANCEL)
+        {
+            delegate.handleCommand(request, response, session);
+            return;
+        }
+
+        String key = digest((XDataForm) payload);
+        long now = System.currentTimeMillis();
+
+        Result result;
+        synchronized (results)
+        {
+            result = results.get(key);
+            if (result != null && result.expiry <= now)
+            {
+                results.remove(key);
+                result = null;
+            }
+        }
+
+        if (result != null)
+        {
+            hitCount.incrementAndGet();
+            result.apply(response);
+            return;
+        }
+
+        missCount.incrementAndGet();
+        delegate.handleCommand(request, response, session);
+
+        if (response.getStatus() == CommandQuery.COMPLETED)
+        {
+            Result newResult = new Result(response, now + ttl);
+            synchronized (results)
+            {
+                results.put(key, newResult);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of requests which have been answered from the cache.
+     *
+     * @return the number of requests.
+     */
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    /**
+     * Gets the number of requests which have had to run the command.
+     *
+     * @return the number of requests.
+     */
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    /**
+     * Gets the number of results remembered, including any which have expired but not been looked up
+     * since.
+     *
+     * @return the number of results.
+     */
+    public int getSize()
+    {
+        synchronized (results)
+        {
+            return results.size();
+        }
+    }
+
+    /**
+     * Computes the digest of a submitted form, which is the same for any form with the same fields and
+     * values whatever order the fields come in.
+     *
+     * @param form the form.
+     * @return the digest, as a hexadecimal string.
+     */
+    private String digest(XDataForm form)
+    {
+        List<XDataField> fields = new ArrayList<XDataField>((List<XDataField>) form.listFields());
+        Collections.sort(fields, FIELD_ORDER);
+
+        // Each part is preceded by its length, so that no two different forms can run together the same.
+        StringBuilder canonical = new StringBuilder();
+        for (XDataField field : fields)
+        {
+            appendPart(canonical, field.getVar());
+            List values = field.listValues();
+            canonical.append(values.size()).append(':');
+            for (Object value : values)
+            {
+                appendPart(canonical, String.valueOf(value));
+            }
+        }
+
+        try
+        {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(canonical.toString().getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash)
+            {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-1 is always available", e);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException("UTF-8 is always available", e);
+        }
+    }
+
+    /**
+     * Appends a part of the canonical form, preceded by its length.
+     *
+     * @param canonical the canonical form so far.
+     * @param part the part, which may be <code>null</code>.
+     */
+    private static void appendPart(StringBuilder canonical, String part)
+    {
+        if (part == null)
+        {
+            canonical.append("-:");
+        }
+        else
+        {
+            canonical.append(part.length()).append(':').append(part);
+        }
+    }
+
+    /**
+     * A remembered result.
+     */
+    private static class Result
+    {
+        /**
+         * A copy of the response's payload, or <code>null</code> if there was none.
+         */
+        private StreamElement payload;
+
+        /**
+         * The response's notes, as alternating types and messages.
+         */
+        private List<Object> notes = new ArrayList<Object>();
+
+        /**
+         * The time the result expires.
+         */
+        private long expiry;
+
+        /**
+         * Constructs the result from a response.
+         *
+         * @param response the response which completed the command.
+         * @param expiry the time the result expires.
+         */
+        private Result(CommandQuery response, long expiry)
+        {
+            this.expiry = expiry;
+            if (response.getPayload() != null)
+            {
+                payload = (StreamElement) response.getPayload().copy();
+            }
+            for (Object object : response.listNotes())
+            {
+                CommandNote note = (CommandNote) object;
+                notes.add(note.getType());
+                notes.add(note.getMessage());
+            }
+        }
+
+        /**
+         * Fills in a response from the result.
+         *
+         * @param response the response.
+         */
+        private void apply(CommandQuery response)
+        {
+            response.clearPayload();
+            if (payload != null)
+            {
+                response.setPayload((StreamElement) payload.copy());
+            }
+            for (int i = 0; i < notes.size(); i += 2)
+            {
+                response.addNote((CommandNote.Type) notes.get(i), (String) notes.get(i + 1));
+            }
+            response.setStatus(CommandQuery.COMPLETED);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2004-2005 Trypticon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trypticon.xmpp.command;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.trypticon.xmpp.util.QueryTask;
+
+import org.jabberstudio.jso.PacketError;
+import org.jabberstudio.jso.util.PacketException;
+import org.jdom.Element;
+
+/**
+ * Runs a command's queries on a pool of threads of its own, so that a slow command never holds up the
+ * stream or any other command.  The pool has a bounded queue, and queries which don't fit are turned
+ * away rather than left to pile up.  Queries which haven't finished by their deadline, counted from
+ * when they were taken, are cancelled whether they are running or still waiting, which sends back an
+ * error.  The executor counts both, for monitoring.
+ * <p>
+ * The configuration looks like this:
+ * <pre>
+ * &lt;executor&gt;
+ *     &lt;threads&gt;2&lt;/threads&gt;
+ *     &lt;queue&gt;16&lt;/queue&gt;
+ *     &lt;timeout&gt;60000&lt;/timeout&gt;
+ * &lt;/executor&gt;
+ * </pre>
+ */
+public class CommandExecutor
+{
+    /**
+     * The scheduler shared by all executors, which times out queries.
+     */
+    private static final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(new TimerThreadFactory());
+
+    /**
+     * The pool of threads.
+     */
+    private ThreadPoolExecutor pool;
+
+    /**
+     * How long a query may take, in milliseconds, or <code>0</code> for no limit.
+     */
+    private long timeout;
+
+    /**
+     * The number of queries turned away because the queue was full.
+     */
+    private AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * The number of queries cancelled for taking too long.
+     */
+    private AtomicLong timedOutCount = new AtomicLong();
+
+    /**
+     * Constructs the executor.
+     *
+     * @param name the name of the command, for naming the threads.
+     * @param config the XML configuration element, which may be <code>null</code> for the defaults.
+     * @throws IllegalArgumentException if a value is out of range.
+     */
+    public CommandExecutor(String name, Element config)
+    {
+        int threads = 2;
+        int queue = 16;
+        timeout = 60000;
+
+        if (config != null)
+        {
+            String threadsString = config.getChildTextTrim("threads");
+            if (threadsString != null)
+            {
+                threads = Integer.parseInt(threadsString);
+            }
+
+            String queueString = config.getChildTextTrim("queue");
+            if (queueString != null)
+            {
+                queue = Integer.parseInt(queueString);
+            }
+
+            String timeoutString = config.getChildTextTrim("timeout");
+            if (timeoutString != null)
+            {
+                timeout = Long.parseLong(timeoutString);
+            }
+        }
+
+        if (threads < 1 || queue < 1 || timeout < 0)
+        {
+            throw new IllegalArgumentException("Command executor needs at least one thread and one queue slot");
+        }
+
+        pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                                      new ArrayBlockingQueue<Runnable>(queue), new WorkerThreadFactory(name));
+    }
+
+    /**
+     * Runs a query on the pool.
+     *
+     * @param task the query.
+     * @throws PacketException if the pool is too busy to take the query.
+     */
+    public void execute(final QueryTask task) throws PacketException
+    {
+        try
+        {
+            pool.execute(task);
+        }
+        catch (RejectedExecutionException e)
+        {
+            rejectedCount.incrementAndGet();
+            throw new PacketException(PacketError.WAIT, PacketError.RESOURCE_CONSTRAINT_CONDITION);
+        }
+
+        if (timeout > 0)
+        {
+            final ScheduledFuture<?> expiry = timer.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    if (task.cancel(true))
+                    {
+                        timedOutCount.incrementAndGet();
+                    }
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+
+            task.whenDone(new Runnable()
+            {
+                public void run()
+                {
+                    expiry.cancel(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Gets the number of queries waiting for a thread.
+     *
+     * @return the number of queries.
+     */
+    public int getQueueDepth()
+    {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * Gets the number of queries running.
+     *
+     * @return the number of queries.
+     */
+    public int getActiveCount()
+    {
+        return pool.getActiveCount();
+    }
+
+    /**
+     * Gets the number of queries which have been turned away because the queue was full.
+     *
+     * @return the number of queries.
+     */
+    public long getRejectedCount()
+    {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Gets the number of queries which have been cancelled for taking too long.
+     *
+     * @return the number of queries.
+     */
+    public long getTimedOutCount()
+    {
+        return timedOutCount.get();
+    }
+
+    /**
+     * Shuts down the pool, letting queries already taken finish.
+     */
+    public void shutdown()
+    {
+        pool.shutdown();
+    }
+
+    /**
+     * Thread factory for a command's threads.  The threads are daemons, so that they never keep the JVM
+     * alive on their own.
+     */
+    private static class WorkerThreadFactory implements ThreadFactory
+    {
+        /**
+         * The name of the command.
+         */
+        private String name;
+
+        /**
+         * The number of the next thread to be created.
+         */
+        private AtomicInteger nextNumber = new AtomicInteger(1);
+
+        /**
+         * Constructs the thread factory.
+         *
+         * @param name the name of the command.
+         */
+        private WorkerThreadFactory(String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * Creates a new thread.
+         *
+         * @param runnable the runnable for the thread to run.
+         * @return the thread.
+         */
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "command-" + name + "-" + nextNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Thread factory for the shared timer thread.  The thread is a daemon, so that it never keeps the
+     * JVM alive on its own.
+     */
+    private static class TimerThreadFactory implements ThreadFactory
+    {
+        /**
+         * Creates a new thread.
+         *
+         * @param runnable the runnable for the thread to run.
+         * @return the thread.
+         */
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "command-timer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -42,11 +42,14 @@ public interface CommandHandler extends Discoverable
     String getName();
 
     /**
-     * Handles the command.
+     * Handles the command.  The session is forgotten once the response says the command has completed
+     * or been cancelled, or the session has been finished.
      *
      * @param request  the request query.
      * @param response the response query.
+     * @param session  the session, which lasts across all the steps of the command.
      * @throws PacketException if an error occurs handling the command.
      */
-    void handleCommand(CommandQuery request, CommandQuery response) throws PacketException;
+    void handleCommand(CommandQuery request, CommandQuery response, CommandSession session)
+            throws PacketException;
 }
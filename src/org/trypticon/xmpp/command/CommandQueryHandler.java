@@ -21,23 +21,42 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.trypticon.xmpp.disco.DiscoQueryHandler;
 import org.trypticon.xmpp.disco.Discoverable;
 import org.trypticon.xmpp.util.AbstractQueryHandler;
+import org.trypticon.xmpp.util.LazyLoader;
+import org.trypticon.xmpp.util.QueryTask;
 
 import org.jabberstudio.jso.Extension;
+import org.jabberstudio.jso.JID;
+import org.jabberstudio.jso.Packet;
 import org.jabberstudio.jso.PacketError;
-import org.jabberstudio.jso.util.IdentityGenerator;
 import org.jabberstudio.jso.util.PacketException;
+import org.jabberstudio.jso.util.Utilities;
 import org.jabberstudio.jso.x.commands.CommandQuery;
 import org.jabberstudio.jso.x.disco.DiscoInfoQuery;
 import org.jdom.Element;
+import org.jdom.output.XMLOutputter;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
  * A packet listener which handles Command queries.
+ * <p>
+ * Commands are handled on the thread processing the stream, unless they are an
+ * {@link AsyncCommandHandler} or have an <code>executor</code> element in their configuration, in which
+ * case they are handled on a {@link CommandExecutor} of their own and the response is sent once they are
+ * done.  An <code>executor</code> element alongside the commands applies to every command without one
+ * of its own, with each command still getting its own pool, so that one busy command can never starve
+ * the others.  Commands with a <code>cache</code> element are wrapped in a {@link CachingCommandHandler}.
+ * <p>
+ * A command whose element has <code>node</code> and <code>name</code> attributes is only created the
+ * first time it is used, and disco always describes it from those attributes.  With
+ * <code>&lt;warmup&gt;true&lt;/warmup&gt;</code>, such commands are instead created one by one in the
+ * background once the handler has been configured.  The time taken to create each command is logged.
  */
 public class CommandQueryHandler extends AbstractQueryHandler
     implements Discoverable
@@ -48,9 +67,20 @@ public class CommandQueryHandler extends AbstractQueryHandler
     private static final Log log = LogFactory.getLog(CommandQueryHandler.class);
 
     /**
-     * A map of nodes to commands.
+     * A map of nodes to commands.  Never modified, only replaced as a whole when commands change.
      */
-    private Map<String, CommandHandler> commandMap = new HashMap<String, CommandHandler>();
+    private volatile Map<String, Command> commandMap = Collections.emptyMap();
+
+    /**
+     * The configured commands, keyed by their class name and configuration, so that reconfiguring only
+     * creates commands which have changed.
+     */
+    private Map<String, Command> commandsBySignature = new HashMap<String, Command>();
+
+    /**
+     * The sessions of commands in progress.
+     */
+    private CommandSessionStore sessionStore = new CommandSessionStore();
 
     /**
      * The disco query handler.
@@ -69,26 +99,74 @@ public class CommandQueryHandler extends AbstractQueryHandler
     }
 
     /**
-     * Configures the command query handler.
+     * Configures the command query handler.  This may be called again to reconfigure the handler while
+     * it is running: commands whose class and configuration haven't changed are kept rather than created
+     * again, and the new set of commands replaces the old all at once.
      *
      * @param config the XML configuration element containing the commands.
      */
-    public void configure(Element config)
+    public synchronized void configure(Element config)
     {
-        commandMap.clear();
+        Map<String, Command> newCommandMap = new HashMap<String, Command>();
+        Map<String, Command> newCommandsBySignature = new HashMap<String, Command>();
+        XMLOutputter outputter = new XMLOutputter();
+
+        List<LazyLoader<CommandHandler>> warmUpLoaders = new ArrayList<LazyLoader<CommandHandler>>();
 
         if (config != null)
         {
+            sessionStore.configure(config.getChild("sessions"));
+            Element defaultExecutorConfig = config.getChild("executor");
+            boolean warmUp = "true".equals(config.getChildTextTrim("warmup"));
+
             for (Element commandElement : (List<Element>) config.getChildren("command"))
             {
                 String commandClassName = commandElement.getAttributeValue("classname");
+                String declaredNode = commandElement.getAttributeValue("node");
+                String declaredName = commandElement.getAttributeValue("name");
+                boolean lazy = (declaredNode != null && declaredName != null);
+                Element commandConfig = commandElement.getChild("config");
+                Element executorConfig = commandElement.getChild("executor");
+                if (executorConfig == null)
+                {
+                    executorConfig = defaultExecutorConfig;
+                }
+                Element cacheConfig = commandElement.getChild("cache");
+                String signature = commandClassName + '\n' +
+                                   (lazy ? declaredNode + '\n' + declaredName : "") + '\n' +
+                                   ((commandConfig == null) ? "" : outputter.outputString(commandConfig)) + '\n' +
+                                   ((executorConfig == null) ? "" : outputter.outputString(executorConfig)) + '\n' +
+                                   ((cacheConfig == null) ? "" : outputter.outputString(cacheConfig));
 
                 try
                 {
-                    CommandHandler handler = (CommandHandler) Class.forName(commandClassName).newInstance();
-                    handler.configure(commandElement.getChild("config"));
-
-                    addCommand(handler);
+                    Command command = commandsBySignature.get(signature);
+                    if (command == null)
+                    {
+                        LazyLoader<CommandHandler> loader = newLoader(commandClassName, commandConfig);
+                        if (lazy)
+                        {
+                            command = new Command(new DeclaredCommand(declaredNode, declaredName),
+                                                  loader, executorConfig, cacheConfig);
+                        }
+                        else
+                        {
+                            CommandHandler handler = loader.get();
+                            if (handler == null)
+                            {
+                                // Already logged by the loader.
+                                continue;
+                            }
+                            command = new Command(handler, loader, executorConfig, cacheConfig);
+                            command.resolve();
+                        }
+                    }
+                    if (warmUp && !command.loader.isLoaded())
+                    {
+                        warmUpLoaders.add(command.loader);
+                    }
+                    newCommandsBySignature.put(signature, command);
+                    newCommandMap.put(command.discoverable.getNode(), command);
                 }
                 catch (Throwable t)
                 {
@@ -96,6 +174,68 @@ public class CommandQueryHandler extends AbstractQueryHandler
                 }
             }
         }
+
+        commandsBySignature = newCommandsBySignature;
+        replaceCommands(newCommandMap);
+
+        if (!warmUpLoaders.isEmpty())
+        {
+            LazyLoader.warmUp("command-warmup", warmUpLoaders);
+        }
+    }
+
+    /**
+     * Creates a loader for a command.
+     *
+     * @param className the name of the command's class.
+     * @param config the command's configuration, which may be <code>null</code>.
+     * @return the loader.
+     */
+    private static LazyLoader<CommandHandler> newLoader(String className, Element config)
+    {
+        return new LazyLoader<CommandHandler>(CommandHandler.class, className, config)
+        {
+            protected void configure(CommandHandler handler, Element config)
+            {
+                handler.configure(config);
+            }
+        };
+    }
+
+    /**
+     * Gets the store of sessions of commands in progress, for its gauges.
+     *
+     * @return the session store.
+     */
+    public CommandSessionStore getSessionStore()
+    {
+        return sessionStore;
+    }
+
+    /**
+     * Gets the executor a command runs on, for its gauges.
+     *
+     * @param node the node of the command.
+     * @return the executor, or <code>null</code> if there is no such command or it runs on the stream's
+     *         thread.
+     */
+    public CommandExecutor getExecutor(String node)
+    {
+        Command command = commandMap.get(node);
+        return (command == null) ? null : command.executor;
+    }
+
+    /**
+     * Gets the time a command took to create and configure.
+     *
+     * @param node the node of the command.
+     * @return the time in milliseconds, or <code>-1</code> if there is no such command, it hasn't been
+     *         created yet, or it was added already created.
+     */
+    public long getLoadTime(String node)
+    {
+        Command command = commandMap.get(node);
+        return (command == null || command.loader == null) ? -1 : command.loader.getLoadTime();
     }
 
     /**
@@ -103,10 +243,47 @@ public class CommandQueryHandler extends AbstractQueryHandler
      *
      * @param handler the handler for the command.
      */
-    public void addCommand(CommandHandler handler)
+    public synchronized void addCommand(CommandHandler handler)
+    {
+        Command command = new Command(handler, null, null, null);
+        try
+        {
+            command.resolve();
+        }
+        catch (PacketException e)
+        {
+            // Can't happen, as the handler is already created.
+            throw new IllegalStateException(e);
+        }
+
+        Map<String, Command> newCommandMap = new HashMap<String, Command>(commandMap);
+        newCommandMap.put(handler.getNode(), command);
+        replaceCommands(newCommandMap);
+    }
+
+    /**
+     * Replaces the map of commands, keeping the disco handler in step and shutting down the executors
+     * of commands which have gone.  Must be called while holding the handler's lock.
+     *
+     * @param newCommandMap the new map of nodes to commands.
+     */
+    private void replaceCommands(Map<String, Command> newCommandMap)
     {
-        commandMap.put(handler.getNode(), handler);
-        discoHandler.addDiscoverable(handler);
+        Map<String, Command> oldCommandMap = commandMap;
+        commandMap = Collections.unmodifiableMap(newCommandMap);
+
+        for (Command command : newCommandMap.values())
+        {
+            discoHandler.addDiscoverable(command.discoverable);
+        }
+        for (Command command : oldCommandMap.values())
+        {
+            if (newCommandMap.get(command.discoverable.getNode()) != command)
+            {
+                discoHandler.removeDiscoverable(command.discoverable);
+                command.retire();
+            }
+        }
     }
 
     /**
@@ -121,7 +298,7 @@ public class CommandQueryHandler extends AbstractQueryHandler
     }
 
     /**
-     * Performs the query.
+     * Performs the query, waiting for it to finish if the command runs on an executor.
      *
      * @param request  the request query.
      * @param response the response query.
@@ -129,28 +306,188 @@ public class CommandQueryHandler extends AbstractQueryHandler
      */
     protected void doQuery(Extension request, Extension response) throws PacketException
     {
-        CommandQuery commandRequest = (CommandQuery) request;
-        CommandQuery commandResponse = (CommandQuery) response;
+        QueryTask task = startQuery(request, response);
+        if (task != null)
+        {
+            task.check();
+        }
+    }
+
+    /**
+     * Starts the query, handing it to the command's executor if it has one.
+     *
+     * @param request  the request query.
+     * @param response the response query.
+     * @return the task which finishes the query, or <code>null</code> if the query has already finished.
+     * @throws PacketException if there is an application-level error.
+     */
+    protected QueryTask startQuery(Extension request, Extension response) throws PacketException
+    {
+        final CommandQuery commandRequest = (CommandQuery) request;
+        final CommandQuery commandResponse = (CommandQuery) response;
 
-        CommandHandler handler = commandMap.get(commandRequest.getNode());
+        Command command = commandMap.get(commandRequest.getNode());
 
-        if (handler == null)
+        if (command == null)
         {
             throw new PacketException(PacketError.CANCEL,
                                       PacketError.ITEM_NOT_FOUND_CONDITION);
         }
 
+        command.resolve();
         commandResponse.setNode(commandRequest.getNode());
 
+        JID requester = ((Packet) request.getParent()).getFrom();
+        CommandSession session;
         String sessionID = commandRequest.getSessionID();
-        if (sessionID == null)
+        final boolean created = !Utilities.isValidString(sessionID);
+        if (created)
+        {
+            session = sessionStore.create(commandRequest.getNode(), requester);
+        }
+        else
+        {
+            // The session must exist, and belong to the same command and requester.
+            session = sessionStore.get(sessionID);
+            if (session == null || !session.getNode().equals(commandRequest.getNode()) ||
+                !((requester == null) ? session.getRequester() == null : requester.equals(session.getRequester())))
+            {
+                throw new PacketException(PacketError.MODIFY,
+                                          PacketError.BAD_REQUEST_CONDITION);
+            }
+        }
+        if (!session.beginStep())
+        {
+            // The previous step hasn't finished, and steps of one session never run at the same time.
+            throw new PacketException(PacketError.WAIT,
+                                      PacketError.UNEXPECTED_REQUEST_CONDITION);
+        }
+        commandResponse.setSessionID(session.getID());
+
+        final CommandHandler handler = command.handler;
+        if (command.executor == null)
+        {
+            try
+            {
+                handler.handleCommand(commandRequest, commandResponse, session);
+            }
+            finally
+            {
+                endStep(commandRequest, commandResponse, session);
+            }
+            return null;
+        }
+
+        final CommandSession taskSession = session;
+        final QueryTask handlerTask;
+        if (handler instanceof AsyncCommandHandler)
+        {
+            try
+            {
+                handlerTask = ((AsyncCommandHandler) handler).handleCommandAsync(commandRequest, commandResponse, session);
+            }
+            catch (PacketException e)
+            {
+                endStep(commandRequest, commandResponse, session);
+                throw e;
+            }
+        }
+        else
+        {
+            handlerTask = null;
+        }
+
+        // The step is ended by whichever comes first: the task starting, in which case it ends the step
+        // once the command has really finished, or the task being done without ever starting.  A task
+        // cancelled while it runs is done straight away, but the command may still be using the session.
+        final AtomicBoolean claimed = new AtomicBoolean();
+        final QueryTask task = new QueryTask(new Callable<Object>()
         {
-            // TODO: Create and pass around some kind of session object for commands to use as state.
-            sessionID = IdentityGenerator.generateGlobal();
+            public Object call() throws PacketException
+            {
+                if (!claimed.compareAndSet(false, true))
+                {
+                    return null;
+                }
+                try
+                {
+                    if (handlerTask != null)
+                    {
+                        handlerTask.run();
+                        handlerTask.check();
+                    }
+                    else
+                    {
+                        handler.handleCommand(commandRequest, commandResponse, taskSession);
+                    }
+                    return null;
+                }
+                finally
+                {
+                    endStep(commandRequest, commandResponse, taskSession);
+                }
+            }
+        });
+        task.whenDone(new Runnable()
+        {
+            public void run()
+            {
+                if (claimed.compareAndSet(false, true))
+                {
+                    abandonStep(taskSession, created);
+                }
+            }
+        });
+
+        try
+        {
+            command.executor.execute(task);
+        }
+        catch (PacketException e)
+        {
+            // The task will never run, so nothing else will end the step.
+            if (claimed.compareAndSet(false, true))
+            {
+                abandonStep(session, created);
+            }
+            throw e;
+        }
+        return task;
+    }
+
+    /**
+     * Lets the next step of the session go ahead once a step has been handled, and forgets the session
+     * if the command is over.
+     *
+     * @param request  the request query.
+     * @param response the response query.
+     * @param session  the session.
+     */
+    private void endStep(CommandQuery request, CommandQuery response, CommandSession session)
+    {
+        session.endStep();
+        CommandQuery.Status status = response.getStatus();
+        if (session.isFinished() || status == CommandQuery.COMPLETED || status == CommandQuery.CANCELED ||
+            request.getAction() == CommandQuery.CANCEL)
+        {
+            sessionStore.remove(session);
         }
-        commandResponse.setSessionID(sessionID);
+    }
 
-        handler.handleCommand(commandRequest, commandResponse);
+    /**
+     * Lets the next step of the session go ahead after a step which never ran, and forgets the session if
+     * the step was what created it.
+     *
+     * @param session the session.
+     * @param created whether the step created the session.
+     */
+    private void abandonStep(CommandSession session, boolean created)
+    {
+        session.endStep();
+        if (created)
+        {
+            sessionStore.remove(session);
+        }
     }
 
     /**
@@ -179,7 +516,174 @@ public class CommandQueryHandler extends AbstractQueryHandler
     public List<Discoverable> getDiscoChildren()
     {
         List<Discoverable> result = new ArrayList<Discoverable>();
-        result.addAll(commandMap.values());
+        for (Command command : commandMap.values())
+        {
+            result.add(command.discoverable);
+        }
         return Collections.unmodifiableList(result);
     }
+
+    /**
+     * A configured command.  A command which hasn't been created yet is resolved the first time it is
+     * used, which creates it along with its executor and cache.
+     */
+    private static class Command
+    {
+        /**
+         * What disco shows for the command.
+         */
+        private Discoverable discoverable;
+
+        /**
+         * The loader which creates the command, or <code>null</code> if it was added already created.
+         */
+        private LazyLoader<CommandHandler> loader;
+
+        /**
+         * The configuration of the command's executor, or <code>null</code> for none.
+         */
+        private Element executorConfig;
+
+        /**
+         * The configuration of the command's cache, or <code>null</code> for none.
+         */
+        private Element cacheConfig;
+
+        /**
+         * The handler for the command, or <code>null</code> if not resolved yet.
+         */
+        private volatile CommandHandler handler;
+
+        /**
+         * The executor the command runs on, or <code>null</code> to run it on the stream's thread.
+         */
+        private volatile CommandExecutor executor;
+
+        /**
+         * Whether the command has been removed, after which it can no longer be resolved.
+         */
+        private boolean retired;
+
+        /**
+         * Constructs the command.
+         *
+         * @param discoverable what disco shows for the command, which is the handler itself if the
+         *        command has already been created.
+         * @param loader the loader which creates the command, or <code>null</code> if the discoverable
+         *        is the handler itself.
+         * @param executorConfig the configuration of the command's executor, or <code>null</code> for none.
+         * @param cacheConfig the configuration of the command's cache, or <code>null</code> for none.
+         */
+        private Command(Discoverable discoverable, LazyLoader<CommandHandler> loader,
+                        Element executorConfig, Element cacheConfig)
+        {
+            this.discoverable = discoverable;
+            this.loader = loader;
+            this.executorConfig = executorConfig;
+            this.cacheConfig = cacheConfig;
+        }
+
+        /**
+         * Creates the handler and executor for the command, if they haven't been already.
+         *
+         * @throws PacketException if the command can't be created, or has been removed.
+         */
+        private void resolve() throws PacketException
+        {
+            if (handler != null)
+            {
+                return;
+            }
+
+            synchronized (this)
+            {
+                if (retired)
+                {
+                    throw new PacketException(PacketError.CANCEL,
+                                              PacketError.ITEM_NOT_FOUND_CONDITION);
+                }
+                if (handler != null)
+                {
+                    return;
+                }
+
+                CommandHandler newHandler = (discoverable instanceof CommandHandler) ?
+                                            (CommandHandler) discoverable : loader.get();
+                if (newHandler == null)
+                {
+                    throw new PacketException(PacketError.CANCEL,
+                                              PacketError.INTERNAL_SERVER_ERROR_CONDITION);
+                }
+
+                if (executorConfig != null || newHandler instanceof AsyncCommandHandler)
+                {
+                    executor = new CommandExecutor(newHandler.getName(), executorConfig);
+                }
+                if (cacheConfig != null)
+                {
+                    // A cached command which would run asynchronously runs synchronously on its executor.
+                    newHandler = new CachingCommandHandler(newHandler, cacheConfig);
+                }
+                handler = newHandler;
+            }
+        }
+
+        /**
+         * Marks the command as removed, shutting down its executor.
+         */
+        private synchronized void retire()
+        {
+            retired = true;
+            if (executor != null)
+            {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * What disco shows for a command which may not have been created yet.  It is described only by the
+     * node and name from the configuration, whether or not it has been created since, so that what disco
+     * remembers about it stays right.
+     */
+    private static class DeclaredCommand implements Discoverable
+    {
+        /**
+         * The node.
+         */
+        private String node;
+
+        /**
+         * The name.
+         */
+        private String name;
+
+        /**
+         * Constructs the declared command.
+         *
+         * @param node the node.
+         * @param name the name.
+         */
+        private DeclaredCommand(String node, String name)
+        {
+            this.node = node;
+            this.name = name;
+        }
+
+        public String getNode()
+        {
+            return node;
+        }
+
+        public void populateDiscoInfo(DiscoInfoQuery query)
+        {
+            query.addIdentity("automation", "command-node", name);
+            query.addFeature(CommandQuery.NAMESPACE);
+        }
+
+        public List<Discoverable> getDiscoChildren()
+        {
+            return Collections.emptyList();
+        }
+    }
 }
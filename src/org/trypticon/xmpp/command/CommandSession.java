@@ -0,0 +1,232 @@
+/*
+ * Copyright 2004-2005 Trypticon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trypticon.xmpp.command;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jabberstudio.jso.JID;
+
+/**
+ * The state of one execution of an ad-hoc command, which lasts from the first request until the command
+ * completes or is cancelled.  Commands which take several steps can keep whatever they like here between
+ * steps, instead of working it all out again from the form each time.
+ * <p>
+ * Requests in the same session may arrive on different threads, but are never handled at the same time:
+ * a request which arrives while another step of the same session is still being handled is turned away.
+ */
+public class CommandSession
+{
+    /**
+     * Rough bytes taken by a session with no attributes.
+     */
+    private static final int BASE_SIZE = 160;
+
+    /**
+     * Rough bytes taken by each attribute, besides its key and value.
+     */
+    private static final int ATTRIBUTE_SIZE = 48;
+
+    /**
+     * Rough bytes taken by a value which isn't a string.
+     */
+    private static final int VALUE_SIZE = 32;
+
+    /**
+     * The session ID.
+     */
+    private String id;
+
+    /**
+     * The node of the command.
+     */
+    private String node;
+
+    /**
+     * The JID which started the session.
+     */
+    private JID requester;
+
+    /**
+     * The attributes.
+     */
+    private Map<String, Object> attributes = new HashMap<String, Object>();
+
+    /**
+     * The time the session was last used.
+     */
+    private volatile long lastAccessed;
+
+    /**
+     * Set once the command has completed or been cancelled.
+     */
+    private volatile boolean finished;
+
+    /**
+     * Set while a step of the command is being handled.
+     */
+    private AtomicBoolean busy = new AtomicBoolean();
+
+    /**
+     * Constructs the session.
+     *
+     * @param id the session ID.
+     * @param node the node of the command.
+     * @param requester the JID which started the session.
+     */
+    public CommandSession(String id, String node, JID requester)
+    {
+        this.id = id;
+        this.node = node;
+        this.requester = requester;
+        this.lastAccessed = System.currentTimeMillis();
+    }
+
+    /**
+     * Gets the session ID.
+     *
+     * @return the session ID.
+     */
+    public String getID()
+    {
+        return id;
+    }
+
+    /**
+     * Gets the node of the command.
+     *
+     * @return the node.
+     */
+    public String getNode()
+    {
+        return node;
+    }
+
+    /**
+     * Gets the JID which started the session.
+     *
+     * @return the JID, or <code>null</code> if the request didn't say.
+     */
+    public JID getRequester()
+    {
+        return requester;
+    }
+
+    /**
+     * Gets an attribute.
+     *
+     * @param key the key.
+     * @return the value, or <code>null</code> if there is none.
+     */
+    public synchronized Object getAttribute(String key)
+    {
+        return attributes.get(key);
+    }
+
+    /**
+     * Sets an attribute.
+     *
+     * @param key the key.
+     * @param value the value, or <code>null</code> to remove the attribute.
+     */
+    public synchronized void setAttribute(String key, Object value)
+    {
+        if (value == null)
+        {
+            attributes.remove(key);
+        }
+        else
+        {
+            attributes.put(key, value);
+        }
+    }
+
+    /**
+     * Marks the session as finished, so that it is forgotten once the current request has been handled.
+     * Sessions are also finished automatically when the command completes or is cancelled.
+     */
+    public void finish()
+    {
+        finished = true;
+    }
+
+    /**
+     * Checks whether the session has finished.
+     *
+     * @return <code>true</code> if the session has finished.
+     */
+    public boolean isFinished()
+    {
+        return finished;
+    }
+
+    /**
+     * Marks the session as having a step handled, unless it already has one.
+     *
+     * @return <code>true</code> if the step may go ahead, <code>false</code> if another step is still
+     *         being handled.
+     */
+    boolean beginStep()
+    {
+        return busy.compareAndSet(false, true);
+    }
+
+    /**
+     * Marks the session as having no step handled.
+     */
+    void endStep()
+    {
+        busy.set(false);
+    }
+
+    /**
+     * Gets the time the session was last used.
+     *
+     * @return the time, in milliseconds since the epoch.
+     */
+    public long getLastAccessed()
+    {
+        return lastAccessed;
+    }
+
+    /**
+     * Records that the session has just been used.
+     */
+    void touch()
+    {
+        lastAccessed = System.currentTimeMillis();
+    }
+
+    /**
+     * Roughly estimates the memory taken by the session.  Strings are counted in full, and other values
+     * at a fixed size.
+     *
+     * @return the estimate, in bytes.
+     */
+    public synchronized long estimateSize()
+    {
+        long size = BASE_SIZE + 2 * (id.length() + node.length());
+        for (Map.Entry<String, Object> entry : attributes.entrySet())
+        {
+            size += ATTRIBUTE_SIZE + 2 * entry.getKey().length();
+            Object value = entry.getValue();
+            size += (value instanceof String) ? 2 * ((String) value).length() : VALUE_SIZE;
+        }
+        return size;
+    }
+}
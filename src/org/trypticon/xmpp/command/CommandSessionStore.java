@@ -0,0 +1,311 @@
+/*
+ * Copyright 2004-2005 Trypticon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trypticon.xmpp.command;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jabberstudio.jso.JID;
+import org.jabberstudio.jso.util.IdentityGenerator;
+import org.jdom.Element;
+
+/**
+ * Keeps the sessions of ad-hoc commands which are in progress.
+ * <p>
+ * Sessions are forgotten when their command finishes, when they have been idle for too long, or when
+ * there are too many and they are the least recently used.  Idle sessions are swept away periodically
+ * on a thread shared by all stores.
+ */
+public class CommandSessionStore
+{
+    /**
+     * Logger.
+     */
+    private static final Log log = LogFactory.getLog(CommandSessionStore.class);
+
+    /**
+     * The scheduler shared by all stores.
+     */
+    private static final ScheduledExecutorService sweeper =
+            Executors.newSingleThreadScheduledExecutor(new SweeperThreadFactory());
+
+    /**
+     * The sessions, keyed by session ID.
+     */
+    private ConcurrentMap<String, CommandSession> sessionMap = new ConcurrentHashMap<String, CommandSession>();
+
+    /**
+     * The most sessions to keep.
+     */
+    private volatile int maxSessions = 1000;
+
+    /**
+     * How long a session may be idle before it is forgotten, in milliseconds.
+     */
+    private volatile long idleTimeout = 600000;
+
+    /**
+     * The number of sessions forgotten for being idle.
+     */
+    private AtomicLong expiredCount = new AtomicLong();
+
+    /**
+     * The number of sessions forgotten to make room.
+     */
+    private AtomicLong evictedCount = new AtomicLong();
+
+    /**
+     * The periodic sweep for idle sessions.
+     */
+    private ScheduledFuture<?> sweep;
+
+    /**
+     * Constructs the store.
+     */
+    public CommandSessionStore()
+    {
+        setIdleTimeout(idleTimeout);
+    }
+
+    /**
+     * Configures the store.
+     *
+     * @param config the XML configuration element, which may be <code>null</code>.
+     */
+    public void configure(Element config)
+    {
+        if (config == null)
+        {
+            return;
+        }
+
+        String maxSessionsString = config.getChildTextTrim("maxsessions");
+        if (maxSessionsString != null)
+        {
+            setMaxSessions(Integer.parseInt(maxSessionsString));
+        }
+
+        String idleTimeoutString = config.getChildTextTrim("idletimeout");
+        if (idleTimeoutString != null)
+        {
+            setIdleTimeout(Long.parseLong(idleTimeoutString));
+        }
+    }
+
+    /**
+     * Sets the most sessions to keep.
+     *
+     * @param maxSessions the maximum.
+     * @throws IllegalArgumentException if <code>maxSessions</code> is not positive.
+     */
+    public void setMaxSessions(int maxSessions)
+    {
+        if (maxSessions < 1)
+        {
+            throw new IllegalArgumentException("Maximum number of sessions must be positive");
+        }
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * Sets how long a session may be idle before it is forgotten.
+     *
+     * @param idleTimeout the timeout, in milliseconds.
+     * @throws IllegalArgumentException if <code>idleTimeout</code> is not positive.
+     */
+    public synchronized void setIdleTimeout(long idleTimeout)
+    {
+        if (idleTimeout <= 0)
+        {
+            throw new IllegalArgumentException("Idle timeout must be positive");
+        }
+        this.idleTimeout = idleTimeout;
+
+        if (sweep != null)
+        {
+            sweep.cancel(false);
+        }
+        long period = Math.max(1000, idleTimeout / 4);
+        sweep = sweeper.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                evictIdle();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts a new session, forgetting the least recently used session if there are too many.
+     *
+     * @param node the node of the command.
+     * @param requester the JID starting the session.
+     * @return the session.
+     */
+    public CommandSession create(String node, JID requester)
+    {
+        if (sessionMap.size() >= maxSessions)
+        {
+            evictOldest();
+        }
+
+        CommandSession session = new CommandSession(IdentityGenerator.generateGlobal(), node, requester);
+        sessionMap.put(session.getID(), session);
+        return session;
+    }
+
+    /**
+     * Gets a session which is in progress, and records that it has been used.
+     *
+     * @param id the session ID.
+     * @return the session, or <code>null</code> if there is no such session.
+     */
+    public CommandSession get(String id)
+    {
+        CommandSession session = sessionMap.get(id);
+        if (session != null)
+        {
+            session.touch();
+        }
+        return session;
+    }
+
+    /**
+     * Forgets a session.
+     *
+     * @param session the session.
+     */
+    public void remove(CommandSession session)
+    {
+        sessionMap.remove(session.getID(), session);
+    }
+
+    /**
+     * Gets the number of sessions in progress.
+     *
+     * @return the number of sessions.
+     */
+    public int getSessionCount()
+    {
+        return sessionMap.size();
+    }
+
+    /**
+     * Roughly estimates the memory taken by the sessions in progress.
+     *
+     * @return the estimate, in bytes.
+     */
+    public long getEstimatedMemory()
+    {
+        long total = 0;
+        for (CommandSession session : sessionMap.values())
+        {
+            total += session.estimateSize();
+        }
+        return total;
+    }
+
+    /**
+     * Gets the number of sessions which have been forgotten for being idle.
+     *
+     * @return the number of sessions.
+     */
+    public long getExpiredCount()
+    {
+        return expiredCount.get();
+    }
+
+    /**
+     * Gets the number of sessions which have been forgotten to make room for new ones.
+     *
+     * @return the number of sessions.
+     */
+    public long getEvictedCount()
+    {
+        return evictedCount.get();
+    }
+
+    /**
+     * Forgets any sessions which have been idle for too long.  This is done periodically anyway.
+     */
+    public void evictIdle()
+    {
+        long cutoff = System.currentTimeMillis() - idleTimeout;
+        for (Iterator<CommandSession> iterator = sessionMap.values().iterator(); iterator.hasNext(); )
+        {
+            CommandSession session = iterator.next();
+            if (session.getLastAccessed() < cutoff)
+            {
+                iterator.remove();
+                expiredCount.incrementAndGet();
+                if (log.isDebugEnabled())
+                {
+                    log.debug("Session " + session.getID() + " for " + session.getNode() + " expired");
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets the least recently used session.  Only done when the store is full, so a full scan is
+     * cheaper than keeping the sessions in order on every request.
+     */
+    private void evictOldest()
+    {
+        CommandSession oldest = null;
+        for (CommandSession session : sessionMap.values())
+        {
+            if (oldest == null || session.getLastAccessed() < oldest.getLastAccessed())
+            {
+                oldest = session;
+            }
+        }
+        if (oldest != null && sessionMap.remove(oldest.getID(), oldest))
+        {
+            evictedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Thread factory for the shared sweeper thread.  The thread is a daemon, so that it never keeps the
+     * JVM alive on its own.
+     */
+    private static class SweeperThreadFactory implements ThreadFactory
+    {
+        /**
+         * Creates a new thread.
+         *
+         * @param runnable the runnable for the thread to run.
+         * @return the thread.
+         */
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "command-session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2004-2005 Trypticon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trypticon.xmpp.command;
+
+import org.jabberstudio.jso.JID;
+import org.jabberstudio.jso.x.xdata.XDataField;
+
+/**
+ * The declaration of one field of a {@link FormTemplate}: how it is shown, and what kind of value it
+ * must hold when the form is submitted.  Immutable.
+ */
+public class FormField
+{
+    /**
+     * The kinds of value a field can hold.
+     */
+    public enum ValueType
+    {
+        /**
+         * Any text.
+         */
+        STRING,
+
+        /**
+         * A whole number which fits in an <code>int</code>.
+         */
+        INTEGER,
+
+        /**
+         * A whole number which fits in a <code>long</code>.
+         */
+        LONG,
+
+        /**
+         * A floating point number.
+         */
+        DOUBLE,
+
+        /**
+         * A boolean, as XEP-0004 writes them.
+         */
+        BOOLEAN,
+
+        /**
+         * A JID.
+         */
+        JID
+    }
+
+    /**
+     * The name of the field.
+     */
+    private final String var;
+
+    /**
+     * The type of field shown in the form.
+     */
+    private final XDataField.Type fieldType;
+
+    /**
+     * The kind of value the field holds.
+     */
+    private final ValueType valueType;
+
+    /**
+     * The label shown for the field, or <code>null</code> for none.
+     */
+    private final String label;
+
+    /**
+     * Whether the field must be filled in.
+     */
+    private final boolean required;
+
+    /**
+     * Constructs a required single-line text field.
+     *
+     * @param var the name of the field.
+     * @param label the label shown for the field, or <code>null</code> for none.
+     * @param valueType the kind of value the field holds.
+     */
+    public FormField(String var, String label, ValueType valueType)
+    {
+        this(var, label, valueType, (valueType == ValueType.BOOLEAN) ? XDataField.BOOLEAN : XDataField.TEXT_SINGLE,
+             true);
+    }
+
+    /**
+     * Constructs a field.
+     *
+     * @param var the name of the field.
+     * @param label the label shown for the field, or <code>null</code> for none.
+     * @param valueType the kind of value the field holds.
+     * @param fieldType the type of field shown in the form.
+     * @param required whether the field must be filled in.
+     */
+    public FormField(String var, String label, ValueType valueType, XDataField.Type fieldType, boolean required)
+    {
+        this.var = var;
+        this.label = label;
+        this.valueType = valueType;
+        this.fieldType = fieldType;
+        this.required = required;
+    }
+
+    /**
+     * Gets the name of the field.
+     *
+     * @return the name.
+     */
+    public String getVar()
+    {
+        return var;
+    }
+
+    /**
+     * Gets the label shown for the field.
+     *
+     * @return the label, or <code>null</code> for none.
+     */
+    public String getLabel()
+    {
+        return label;
+    }
+
+    /**
+     * Gets the kind of value the field holds.
+     *
+     * @return the kind of value.
+     */
+    public ValueType getValueType()
+    {
+        return valueType;
+    }
+
+    /**
+     * Gets the type of field shown in the form.
+     *
+     * @return the type of field.
+     */
+    public XDataField.Type getFieldType()
+    {
+        return fieldType;
+    }
+
+    /**
+     * Checks whether the field must be filled in.
+     *
+     * @return <code>true</code> if the field is required.
+     */
+    public boolean isRequired()
+    {
+        return required;
+    }
+
+    /**
+     * Parses a submitted value of the field.
+     *
+     * @param text the submitted text, trimmed.
+     * @return the value, of the class matching the field's value type.
+     * @throws IllegalArgumentException if the text isn't a value of the right kind.
+     */
+    Object parse(String text)
+    {
+        switch (valueType)
+        {
+            case INTEGER:
+                return Integer.valueOf(text);
+            case LONG:
+                return Long.valueOf(text);
+            case DOUBLE:
+                return Double.valueOf(text);
+            case BOOLEAN:
+                if ("1".equals(text) || "true".equals(text))
+                {
+                    return Boolean.TRUE;
+                }
+                if ("0".equals(text) || "false".equals(text))
+                {
+                    return Boolean.FALSE;
+                }
+                throw new IllegalArgumentException("Not a boolean: " + text);
+            case JID:
+                return JID.valueOf(text);
+            default:
+                return text;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2004-2005 Trypticon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trypticon.xmpp.command;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import net.outer_planes.jso.JSO;
+import org.jabberstudio.jso.PacketError;
+import org.jabberstudio.jso.StreamDataFactory;
+import org.jabberstudio.jso.util.PacketException;
+import org.jabberstudio.jso.x.xdata.XDataField;
+import org.jabberstudio.jso.x.xdata.XDataForm;
+
+/**
+ * A form shown by a command, declared once and built once.  Each response gets a copy of the built form,
+ * which is much cheaper than building it again, and submitted forms are checked and parsed against the
+ * declared fields in one go.  Immutable, so one template can be shared by every request.
+ */
+public class FormTemplate
+{
+    /**
+     * The declared fields, in order.
+     */
+    private final FormField[] fields;
+
+    /**
+     * The built form, which is only ever copied.
+     */
+    private final XDataForm prototype;
+
+    /**
+     * Constructs the template, building the form.
+     *
+     * @param title the title of the form, or <code>null</code> for none.
+     * @param instructions the instructions shown with the form, or <code>null</code> for none.
+     * @param fields the fields, in the order they are shown.
+     */
+    public FormTemplate(String title, String instructions, FormField... fields)
+    {
+        this.fields = fields.clone();
+
+        StreamDataFactory factory = JSO.getInstance().getDataFactory();
+        prototype = (XDataForm) factory.createExtensionNode(XDataForm.NAME);
+        prototype.setType(XDataForm.FORM);
+        if (title != null)
+        {
+            prototype.setTitle(title);
+        }
+        if (instructions != null)
+        {
+            prototype.addInstruction(instructions);
+        }
+        for (FormField field : this.fields)
+        {
+            XDataField element = prototype.addField(field.getVar(), field.getFieldType());
+            if (field.getLabel() != null)
+            {
+                element.setLabel(field.getLabel());
+            }
+            element.setRequired(field.isRequired());
+        }
+    }
+
+    /**
+     * Gets a new copy of the form, to send in a response.
+     *
+     * @return the form.
+     */
+    public XDataForm newForm()
+    {
+        // Copying only reads the prototype, but the DOM underneath makes no promises about that.
+        synchronized (prototype)
+        {
+            return (XDataForm) prototype.copy();
+        }
+    }
+
+    /**
+     * Checks and parses a submitted form against the declared fields.  Fields which weren't declared are
+     * ignored.
+     *
+     * @param form the submitted form.
+     * @return the values.
+     * @throws PacketException if a required field is missing or a value is of the wrong kind.
+     */
+    public FormValues bind(XDataForm form) throws PacketException
+    {
+        Map<String, Object> values = new HashMap<String, Object>();
+        for (FormField field : fields)
+        {
+            String text = form.getFieldValue(field.getVar());
+            if (text != null)
+            {
+                text = text.trim();
+            }
+
+            if (text == null || text.length() == 0)
+            {
+                if (field.isRequired())
+                {
+                    throw new PacketException("Field " + field.getVar() + " is required",
+                                              PacketError.MODIFY, PacketError.BAD_REQUEST_CONDITION);
+                }
+                continue;
+            }
+
+            try
+            {
+                values.put(field.getVar(), field.parse(text));
+            }
+            catch (IllegalArgumentException e)
+            {
+                throw new PacketException("Field " + field.getVar() + " is not a valid " +
+                                          field.getValueType().name().toLowerCase(Locale.ENGLISH),
+                                          PacketError.MODIFY, PacketError.BAD_REQUEST_CONDITION);
+            }
+        }
+        return new FormValues(Collections.unmodifiableMap(values));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2004-2005 Trypticon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trypticon.xmpp.command;
+
+import java.util.Map;
+
+import org.jabberstudio.jso.JID;
+
+/**
+ * The values of a submitted form, already checked and parsed against its {@link FormTemplate}.
+ * Immutable.
+ */
+public class FormValues
+{
+    /**
+     * The values, keyed by field name.  Fields which weren't filled in are missing.
+     */
+    private final Map<String, Object> values;
+
+    /**
+     * Constructs the values.
+     *
+     * @param values the values, keyed by field name, which must not be changed afterwards.
+     */
+    FormValues(Map<String, Object> values)
+    {
+        this.values = values;
+    }
+
+    /**
+     * Checks whether a field was filled in.
+     *
+     * @param var the name of the field.
+     * @return <code>true</code> if the field has a value.
+     */
+    public boolean has(String var)
+    {
+        return values.containsKey(var);
+    }
+
+    /**
+     * Gets the value of a field.
+     *
+     * @param var the name of the field.
+     * @return the value, or <code>null</code> if the field wasn't filled in.
+     */
+    public Object get(String var)
+    {
+        return values.get(var);
+    }
+
+    /**
+     * Gets the value of a {@link FormField.ValueType#STRING} field.
+     *
+     * @param var the name of the field.
+     * @return the value, or <code>null</code> if the field wasn't filled in.
+     */
+    public String getString(String var)
+    {
+        return (String) values.get(var);
+    }
+
+    /**
+     * Gets the value of a {@link FormField.ValueType#INTEGER} field.
+     *
+     * @param var the name of the field.
+     * @return the value.
+     * @throws NullPointerException if the field wasn't filled in.
+     */
+    public int getInt(String var)
+    {
+        return ((Integer) values.get(var)).intValue();
+    }
+
+    /**
+     * Gets the value of a {@link FormField.ValueType#LONG} field.
+     *
+     * @param var the name of the field.
+     * @return the value.
+     * @throws NullPointerException if the field wasn't filled in.
+     */
+    public long getLong(String var)
+    {
+        return ((Long) values.get(var)).longValue();
+    }
+
+    /**
+     * Gets the value of a {@link FormField.ValueType#DOUBLE} field.
+     *
+     * @param var the name of the field.
+     * @return the value.
+     * @throws NullPointerException if the field wasn't filled in.
+     */
+    public double getDouble(String var)
+    {
+        return ((Double) values.get(var)).doubleValue();
+    }
+
+    /**
+     * Gets the value of a {@link FormField.ValueType#BOOLEAN} field.
+     *
+     * @param var the name of the field.
+     * @return the value.
+     * @throws NullPointerException if the field wasn't filled in.
+     */
+    public boolean getBoolean(String var)
+    {
+        return ((Boolean) values.get(var)).booleanValue();
+    }
+
+    /**
+     * Gets the value of a {@link FormField.ValueType#JID} field.
+     *
+     * @param var the name of the field.
+     * @return the value, or <code>null</code> if the field wasn't filled in.
+     */
+    public JID getJID(String var)
+    {
+        return (JID) values.get(var);
+    }
+}
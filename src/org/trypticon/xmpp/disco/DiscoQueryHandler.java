@@ -16,10 +16,9 @@
 
 package org.trypticon.xmpp.disco;
 
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.trypticon.xmpp.util.AbstractQueryHandler;
 
@@ -27,19 +26,32 @@ import org.jabberstudio.jso.Extension;
 import org.jabberstudio.jso.JID;
 import org.jabberstudio.jso.Packet;
 import org.jabberstudio.jso.PacketError;
+import org.jabberstudio.jso.StreamDataFactory;
 import org.jabberstudio.jso.util.PacketException;
+import org.jabberstudio.jso.x.disco.DiscoIdentity;
 import org.jabberstudio.jso.x.disco.DiscoInfoQuery;
-import org.jabberstudio.jso.x.disco.DiscoItemsQuery;;
+import org.jabberstudio.jso.x.disco.DiscoItemsQuery;
 
 /**
  * A packet listener which handles service discovery info requests.
+ * <p>
+ * What each node says about itself and its children is worked out the first time it is asked for and
+ * then remembered, since clients ask the same questions over and over.  Everything remembered is forgotten
+ * whenever a discoverable object is added or removed, so a discoverable object must describe itself the
+ * same way until then, or call {@link #invalidate()} when it changes.
  */
 public class DiscoQueryHandler extends AbstractQueryHandler
 {
     /**
      * A mapping from nodes to discoverable objects.
      */
-    private Map<String, Discoverable> discoverableMap = new HashMap<String, Discoverable>();
+    private ConcurrentMap<String, Discoverable> discoverableMap = new ConcurrentHashMap<String, Discoverable>();
+
+    /**
+     * The remembered responses.  Replaced as a whole when invalidated, so that a response worked out
+     * from the old tree is never remembered in the new cache.
+     */
+    private volatile ResponseCache cache = new ResponseCache();
 
     /**
      * Creates the query handler.
@@ -59,6 +71,29 @@ public class DiscoQueryHandler extends AbstractQueryHandler
     public void addDiscoverable(Discoverable discoverable)
     {
         discoverableMap.put(discoverable.getNode(), discoverable);
+        invalidate();
+    }
+
+    /**
+     * Removes a discoverable object, if it is still the one handling queries on its node.
+     *
+     * @param discoverable the discoverable object.
+     */
+    public void removeDiscoverable(Discoverable discoverable)
+    {
+        if (discoverableMap.remove(discoverable.getNode(), discoverable))
+        {
+            invalidate();
+        }
+    }
+
+    /**
+     * Forgets all remembered responses, for when a discoverable object changes how it describes itself
+     * or its children.
+     */
+    public void invalidate()
+    {
+        cache = new ResponseCache();
     }
 
     /**
@@ -82,51 +117,205 @@ public class DiscoQueryHandler extends AbstractQueryHandler
      */
     protected void doQuery(Extension request, Extension response) throws PacketException
     {
+        // Taken once, so that everything worked out here goes into the same cache.
+        ResponseCache currentCache = cache;
+
         if (request instanceof DiscoInfoQuery)
         {
             DiscoInfoQuery infoRequest = (DiscoInfoQuery) request;
             DiscoInfoQuery infoResponse = (DiscoInfoQuery) response;
 
-            Discoverable support = discoverableMap.get(infoRequest.getNode());
-
-            if (support == null)
+            InfoSnapshot info = currentCache.info.get(nodeKey(infoRequest.getNode()));
+            if (info == null)
             {
-                throw new PacketException(PacketError.CANCEL,
-                                          PacketError.ITEM_NOT_FOUND_CONDITION);
+                Discoverable support = discoverableMap.get(infoRequest.getNode());
+
+                if (support == null)
+                {
+                    throw new PacketException(PacketError.CANCEL,
+                                              PacketError.ITEM_NOT_FOUND_CONDITION);
+                }
+
+                info = new InfoSnapshot(support, response.getDataFactory());
+                currentCache.info.put(nodeKey(infoRequest.getNode()), info);
             }
 
-            support.populateDiscoInfo(infoResponse);
+            info.apply(infoResponse);
         }
         else
         {
             DiscoItemsQuery itemsRequest = (DiscoItemsQuery) request;
             DiscoItemsQuery itemsResponse = (DiscoItemsQuery) response;
 
-            Discoverable support = discoverableMap.get(itemsRequest.getNode());
+            ItemsSnapshot items = currentCache.items.get(nodeKey(itemsRequest.getNode()));
+            if (items == null)
+            {
+                Discoverable support = discoverableMap.get(itemsRequest.getNode());
+
+                if (support == null)
+                {
+                    throw new PacketException(PacketError.CANCEL,
+                                              PacketError.ITEM_NOT_FOUND_CONDITION);
+                }
+
+                items = new ItemsSnapshot(support, response.getDataFactory());
+                currentCache.items.put(nodeKey(itemsRequest.getNode()), items);
+            }
+
+            // The bot's own JID can change when it reconnects, so it isn't remembered.
+            JID self = ((Packet) itemsResponse.getParent()).getFrom();
+            items.apply(itemsResponse, self);
+        }
+    }
+
+    /**
+     * Gets the key a node's responses are remembered under.  Concurrent maps can't hold a
+     * <code>null</code> key, which a query without a node would otherwise have.
+     *
+     * @param node the node, which may be <code>null</code>.
+     * @return the key.
+     */
+    private static String nodeKey(String node)
+    {
+        return (node == null) ? "" : node;
+    }
+
+    /**
+     * The remembered responses, keyed by node.
+     */
+    private static class ResponseCache
+    {
+        /**
+         * The remembered disco#info responses.
+         */
+        private ConcurrentMap<String, InfoSnapshot> info = new ConcurrentHashMap<String, InfoSnapshot>();
+
+        /**
+         * The remembered disco#items responses.
+         */
+        private ConcurrentMap<String, ItemsSnapshot> items = new ConcurrentHashMap<String, ItemsSnapshot>();
+    }
+
+    /**
+     * What a discoverable object says about itself, worked out once and copied into each response.
+     */
+    private static class InfoSnapshot
+    {
+        /**
+         * The name, or <code>null</code> if there is none.
+         */
+        private String name;
+
+        /**
+         * The category, type and name of each identity.
+         */
+        private String[][] identities;
+
+        /**
+         * The features.
+         */
+        private String[] features;
 
-            if (support == null)
+        /**
+         * Works out what a discoverable object says about itself.
+         *
+         * @param discoverable the discoverable object.
+         * @param factory the factory to create a scratch query with.
+         */
+        private InfoSnapshot(Discoverable discoverable, StreamDataFactory factory)
+        {
+            DiscoInfoQuery info = (DiscoInfoQuery) factory.createExtensionNode(DiscoInfoQuery.NAME);
+            info.setNode(discoverable.getNode());
+            discoverable.populateDiscoInfo(info);
+
+            name = info.getName();
+
+            List identityList = info.listIdentities();
+            identities = new String[identityList.size()][];
+            for (int i = 0; i < identities.length; i++)
             {
-                throw new PacketException(PacketError.CANCEL,
-                                          PacketError.ITEM_NOT_FOUND_CONDITION);
+                DiscoIdentity identity = (DiscoIdentity) identityList.get(i);
+                identities[i] = new String[] { identity.getCategory(), identity.getType(), identity.getName() };
             }
 
-            List items = support.getDiscoChildren();
+            features = (String[]) info.getFeatures().toArray(new String[0]);
+        }
 
-            JID self = ((Packet) itemsResponse.getParent()).getFrom();
+        /**
+         * Copies what was worked out into a response.
+         *
+         * @param response the response query.
+         */
+        private void apply(DiscoInfoQuery response)
+        {
+            if (name != null)
+            {
+                response.setName(name);
+            }
+            for (String[] identity : identities)
+            {
+                response.addIdentity(identity[0], identity[1], identity[2]);
+            }
+            for (String feature : features)
+            {
+                response.addFeature(feature);
+            }
+        }
+    }
+
+    /**
+     * The children of a discoverable object, worked out once and copied into each response.
+     */
+    private static class ItemsSnapshot
+    {
+        /**
+         * The node of each child.
+         */
+        private String[] nodes;
 
-            // Query each of the children in term, using the same mechanism as the disco#info.
+        /**
+         * The name of each child, which may be <code>null</code>.
+         */
+        private String[] names;
+
+        /**
+         * Works out the children of a discoverable object.
+         *
+         * @param discoverable the discoverable object.
+         * @param factory the factory to create scratch queries with.
+         */
+        private ItemsSnapshot(Discoverable discoverable, StreamDataFactory factory)
+        {
+            List<Discoverable> items = discoverable.getDiscoChildren();
+            nodes = new String[items.size()];
+            names = new String[items.size()];
+
+            // Query each of the children in turn, using the same mechanism as the disco#info.
             // This generates a nice and consistent naming for the discovery tree.
-            Iterator itemIterator = items.iterator();
-            while (itemIterator.hasNext())
+            int i = 0;
+            for (Discoverable item : items)
             {
-                Discoverable item = (Discoverable) itemIterator.next();
-
-                DiscoInfoQuery info = (DiscoInfoQuery)
-                        itemsResponse.getDataFactory().createExtensionNode(DiscoInfoQuery.NAME);
+                DiscoInfoQuery info = (DiscoInfoQuery) factory.createExtensionNode(DiscoInfoQuery.NAME);
                 info.setNode(item.getNode());
                 item.populateDiscoInfo(info);
 
-                itemsResponse.addItem(self, info.getNode(), info.getName());
+                nodes[i] = info.getNode();
+                names[i] = info.getName();
+                i++;
+            }
+        }
+
+        /**
+         * Copies the children into a response.
+         *
+         * @param response the response query.
+         * @param self the JID the children are found at.
+         */
+        private void apply(DiscoItemsQuery response, JID self)
+        {
+            for (int i = 0; i < nodes.length; i++)
+            {
+                response.addItem(self, nodes[i], names[i]);
             }
         }
     }
@@ -0,0 +1,705 @@
+/*
+ * Copyright 2004-2005 Trypticon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trypticon.xmpp.sm;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jabberstudio.jso.InfoQuery;
+import org.jabberstudio.jso.Message;
+import org.jabberstudio.jso.NSI;
+import org.jabberstudio.jso.Packet;
+import org.jabberstudio.jso.PacketRouter;
+import org.jabberstudio.jso.Presence;
+import org.jabberstudio.jso.Stream;
+import org.jabberstudio.jso.StreamException;
+import org.jabberstudio.jso.StreamFeature;
+import org.jabberstudio.jso.StreamFeatureset;
+import org.jabberstudio.jso.event.PacketEvent;
+import org.jabberstudio.jso.event.PacketListener;
+import org.jabberstudio.jso.features.AbstractFeatureConsumer;
+import org.jabberstudio.jso.features.FeatureConsumer;
+import org.jabberstudio.jso.features.FeatureContext;
+
+/**
+ * Implements Stream Management (XEP-0198) for a client.
+ * <p>
+ * Once enabled, stanzas in both directions are counted.  Stanzas we send are kept until the server
+ * acknowledges them, and the server's requests for acknowledgement are answered.  If the connection
+ * drops, the next connection can resume the session instead of binding a new resource, in which case
+ * anything the server never received is sent again and the bot's state can be kept as it was.
+ * <p>
+ * A single instance should be kept for the lifetime of a bot, and attached to each new stream.  The
+ * consumers from {@link #createResumeConsumer()} and {@link #createEnableConsumer()} should be
+ * registered with the feature consumer manager after the SASL consumer, with the bind and session
+ * consumers wrapped using {@link #unlessResumed(FeatureConsumer)} between them.
+ */
+public class StreamManagement implements PacketListener
+{
+    /**
+     * The namespace for stream management.
+     */
+    public static final String NAMESPACE = "urn:xmpp:sm:3";
+
+    // Element names
+    private static final NSI ENABLE = new NSI("enable", NAMESPACE);
+    private static final NSI RESUME = new NSI("resume", NAMESPACE);
+    private static final NSI REQUEST = new NSI("r", NAMESPACE);
+    private static final NSI ANSWER = new NSI("a", NAMESPACE);
+
+    /**
+     * Stanza counts wrap around at 2^32.
+     */
+    private static final long COUNT_MASK = 0xFFFFFFFFL;
+
+    /**
+     * Logger.
+     */
+    private static final Log log = LogFactory.getLog(StreamManagement.class);
+
+    /**
+     * The number of stanzas to send before requesting an acknowledgement.
+     */
+    private int ackInterval = 5;
+
+    /**
+     * The maximum number of unacknowledged stanzas to keep for resending.
+     */
+    private int maxUnacked = 1000;
+
+    /**
+     * The stream currently attached to.
+     */
+    private Stream stream;
+
+    /**
+     * The ID of the session for resumption, or <code>null</code> if there is no session to resume.
+     */
+    private String sessionID;
+
+    /**
+     * Whether stream management is enabled on the current stream.
+     */
+    private boolean enabled;
+
+    /**
+     * Whether the current stream resumed the previous session.
+     */
+    private boolean resumed;
+
+    /**
+     * The number of stanzas we have received in the session.
+     */
+    private long inboundCount;
+
+    /**
+     * The number of our stanzas the server has acknowledged.  Only ever moved by an acknowledgement from
+     * the server.
+     */
+    private long ackedCount;
+
+    /**
+     * The number of stanzas after the acknowledged ones which were dropped from the unacknowledged
+     * buffer when it overflowed.  The oldest unacknowledged stanza kept follows these.
+     */
+    private long droppedCount;
+
+    /**
+     * Stanzas we have sent which the server has not yet acknowledged, oldest first.
+     */
+    private LinkedList<Packet> unacked = new LinkedList<Packet>();
+
+    /**
+     * The number of stanzas sent since the last request for acknowledgement.
+     */
+    private int sentSinceRequest;
+
+    /**
+     * Sets the number of stanzas to send before requesting an acknowledgement.
+     *
+     * @param ackInterval the number of stanzas.
+     * @throws IllegalArgumentException if <code>ackInterval</code> is less than one.
+     */
+    public void setAckInterval(int ackInterval)
+    {
+        if (ackInterval < 1)
+        {
+            throw new IllegalArgumentException("Ack interval must be at least one");
+        }
+        this.ackInterval = ackInterval;
+    }
+
+    /**
+     * Sets the maximum number of unacknowledged stanzas to keep for resending.  Beyond this, the oldest
+     * stanzas are discarded and would not be sent again if the session were resumed.
+     *
+     * @param maxUnacked the maximum number of stanzas.
+     * @throws IllegalArgumentException if <code>maxUnacked</code> is less than one.
+     */
+    public void setMaxUnacked(int maxUnacked)
+    {
+        if (maxUnacked < 1)
+        {
+            throw new IllegalArgumentException("Maximum unacked stanzas must be at least one");
+        }
+        this.maxUnacked = maxUnacked;
+    }
+
+    /**
+     * Attaches to a new stream.  This must be done before the stream is opened.
+     *
+     * @param stream the stream.
+     */
+    public synchronized void attach(Stream stream)
+    {
+        if (this.stream != null)
+        {
+            this.stream.removePacketListener(this);
+        }
+
+        enabled = false;
+        resumed = false;
+        sentSinceRequest = 0;
+
+        stream.addPacketListener(this);
+        this.stream = stream;
+    }
+
+    /**
+     * Tests whether the current stream resumed the previous session.
+     *
+     * @return <code>true</code> if the session was resumed, <code>false</code> otherwise.
+     */
+    public synchronized boolean isResumed()
+    {
+        return resumed;
+    }
+
+    /**
+     * Tests whether stream management is enabled on the current stream.
+     *
+     * @return <code>true</code> if it is enabled, <code>false</code> otherwise.
+     */
+    public synchronized boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Gets the number of stanzas sent but not yet acknowledged by the server.
+     *
+     * @return the number of unacknowledged stanzas.
+     */
+    public synchronized int getUnackedCount()
+    {
+        return unacked.size();
+    }
+
+    /**
+     * Creates a feature consumer which attempts to resume the previous session.  It only applies if
+     * there is a session to resume and the server supports stream management.
+     *
+     * @return the feature consumer.
+     */
+    public FeatureConsumer createResumeConsumer()
+    {
+        return new ResumeFeatureConsumer();
+    }
+
+    /**
+     * Creates a feature consumer which enables stream management on a new session.  It only applies if
+     * the server supports stream management and the session was not resumed.
+     *
+     * @return the feature consumer.
+     */
+    public FeatureConsumer createEnableConsumer()
+    {
+        return new EnableFeatureConsumer();
+    }
+
+    /**
+     * Wraps a feature consumer so that it does not apply if the session was resumed.  Resource binding
+     * and session establishment have to be skipped this way, as the resumed session already has them.
+     *
+     * @param consumer the consumer to wrap.
+     * @return the wrapped consumer.
+     */
+    public FeatureConsumer unlessResumed(FeatureConsumer consumer)
+    {
+        return new UnlessResumedFeatureConsumer(consumer);
+    }
+
+    /**
+     * Requests an acknowledgement from the server, if stream management is enabled.
+     */
+    public void requestAck()
+    {
+        PacketRouter router;
+        synchronized (this)
+        {
+            if (!enabled)
+            {
+                return;
+            }
+            sentSinceRequest = 0;
+            router = stream;
+        }
+
+        send(router, router.getDataFactory().createPacketNode(REQUEST));
+    }
+
+    /**
+     * Keeps track of stanzas in both directions, and handles stream management elements from the server.
+     *
+     * @param event the packet event.
+     */
+    public void packetTransferred(PacketEvent event)
+    {
+        Packet packet = event.getData();
+
+        if (isStanza(packet))
+        {
+            if (event.getType() == PacketEvent.RECEIVED)
+            {
+                stanzaReceived();
+            }
+            else if (event.getType() == PacketEvent.SENT)
+            {
+                stanzaSent(event.getContext().getRouter(), packet);
+            }
+        }
+        else if (event.getType() == PacketEvent.RECEIVED && NAMESPACE.equals(packet.getNamespaceURI()))
+        {
+            if ("r".equals(packet.getLocalName()))
+            {
+                answer(event.getContext().getRouter());
+            }
+            else if ("a".equals(packet.getLocalName()))
+            {
+                acknowledged(parseCount(packet.getAttributeValue("h")));
+            }
+        }
+    }
+
+    /**
+     * Counts a stanza received from the server.
+     */
+    private synchronized void stanzaReceived()
+    {
+        if (enabled)
+        {
+            inboundCount = (inboundCount + 1) & COUNT_MASK;
+        }
+    }
+
+    /**
+     * Keeps a stanza sent to the server until it is acknowledged, requesting an acknowledgement if
+     * enough stanzas have been sent.
+     *
+     * @param router the router the stanza was sent on.
+     * @param packet the stanza.
+     */
+    private void stanzaSent(PacketRouter router, Packet packet)
+    {
+        boolean request;
+        synchronized (this)
+        {
+            if (!enabled)
+            {
+                return;
+            }
+
+            unacked.addLast((Packet) packet.copy());
+            if (unacked.size() > maxUnacked)
+            {
+                unacked.removeFirst();
+                droppedCount++;
+                log.warn("Too many unacknowledged stanzas; the oldest would be lost if the session were resumed");
+            }
+
+            request = (++sentSinceRequest >= ackInterval);
+        }
+
+        if (request)
+        {
+            requestAck();
+        }
+    }
+
+    /**
+     * Answers a request for acknowledgement from the server.
+     *
+     * @param router the router to answer on.
+     */
+    private void answer(PacketRouter router)
+    {
+        long count;
+        synchronized (this)
+        {
+            count = inboundCount;
+        }
+
+        Packet answer = router.getDataFactory().createPacketNode(ANSWER);
+        answer.setAttributeValue("h", String.valueOf(count));
+        send(router, answer);
+    }
+
+    /**
+     * Handles an acknowledgement from the server, discarding the stanzas it covers.
+     *
+     * @param count the number of stanzas the server has handled, or <code>-1</code> if unknown.
+     */
+    private synchronized void acknowledged(long count)
+    {
+        if (count < 0)
+        {
+            return;
+        }
+
+        // Counts wrap, so a count more than half the range behind is older rather than far ahead.
+        long newlyAcked = (count - ackedCount) & COUNT_MASK;
+        if (newlyAcked > COUNT_MASK / 2)
+        {
+            log.warn("Server acknowledged " + count + " stanzas after already acknowledging " + ackedCount +
+                     "; ignoring it");
+            return;
+        }
+
+        long outstanding = droppedCount + unacked.size();
+        if (newlyAcked > outstanding)
+        {
+            log.warn("Server acknowledged " + newlyAcked + " stanzas but only " + outstanding + " were outstanding");
+            newlyAcked = outstanding;
+        }
+
+        // The dropped stanzas come first, and are no longer in the buffer to be discarded.
+        long fromDropped = Math.min(newlyAcked, droppedCount);
+        droppedCount -= fromDropped;
+        for (long i = fromDropped; i < newlyAcked; i++)
+        {
+            unacked.removeFirst();
+        }
+        ackedCount = count;
+    }
+
+    /**
+     * Forgets the previous session entirely.
+     */
+    private synchronized void forgetSession()
+    {
+        if (!unacked.isEmpty())
+        {
+            log.warn(unacked.size() + " unacknowledged stanzas were lost with the previous session");
+        }
+
+        sessionID = null;
+        inboundCount = 0;
+        ackedCount = 0;
+        droppedCount = 0;
+        unacked.clear();
+    }
+
+    /**
+     * Sends a packet, logging rather than throwing if it fails.  A failure here will show up as a
+     * stream error soon enough.
+     *
+     * @param router the router to send on.
+     * @param packet the packet.
+     */
+    private static void send(PacketRouter router, Packet packet)
+    {
+        try
+        {
+            router.send(packet);
+        }
+        catch (StreamException e)
+        {
+            log.warn("Failed to send stream management element " + packet.getLocalName(), e);
+        }
+    }
+
+    /**
+     * Tests whether a packet is a stanza, which is what stream management counts.
+     *
+     * @param packet the packet.
+     * @return <code>true</code> if it is a stanza, <code>false</code> otherwise.
+     */
+    private static boolean isStanza(Packet packet)
+    {
+        return packet instanceof Message || packet instanceof Presence || packet instanceof InfoQuery;
+    }
+
+    /**
+     * Parses a stanza count.
+     *
+     * @param value the value of the count attribute.
+     * @return the count, or <code>-1</code> if it is missing or invalid.
+     */
+    private static long parseCount(String value)
+    {
+        try
+        {
+            return (value == null) ? -1 : (Long.parseLong(value) & COUNT_MASK);
+        }
+        catch (NumberFormatException e)
+        {
+            log.warn("Invalid stanza count '" + value + "' from server");
+            return -1;
+        }
+    }
+
+    /**
+     * Finds the stream management feature.
+     *
+     * @param featureset the features offered by the server.
+     * @return the feature, or <code>null</code> if the server does not support stream management.
+     */
+    private static StreamFeature findStreamManagementFeature(StreamFeatureset featureset)
+    {
+        for (Object feature : featureset.listFeatures())
+        {
+            StreamFeature streamFeature = (StreamFeature) feature;
+            if (NAMESPACE.equals(streamFeature.getNamespaceURI()) && "sm".equals(streamFeature.getLocalName()))
+            {
+                return streamFeature;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Base class for consumers which send a stream management element and wait for the answer.
+     */
+    private abstract class RequestFeatureConsumer extends AbstractFeatureConsumer implements PacketListener
+    {
+        /**
+         * Sends the request and starts listening for the answer.
+         *
+         * @param request the request.
+         * @throws StreamException if the request could not be sent.
+         */
+        protected void sendRequest(Packet request) throws StreamException
+        {
+            getFeatureContext().getDispatcher().addPacketListener(PacketEvent.RECEIVED, this);
+            getFeatureContext().getRouter().send(request);
+        }
+
+        /**
+         * Waits for the answer.
+         *
+         * @param event the packet event.
+         */
+        public void packetTransferred(PacketEvent event)
+        {
+            Packet packet = event.getData();
+            if (NAMESPACE.equals(packet.getNamespaceURI()) && isAnswer(packet.getLocalName()))
+            {
+                event.setHandled(true);
+                getFeatureContext().getDispatcher().removePacketListener(PacketEvent.RECEIVED, this);
+                handleAnswer(packet);
+                completeSucceededConsumption(false);
+            }
+        }
+
+        /**
+         * Tests whether an element is an answer to the request.
+         *
+         * @param name the local name of the element.
+         * @return <code>true</code> if it is an answer, <code>false</code> otherwise.
+         */
+        protected abstract boolean isAnswer(String name);
+
+        /**
+         * Handles the answer to the request.
+         *
+         * @param answer the answer.
+         */
+        protected abstract void handleAnswer(Packet answer);
+    }
+
+    /**
+     * Consumer which resumes the previous session.
+     */
+    private class ResumeFeatureConsumer extends RequestFeatureConsumer
+    {
+        public StreamFeature findFeature(StreamFeatureset featureset)
+        {
+            synchronized (StreamManagement.this)
+            {
+                if (sessionID == null)
+                {
+                    return null;
+                }
+            }
+            return findStreamManagementFeature(featureset);
+        }
+
+        protected void startConsumption() throws StreamException
+        {
+            Packet request = getFeatureContext().getRouter().getDataFactory().createPacketNode(RESUME);
+            synchronized (StreamManagement.this)
+            {
+                request.setAttributeValue("previd", sessionID);
+                request.setAttributeValue("h", String.valueOf(inboundCount));
+            }
+            sendRequest(request);
+        }
+
+        protected boolean isAnswer(String name)
+        {
+            return "resumed".equals(name) || "failed".equals(name);
+        }
+
+        protected void handleAnswer(Packet answer)
+        {
+            if (!"resumed".equals(answer.getLocalName()))
+            {
+                log.info("Server could not resume the previous session; starting a new one");
+                forgetSession();
+                return;
+            }
+
+            List<Packet> resend;
+            synchronized (StreamManagement.this)
+            {
+                long count = parseCount(answer.getAttributeValue("h"));
+                acknowledged(count);
+                if (droppedCount > 0)
+                {
+                    log.warn(droppedCount + " stanzas dropped from the unacknowledged buffer were lost with " +
+                             "the previous session");
+                }
+
+                // The server counts the stanzas sent again on from its own count.
+                if (count >= 0)
+                {
+                    ackedCount = count;
+                }
+                droppedCount = 0;
+                resumed = true;
+                enabled = true;
+
+                // Sending these again puts them back in the queue.
+                resend = new ArrayList<Packet>(unacked);
+                unacked.clear();
+            }
+
+            log.info("Resumed previous session; sending " + resend.size() + " unacknowledged stanzas again");
+            for (Packet packet : resend)
+            {
+                send(getFeatureContext().getRouter(), packet);
+            }
+        }
+    }
+
+    /**
+     * Consumer which enables stream management on a new session.
+     */
+    private class EnableFeatureConsumer extends RequestFeatureConsumer
+    {
+        public StreamFeature findFeature(StreamFeatureset featureset)
+        {
+            if (isResumed())
+            {
+                return null;
+            }
+            return findStreamManagementFeature(featureset);
+        }
+
+        protected void startConsumption() throws StreamException
+        {
+            forgetSession();
+
+            Packet request = getFeatureContext().getRouter().getDataFactory().createPacketNode(ENABLE);
+            request.setAttributeValue("resume", "true");
+
+            // Stanzas are counted from the moment we ask, as the server will count them from then too.
+            synchronized (StreamManagement.this)
+            {
+                enabled = true;
+            }
+            sendRequest(request);
+        }
+
+        protected boolean isAnswer(String name)
+        {
+            return "enabled".equals(name) || "failed".equals(name);
+        }
+
+        protected void handleAnswer(Packet answer)
+        {
+            synchronized (StreamManagement.this)
+            {
+                if ("enabled".equals(answer.getLocalName()))
+                {
+                    String resume = answer.getAttributeValue("resume");
+                    if ("true".equals(resume) || "1".equals(resume))
+                    {
+                        sessionID = answer.getAttributeValue("id");
+                    }
+                    log.info("Stream management enabled" + (sessionID == null ? " without resumption" : ""));
+                }
+                else
+                {
+                    enabled = false;
+                    droppedCount = 0;
+                    unacked.clear();
+                    log.info("Server refused to enable stream management");
+                }
+            }
+        }
+    }
+
+    /**
+     * Consumer wrapper which does not apply if the session was resumed.
+     */
+    private class UnlessResumedFeatureConsumer implements FeatureConsumer
+    {
+        /**
+         * The wrapped consumer.
+         */
+        private FeatureConsumer consumer;
+
+        /**
+         * Constructs the wrapper.
+         *
+         * @param consumer the consumer to wrap.
+         */
+        private UnlessResumedFeatureConsumer(FeatureConsumer consumer)
+        {
+            this.consumer = consumer;
+        }
+
+        public StreamFeature findFeature(StreamFeatureset featureset)
+        {
+            return isResumed() ? null : consumer.findFeature(featureset);
+        }
+
+        public void consume(FeatureContext context) throws Exception
+        {
+            consumer.consume(context);
+        }
+
+        public void reset()
+        {
+            consumer.reset();
+        }
+    }
+}
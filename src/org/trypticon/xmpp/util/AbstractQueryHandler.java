@@ -21,6 +21,7 @@ import org.apache.commons.logging.LogFactory;
 import org.jabberstudio.jso.Extension;
 import org.jabberstudio.jso.InfoQuery;
 import org.jabberstudio.jso.Packet;
+import org.jabberstudio.jso.PacketRouter;
 import org.jabberstudio.jso.StreamDataFactory;
 import org.jabberstudio.jso.StreamException;
 import org.jabberstudio.jso.event.PacketEvent;
@@ -29,6 +30,12 @@ import org.jabberstudio.jso.util.PacketException;
 
 /**
  * Contains the common factor of all handlers of {@link InfoQuery} packets.
+ * <p>
+ * Most queries are performed straight away on the thread processing the stream.  A handler may instead
+ * start a query and return a {@link QueryTask} which finishes it elsewhere, in which case the response
+ * is sent once the task is done, and the stream carries on meanwhile.  A task which fails or is cancelled
+ * gets an error response without the query in it, since a cancelled task may still be writing to the
+ * query.
  */
 public abstract class AbstractQueryHandler implements PacketListener
 {
@@ -37,6 +44,24 @@ public abstract class AbstractQueryHandler implements PacketListener
      */
     private static final Log log = LogFactory.getLog(AbstractQueryHandler.class);
 
+    /**
+     * The router to send responses to queries which finish later through, or <code>null</code> to send
+     * them back through the stream the query arrived on.
+     */
+    private volatile PacketRouter router;
+
+    /**
+     * Sets the router to send responses to queries which finish later through.  Responses are sent from
+     * whichever thread finished the query, so this should be a router which is safe to use from any
+     * thread, such as an {@link OutboundQueue}.
+     *
+     * @param router the router.
+     */
+    public void setRouter(PacketRouter router)
+    {
+        this.router = router;
+    }
+
     /**
      * Method called when a <tt>Packet</tt> is received or sent.</p>
      *
@@ -70,8 +95,8 @@ public abstract class AbstractQueryHandler implements PacketListener
             return;
         }
 
-        StreamDataFactory factory = event.getContext().getDataFactory();
-        InfoQuery responsePacket = (InfoQuery) factory.createPacketNode(requestPacket.getNSI());
+        final StreamDataFactory factory = event.getContext().getDataFactory();
+        final InfoQuery responsePacket = (InfoQuery) factory.createPacketNode(requestPacket.getNSI());
         Extension response = (Extension) request.copy();
 
         responsePacket.setTo(requestPacket.getFrom());
@@ -82,7 +107,37 @@ public abstract class AbstractQueryHandler implements PacketListener
         try
         {
             // Attempt to perform the query.
-            doQuery(request, response);
+            final QueryTask task = startQuery(request, response);
+            if (task != null)
+            {
+                // The query finishes later, so send the response then.
+                final PacketRouter responseRouter = (router == null) ? event.getContext().getRouter() : router;
+                task.whenDone(new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            task.check();
+                        }
+                        catch (PacketException e)
+                        {
+                            // The response is left alone, as a cancelled task may still be using it.
+                            InfoQuery errorPacket = (InfoQuery) factory.createPacketNode(responsePacket.getNSI());
+                            errorPacket.setTo(responsePacket.getTo());
+                            errorPacket.setFrom(responsePacket.getFrom());
+                            errorPacket.setID(responsePacket.getID());
+                            errorPacket.setError(e.getPacketError());
+                            errorPacket.setType(InfoQuery.ERROR);
+                            send(responseRouter, errorPacket);
+                            return;
+                        }
+                        responsePacket.setType(InfoQuery.RESULT);
+                        send(responseRouter, responsePacket);
+                    }
+                });
+                return;
+            }
 
             // The query succeeded, so we'll set type to RESULT.
             responsePacket.setType(InfoQuery.RESULT);
@@ -94,10 +149,20 @@ public abstract class AbstractQueryHandler implements PacketListener
             responsePacket.setType(InfoQuery.ERROR);
         }
 
-        // Attempt to send the response packet.
+        send(event.getContext().getRouter(), responsePacket);
+    }
+
+    /**
+     * Attempts to send a response packet.
+     *
+     * @param router the router to send it through.
+     * @param responsePacket the response packet.
+     */
+    private void send(PacketRouter router, InfoQuery responsePacket)
+    {
         try
         {
-            event.getContext().getRouter().send(responsePacket);
+            router.send(responsePacket);
         }
         catch (StreamException e)
         {
@@ -113,6 +178,22 @@ public abstract class AbstractQueryHandler implements PacketListener
      */
     protected abstract boolean supports(Extension request);
 
+    /**
+     * Starts the query, which may finish later.
+     * <p>
+     * This default implementation performs the query straight away.
+     *
+     * @param request  the request query.
+     * @param response the response query.
+     * @return a task which finishes the query, or <code>null</code> if the query has already finished.
+     * @throws PacketException if there is an application-level error.
+     */
+    protected QueryTask startQuery(Extension request, Extension response) throws PacketException
+    {
+        doQuery(request, response);
+        return null;
+    }
+
     /**
      * Performs the query.
      *
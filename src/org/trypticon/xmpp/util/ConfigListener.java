@@ -0,0 +1,32 @@
+/*
+ * Copyright 2004-2005 Trypticon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trypticon.xmpp.util;
+
+import org.jdom.Element;
+
+/**
+ * Listener told when a configuration file has changed.
+ */
+public interface ConfigListener
+{
+    /**
+     * Called when the configuration file has changed and been read again.
+     *
+     * @param config the root element of the new configuration.
+     */
+    void configChanged(Element config);
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2004-2005 Trypticon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trypticon.xmpp.util;
+
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jdom.Element;
+import org.jdom.input.SAXBuilder;
+
+/**
+ * Watches a configuration file, and tells a listener whenever it changes.
+ * <p>
+ * The file is checked periodically for a change in its modification time or length.  When it changes, it
+ * is read again, and if it is still well-formed the listener is given the new configuration.  A file
+ * which can't be read is logged and otherwise ignored until it changes again, so a half-saved edit never
+ * takes effect.
+ */
+public class ConfigWatcher
+{
+    /**
+     * Logger.
+     */
+    private static final Log log = LogFactory.getLog(ConfigWatcher.class);
+
+    /**
+     * The scheduler shared by all watchers.
+     */
+    private static final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(new WatcherThreadFactory());
+
+    /**
+     * The file being watched.
+     */
+    private File file;
+
+    /**
+     * The listener to tell about changes.
+     */
+    private ConfigListener listener;
+
+    /**
+     * The modification time of the file when last read.
+     */
+    private long lastModified;
+
+    /**
+     * The length of the file when last read.
+     */
+    private long length;
+
+    /**
+     * The periodic check, or <code>null</code> if not started.
+     */
+    private ScheduledFuture<?> check;
+
+    /**
+     * Constructs the watcher.  The file as it is now is taken to have been read already.
+     *
+     * @param file the file to watch.
+     * @param listener the listener to tell about changes.
+     */
+    public ConfigWatcher(File file, ConfigListener listener)
+    {
+        this.file = file;
+        this.listener = listener;
+        this.lastModified = file.lastModified();
+        this.length = file.length();
+    }
+
+    /**
+     * Starts watching the file.
+     *
+     * @param interval how often to check the file, in milliseconds.
+     * @throws IllegalArgumentException if <code>interval</code> is not positive.
+     */
+    public synchronized void start(long interval)
+    {
+        if (interval <= 0)
+        {
+            throw new IllegalArgumentException("Interval must be positive");
+        }
+
+        stop();
+        check = scheduler.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                check();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops watching the file.
+     */
+    public synchronized void stop()
+    {
+        if (check != null)
+        {
+            check.cancel(false);
+            check = null;
+        }
+    }
+
+    /**
+     * Checks whether the file has changed, and if so reads it and tells the listener.
+     */
+    private void check()
+    {
+        long newLastModified = file.lastModified();
+        long newLength = file.length();
+        if (newLastModified == lastModified && newLength == length)
+        {
+            return;
+        }
+        lastModified = newLastModified;
+        length = newLength;
+
+        Element config;
+        try
+        {
+            config = new SAXBuilder().build(file).getRootElement();
+        }
+        catch (Exception e)
+        {
+            log.error("Error reading changed configuration " + file + ", ignoring it", e);
+            return;
+        }
+
+        log.info("Configuration " + file + " changed, reconfiguring");
+        try
+        {
+            listener.configChanged(config);
+        }
+        catch (Throwable t)
+        {
+            log.error("Error applying changed configuration " + file, t);
+        }
+    }
+
+    /**
+     * Thread factory for the shared watcher thread.  The thread is a daemon, so that it never keeps the
+     * JVM alive on its own.
+     */
+    private static class WatcherThreadFactory implements ThreadFactory
+    {
+        /**
+         * Creates a new thread.
+         *
+         * @param runnable the runnable for the thread to run.
+         * @return the thread.
+         */
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "config-watcher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2004-2005 Trypticon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.trypticon.xmpp.util;
+
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jdom.Element;
+
+/**
+ * Creates and configures an object named in the configuration the first time it is needed, rather than
+ * when the configuration is read.
+ * <p>
+ * The time taken to create and configure the object is logged and kept, so that slow objects can be
+ * found.  If creating the object fails, the failure is logged once and the loader gives up, rather than
+ * trying again every time the object is asked for.
+ *
+ * @param <T> the type of object.
+ */
+public abstract class LazyLoader<T>
+{
+    /**
+     * Logger.
+     */
+    private static final Log log = LogFactory.getLog(LazyLoader.class);
+
+    /**
+     * The type of object.
+     */
+    private Class<T> type;
+
+    /**
+     * The name of the class to create.
+     */
+    private String className;
+
+    /**
+     * The configuration to give the object, which may be <code>null</code>.
+     */
+    private Element config;
+
+    /**
+     * The object, or <code>null</code> if it hasn't been created yet.
+     */
+    private volatile T instance;
+
+    /**
+     * Whether creating the object failed.
+     */
+    private volatile boolean failed;
+
+    /**
+     * The time taken to create and configure the object, in milliseconds, or <code>-1</code> if it hasn't
+     * been created yet.
+     */
+    private volatile long loadTime = -1;
+
+    /**
+     * Constructs the loader.
+     *
+     * @param type the type of object.
+     * @param className the name of the class to create.
+     * @param config the configuration to give the object, which may be <code>null</code>.
+     */
+    protected LazyLoader(Class<T> type, String className, Element config)
+    {
+        this.type = type;
+        this.className = className;
+        this.config = config;
+    }
+
+    /**
+     * Configures a newly created object.
+     *
+     * @param object the object.
+     * @param config the configuration to give the object, which may be <code>null</code>.
+     */
+    protected abstract void configure(T object, Element config);
+
+    /**
+     * Gets the name of the class to create.
+     *
+     * @return the class name.
+     */
+    public String getClassName()
+    {
+        return className;
+    }
+
+    /**
+     * Gets the object, creating and configuring it if this is the first time it has been asked for.
+     *
+     * @return the object, or <code>null</code> if it couldn't be created.
+     */
+    public T get()
+    {
+        T result = instance;
+        if (result == null && !failed)
+        {
+            synchronized (this)
+            {
+                result = instance;
+                if (result == null && !failed)
+                {
+                    result = load();
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates and configures the object.  Must be called while holding the loader's lock.
+     *
+     * @return the object, or <code>null</code> if it couldn't be created.
+     */
+    private T load()
+    {
+        long start = System.nanoTime();
+        try
+        {
+            T object = type.cast(Class.forName(className).newInstance());
+            configure(object, config);
+            loadTime = (System.nanoTime() - start) / 1000000;
+            instance = object;
+            log.info("Loaded " + className + " in " + loadTime + " ms");
+            return object;
+        }
+        catch (Throwable t)
+        {
+            failed = true;
+            log.error("Error loading class " + className, t);
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether the object has been created.
+     *
+     * @return <code>true</code> if the object has been created.
+     */
+    public boolean isLoaded()
+    {
+        return instance != null;
+    }
+
+    /**
+     * Gets the time taken to create and configure the object.
+     *
+     * @return the time in milliseconds, or <code>-1</code> if the object hasn't been created.
+     */
+    public long getLoadTime()
+    {
+        return loadTime;
+    }
+
+    /**
+     * Creates the objects of several loaders in turn on a background thread, so that they are ready
+     * before they are first needed.  The thread is a daemon, so that it never keeps the JVM alive on its
+     * own.
+     *
+     * @param threadName the name of the thread.
+     * @param loaders the loaders.
+     */
+    public static void warmUp(String threadName, final List<? extends LazyLoader<?>> loaders)
+    {
+        Thread thread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                for (LazyLoader<?> loader : loaders)
+                {
+                    loader.get();
+                }
+            }
+        }, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
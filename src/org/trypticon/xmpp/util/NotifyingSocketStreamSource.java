@@ -0,0 +1,388 @@
+/*
+ * Copyright 2004-2005 Trypticon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trypticon.xmpp.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.NoSuchAlgorithmException;
+
+import org.jabberstudio.jso.tls.StartTLSSocketStreamSource;
+
+/**
+ * A {@link StartTLSSocketStreamSource} which keeps track of how much data has arrived from the socket
+ * but not yet been consumed by the stream, so that a processing thread can wait for data instead of
+ * polling for it.
+ * <p>
+ * JSO reads the socket on a thread of its own and buffers the result.  This class wraps the socket's
+ * input so that it can count the bytes as they go into that buffer, and the bytes as they come back
+ * out via {@link #read(byte[], int, int)}.
+ */
+public class NotifyingSocketStreamSource extends StartTLSSocketStreamSource
+{
+    /**
+     * The number of bytes which have been read from the socket but not yet consumed by the stream.
+     */
+    private int pending;
+
+    /**
+     * Set when the socket input has reached end of stream or failed.
+     */
+    private boolean ended;
+
+    /**
+     * The time data last arrived from the socket, or the time the input was set if none has.
+     */
+    private volatile long lastArrivalTime;
+
+    /**
+     * Buffer collecting writes while corked, or <code>null</code> if not corked.
+     */
+    private ByteArrayOutputStream corkBuffer;
+
+    /**
+     * Callback to run when data arrives or the input ends.  May be <code>null</code>.
+     */
+    private volatile Runnable readableCallback;
+
+    /**
+     * Constructs the stream source.
+     *
+     * @param hostname the host to connect to.
+     * @param port the port to connect to.
+     * @throws IOException if an I/O error occurs opening the socket.
+     * @throws NoSuchAlgorithmException if TLS is not supported by the JRE.
+     */
+    public NotifyingSocketStreamSource(String hostname, int port) throws IOException, NoSuchAlgorithmException
+    {
+        super(hostname, port);
+    }
+
+    /**
+     * Constructs the stream source around a socket which is already connected.
+     *
+     * @param socket the connected socket.
+     * @throws NoSuchAlgorithmException if TLS is not supported by the JRE.
+     */
+    public NotifyingSocketStreamSource(Socket socket) throws NoSuchAlgorithmException
+    {
+        super(socket);
+    }
+
+    /**
+     * Sets a callback to run whenever data arrives or the input ends.  The callback is run on JSO's
+     * reader thread, so it should do no more than hand off the work to another thread.
+     *
+     * @param callback the callback, or <code>null</code> to remove it.
+     */
+    public void setReadableCallback(Runnable callback)
+    {
+        readableCallback = callback;
+    }
+
+    /**
+     * Overridden to wrap the input stream so that incoming data can be counted.  This is called once when
+     * the socket is connected, and again if TLS is negotiated, at which point any count from the previous
+     * input is discarded along with its buffer.
+     *
+     * @param input the input stream.
+     */
+    protected void setInput(InputStream input)
+    {
+        synchronized (this)
+        {
+            pending = 0;
+            ended = false;
+        }
+        lastArrivalTime = System.currentTimeMillis();
+
+        super.setInput(input == null ? null : new CountingInputStream(input));
+    }
+
+    /**
+     * Overridden to keep track of the data consumed by the stream.
+     *
+     * @param buffer the buffer to read into.
+     * @param offset the offset into the buffer.
+     * @param length the maximum number of bytes to read.
+     * @return the number of bytes read, or <code>-1</code> at the end of the stream.
+     * @throws IOException if an I/O error occurs.
+     */
+    public int read(byte[] buffer, int offset, int length) throws IOException
+    {
+        int count = super.read(buffer, offset, length);
+        if (count > 0)
+        {
+            consumed(count);
+        }
+        return count;
+    }
+
+    /**
+     * Overridden to hold back writes while corked.
+     *
+     * @param buffer the buffer to write from.
+     * @param offset the offset into the buffer.
+     * @param length the number of bytes to write.
+     * @return the number of bytes written.
+     * @throws IOException if an I/O error occurs.
+     */
+    public int write(byte[] buffer, int offset, int length) throws IOException
+    {
+        synchronized (this)
+        {
+            if (corkBuffer != null)
+            {
+                corkBuffer.write(buffer, offset, length);
+                return length;
+            }
+        }
+        return super.write(buffer, offset, length);
+    }
+
+    /**
+     * Starts holding back writes, so that several can be sent in a single write to the socket by
+     * {@link #uncork()}.  The caller must make sure nothing else writes in the meantime.
+     */
+    public synchronized void cork()
+    {
+        if (corkBuffer == null)
+        {
+            corkBuffer = new ByteArrayOutputStream();
+        }
+    }
+
+    /**
+     * Writes everything held back since {@link #cork()} in a single write, and stops holding back writes.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void uncork() throws IOException
+    {
+        byte[] data;
+        synchronized (this)
+        {
+            if (corkBuffer == null)
+            {
+                return;
+            }
+            data = corkBuffer.toByteArray();
+            corkBuffer = null;
+        }
+
+        if (data.length > 0)
+        {
+            super.write(data, 0, data.length);
+        }
+    }
+
+    /**
+     * Tests whether there is data which has arrived from the socket but which the stream has not yet consumed.
+     *
+     * @return <code>true</code> if there is pending data, <code>false</code> otherwise.
+     */
+    public synchronized boolean hasPendingData()
+    {
+        return pending > 0;
+    }
+
+    /**
+     * Tests whether the socket input has reached end of stream or failed.
+     *
+     * @return <code>true</code> if the input has ended, <code>false</code> otherwise.
+     */
+    public synchronized boolean isEnded()
+    {
+        return ended;
+    }
+
+    /**
+     * Gets the time data last arrived from the socket.
+     *
+     * @return the time, as returned by {@link System#currentTimeMillis()}.
+     */
+    public long getLastArrivalTime()
+    {
+        return lastArrivalTime;
+    }
+
+    /**
+     * Closes the socket straight away, without closing the stream first.  This is for connections which
+     * are believed dead, where an orderly close could block.  The input ends as a result, as if the server
+     * had closed the connection.
+     */
+    public void abort()
+    {
+        try
+        {
+            getSocket().close();
+        }
+        catch (IOException e)
+        {
+            // We're trying to get rid of it anyway.
+        }
+    }
+
+    /**
+     * Waits until there is pending data, or until the input has ended.
+     *
+     * @param timeout the maximum time to wait, in milliseconds.
+     * @return <code>true</code> if the stream should be processed, <code>false</code> if the wait timed out.
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    public synchronized boolean awaitReadable(long timeout) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (pending == 0 && !ended && remaining > 0)
+        {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return pending > 0 || ended;
+    }
+
+    /**
+     * Called when data has arrived from the socket.
+     *
+     * @param count the number of bytes which arrived.
+     */
+    protected void arrived(int count)
+    {
+        lastArrivalTime = System.currentTimeMillis();
+        synchronized (this)
+        {
+            pending += count;
+            notifyAll();
+        }
+
+        fireReadable();
+    }
+
+    /**
+     * Called when data has been consumed by the stream.
+     *
+     * @param count the number of bytes which were consumed.
+     */
+    protected synchronized void consumed(int count)
+    {
+        pending = Math.max(0, pending - count);
+    }
+
+    /**
+     * Called when the socket input reaches end of stream or fails.
+     */
+    protected void ended()
+    {
+        synchronized (this)
+        {
+            ended = true;
+            notifyAll();
+        }
+
+        fireReadable();
+    }
+
+    /**
+     * Runs the readable callback, if there is one.
+     */
+    private void fireReadable()
+    {
+        Runnable callback = readableCallback;
+        if (callback != null)
+        {
+            callback.run();
+        }
+    }
+
+    /**
+     * Input stream which reports data arriving from the socket back to the stream source.
+     */
+    private class CountingInputStream extends FilterInputStream
+    {
+        /**
+         * Constructs the input stream.
+         *
+         * @param input the input stream to wrap.
+         */
+        private CountingInputStream(InputStream input)
+        {
+            super(input);
+        }
+
+        /**
+         * Reads a single byte.
+         *
+         * @return the byte, or <code>-1</code> at the end of the stream.
+         * @throws IOException if an I/O error occurs.
+         */
+        public int read() throws IOException
+        {
+            int value = super.read();
+            if (value >= 0)
+            {
+                arrived(1);
+            }
+            else
+            {
+                ended();
+            }
+            return value;
+        }
+
+        /**
+         * Reads into a buffer, reporting the result to the stream source.
+         *
+         * @param buffer the buffer to read into.
+         * @param offset the offset into the buffer.
+         * @param length the maximum number of bytes to read.
+         * @return the number of bytes read, or <code>-1</code> at the end of the stream.
+         * @throws IOException if an I/O error occurs.
+         */
+        public int read(byte[] buffer, int offset, int length) throws IOException
+        {
+            int count;
+            try
+            {
+                count = super.read(buffer, offset, length);
+            }
+            catch (SocketTimeoutException e)
+            {
+                // JSO treats timeouts as "nothing read yet", so we do too.
+                throw e;
+            }
+            catch (IOException e)
+            {
+                ended();
+                throw e;
+            }
+
+            if (count > 0)
+            {
+                arrived(count);
+            }
+            else if (count < 0)
+            {
+                ended();
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,568 @@
+/*
+ * Copyright 2004-2005 Trypticon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trypticon.xmpp.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jabberstudio.jso.Packet;
+import org.jabberstudio.jso.PacketRouter;
+import org.jabberstudio.jso.Stream;
+import org.jabberstudio.jso.StreamContext;
+import org.jabberstudio.jso.StreamDataFactory;
+import org.jabberstudio.jso.StreamException;
+import org.jdom.Element;
+
+/**
+ * A bounded queue of packets waiting to be sent, drained by a writer on another thread.
+ * <p>
+ * Sending through the queue never blocks the caller on the socket.  The writer takes everything which
+ * has built up since it last ran and sends it as one batch, with the stream source corked so that the
+ * whole batch goes out in a single socket write.  Packets still pass through the stream as normal, so
+ * listeners see them being sent.
+ * <p>
+ * The queue outlives any one connection.  Packets queued while there is no connection are sent once the
+ * next connection is attached.
+ */
+public class OutboundQueue implements PacketRouter
+{
+    /**
+     * What to do with a packet when the queue is full.
+     */
+    public enum OverflowPolicy
+    {
+        /**
+         * Refuse the new packet.
+         */
+        REJECT,
+
+        /**
+         * Discard the oldest packet in the queue to make room for the new one.
+         */
+        DROP_OLDEST
+    }
+
+    /**
+     * The most packets to send in one batch, so that one busy queue doesn't hog a shared thread.
+     */
+    private static final int MAX_BATCH = 64;
+
+    /**
+     * Logger.
+     */
+    private static final Log log = LogFactory.getLog(OutboundQueue.class);
+
+    /**
+     * Writer threads shared by queues which aren't given an executor of their own.
+     */
+    private static final ExecutorService defaultExecutor = Executors.newCachedThreadPool(new WriterThreadFactory());
+
+    /**
+     * Runs the writer.
+     */
+    private Executor executor;
+
+    /**
+     * The most packets which may be waiting at once.
+     */
+    private int capacity = 1000;
+
+    /**
+     * What to do when the queue is full.
+     */
+    private OverflowPolicy overflowPolicy = OverflowPolicy.REJECT;
+
+    /**
+     * Packets waiting to be sent, oldest first.
+     */
+    private LinkedList<SendTask> pending = new LinkedList<SendTask>();
+
+    /**
+     * The stream to send on, which is kept after detaching so that packets can still be created.
+     */
+    private Stream stream;
+
+    /**
+     * The stream source for the stream.
+     */
+    private NotifyingSocketStreamSource streamSource;
+
+    /**
+     * Whether the stream is ready for sending.
+     */
+    private boolean attached;
+
+    /**
+     * The stream the current batch is being sent on.  Only used by the writer.
+     */
+    private Stream batchStream;
+
+    /**
+     * Set while the writer is queued or running.
+     */
+    private AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * The writer.
+     */
+    private Runnable writer = new Runnable()
+    {
+        public void run()
+        {
+            drain();
+        }
+    };
+
+    /**
+     * The largest number of packets which have been waiting at once.
+     */
+    private int maxDepth;
+
+    /**
+     * The number of packets in the most recent batch.
+     */
+    private int lastFlushSize;
+
+    /**
+     * The largest number of packets sent in one batch.
+     */
+    private int maxFlushSize;
+
+    /**
+     * The number of batches sent.
+     */
+    private long flushCount;
+
+    /**
+     * The number of packets sent.
+     */
+    private long sentCount;
+
+    /**
+     * The number of packets discarded or refused because the queue was full.
+     */
+    private long droppedCount;
+
+    /**
+     * Constructs a queue whose writer runs on a shared pool of threads.
+     */
+    public OutboundQueue()
+    {
+        this(null);
+    }
+
+    /**
+     * Constructs a queue.
+     *
+     * @param executor the executor to run the writer on, or <code>null</code> to use a shared pool of threads.
+     */
+    public OutboundQueue(Executor executor)
+    {
+        this.executor = (executor == null) ? defaultExecutor : executor;
+    }
+
+    /**
+     * Configures the queue.  Any value which is not present keeps its default.
+     *
+     * @param config the XML configuration element, which may be <code>null</code>.
+     * @throws IllegalArgumentException if a value is out of range.
+     */
+    public synchronized void configure(Element config)
+    {
+        if (config == null)
+        {
+            return;
+        }
+
+        String capacityString = config.getChildTextTrim("capacity");
+        if (capacityString != null)
+        {
+            capacity = Integer.parseInt(capacityString);
+        }
+
+        String overflowString = config.getChildTextTrim("overflow");
+        if (overflowString != null)
+        {
+            overflowPolicy = OverflowPolicy.valueOf(overflowString.toUpperCase());
+        }
+
+        if (capacity < 1)
+        {
+            throw new IllegalArgumentException("Outbound queue capacity must be at least one");
+        }
+    }
+
+    /**
+     * Attaches the queue to a stream which is ready for sending, and sends anything which is waiting.
+     *
+     * @param stream the stream.
+     * @param streamSource the stream source for the stream.
+     */
+    public void attach(Stream stream, NotifyingSocketStreamSource streamSource)
+    {
+        synchronized (this)
+        {
+            this.stream = stream;
+            this.streamSource = streamSource;
+            attached = true;
+        }
+        wakeUp();
+    }
+
+    /**
+     * Detaches the queue from its stream.  Packets queued from now on wait for the next stream.
+     */
+    public synchronized void detach()
+    {
+        attached = false;
+        streamSource = null;
+    }
+
+    /**
+     * Queues a packet to be sent.
+     *
+     * @param packet the packet.
+     * @return a future which completes when the packet has been sent, or fails if sending failed.  The
+     *         future is cancelled if the packet was refused or discarded because the queue was full.
+     */
+    public Future<Packet> enqueue(Packet packet)
+    {
+        SendTask task = new SendTask(packet);
+        SendTask dropped = null;
+
+        synchronized (this)
+        {
+            if (pending.size() >= capacity)
+            {
+                droppedCount++;
+                if (overflowPolicy == OverflowPolicy.REJECT)
+                {
+                    dropped = task;
+                }
+                else
+                {
+                    dropped = pending.removeFirst();
+                    pending.addLast(task);
+                }
+            }
+            else
+            {
+                pending.addLast(task);
+                maxDepth = Math.max(maxDepth, pending.size());
+            }
+        }
+
+        if (dropped != null)
+        {
+            log.warn("Outbound queue is full, discarding packet to " + dropped.packet.getTo());
+            dropped.cancel(false);
+        }
+        if (dropped != task)
+        {
+            wakeUp();
+        }
+        return task;
+    }
+
+    /**
+     * Gets the number of packets waiting to be sent.
+     *
+     * @return the number of packets.
+     */
+    public synchronized int getDepth()
+    {
+        return pending.size();
+    }
+
+    /**
+     * Gets the largest number of packets which have been waiting at once.
+     *
+     * @return the number of packets.
+     */
+    public synchronized int getMaxDepth()
+    {
+        return maxDepth;
+    }
+
+    /**
+     * Gets the number of packets sent in the most recent batch.
+     *
+     * @return the number of packets.
+     */
+    public synchronized int getLastFlushSize()
+    {
+        return lastFlushSize;
+    }
+
+    /**
+     * Gets the largest number of packets sent in one batch.
+     *
+     * @return the number of packets.
+     */
+    public synchronized int getMaxFlushSize()
+    {
+        return maxFlushSize;
+    }
+
+    /**
+     * Gets the number of batches sent.
+     *
+     * @return the number of batches.
+     */
+    public synchronized long getFlushCount()
+    {
+        return flushCount;
+    }
+
+    /**
+     * Gets the number of packets sent.
+     *
+     * @return the number of packets.
+     */
+    public synchronized long getSentCount()
+    {
+        return sentCount;
+    }
+
+    /**
+     * Gets the number of packets discarded or refused because the queue was full.
+     *
+     * @return the number of packets.
+     */
+    public synchronized long getDroppedCount()
+    {
+        return droppedCount;
+    }
+
+    /**
+     * Queues the writer, unless it is already queued or running.
+     */
+    private void wakeUp()
+    {
+        if (scheduled.compareAndSet(false, true))
+        {
+            executor.execute(writer);
+        }
+    }
+
+    /**
+     * Sends a batch of waiting packets.  Runs on the executor.
+     */
+    private void drain()
+    {
+        Stream target;
+        NotifyingSocketStreamSource source;
+        List<SendTask> batch;
+        synchronized (this)
+        {
+            // JSO quietly drops packets sent on a stream which isn't open, so leave them for the next one.
+            if (!attached || pending.isEmpty() || stream.getCurrentStatus() != Stream.OPENED)
+            {
+                scheduled.set(false);
+                return;
+            }
+
+            target = stream;
+            source = streamSource;
+            batch = new ArrayList<SendTask>(Math.min(pending.size(), MAX_BATCH));
+            while (!pending.isEmpty() && batch.size() < MAX_BATCH)
+            {
+                batch.add(pending.removeFirst());
+            }
+        }
+
+        try
+        {
+            // JSO writes each packet while holding the stream's lock, so holding it for the whole batch keeps
+            // anything else from being written into the middle of it.
+            synchronized (target)
+            {
+                batchStream = target;
+                source.cork();
+                try
+                {
+                    for (SendTask task : batch)
+                    {
+                        task.run();
+                    }
+                }
+                finally
+                {
+                    try
+                    {
+                        source.uncork();
+                    }
+                    catch (IOException e)
+                    {
+                        log.error("Failed to flush outbound packets", e);
+                    }
+                }
+            }
+
+            synchronized (this)
+            {
+                flushCount++;
+                sentCount += batch.size();
+                lastFlushSize = batch.size();
+                maxFlushSize = Math.max(maxFlushSize, batch.size());
+            }
+        }
+        finally
+        {
+            scheduled.set(false);
+
+            // Anything queued while we were running wouldn't have been able to queue us again.
+            boolean more;
+            synchronized (this)
+            {
+                more = attached && !pending.isEmpty();
+            }
+            if (more)
+            {
+                wakeUp();
+            }
+        }
+    }
+
+    public StreamDataFactory getDataFactory()
+    {
+        return getStream().getDataFactory();
+    }
+
+    public StreamContext getInboundContext()
+    {
+        return getStream().getInboundContext();
+    }
+
+    public StreamContext getOutboundContext()
+    {
+        return getStream().getOutboundContext();
+    }
+
+    public Stream.Status getCurrentStatus()
+    {
+        return getStream().getCurrentStatus();
+    }
+
+    public String getDefaultNamespace()
+    {
+        return getStream().getDefaultNamespace();
+    }
+
+    /**
+     * Queues a packet to be sent.  This never blocks, and failures are logged rather than thrown.
+     *
+     * @param packet the packet.
+     */
+    public void send(Packet packet)
+    {
+        enqueue(packet);
+    }
+
+    public void process() throws StreamException
+    {
+        getStream().process();
+    }
+
+    /**
+     * Gets the stream most recently attached.
+     *
+     * @return the stream.
+     * @throws IllegalStateException if the queue has never been attached.
+     */
+    private synchronized Stream getStream()
+    {
+        if (stream == null)
+        {
+            throw new IllegalStateException("Outbound queue has not been attached to a stream");
+        }
+        return stream;
+    }
+
+    /**
+     * A packet waiting to be sent, which doubles as the future for sending it.
+     */
+    private class SendTask extends FutureTask<Packet>
+    {
+        /**
+         * The packet.
+         */
+        private Packet packet;
+
+        /**
+         * Constructs the task.
+         *
+         * @param packet the packet.
+         */
+        private SendTask(final Packet packet)
+        {
+            super(new Callable<Packet>()
+            {
+                public Packet call() throws StreamException
+                {
+                    batchStream.send(packet);
+                    return packet;
+                }
+            });
+            this.packet = packet;
+        }
+
+        protected void setException(Throwable t)
+        {
+            log.error("Failed to send packet to " + packet.getTo(), t);
+            super.setException(t);
+        }
+    }
+
+    /**
+     * Thread factory for the shared writer threads.  The threads are daemons, so that they never keep the
+     * JVM alive on their own.
+     */
+    private static class WriterThreadFactory implements ThreadFactory
+    {
+        /**
+         * The number of the next thread to be created.
+         */
+        private AtomicInteger nextNumber = new AtomicInteger(1);
+
+        /**
+         * Creates a new thread.
+         *
+         * @param runnable the runnable for the thread to run.
+         * @return the thread.
+         */
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "outbound-writer-" + nextNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
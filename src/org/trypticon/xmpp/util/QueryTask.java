@@ -0,0 +1,132 @@
+/*
+ * Copyright 2004-2005 Trypticon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trypticon.xmpp.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jabberstudio.jso.PacketError;
+import org.jabberstudio.jso.util.PacketException;
+
+/**
+ * A query which finishes later, away from the thread processing the stream.  The response is sent once
+ * the task is done, whether it ran to the end, failed or was cancelled.  Cancelling the task is how a
+ * query is timed out.
+ */
+public class QueryTask extends FutureTask<Object>
+{
+    /**
+     * Logger.
+     */
+    private static final Log log = LogFactory.getLog(QueryTask.class);
+
+    /**
+     * Callbacks to run once the task is done, or <code>null</code> once they have been run.
+     */
+    private List<Runnable> callbacks = new ArrayList<Runnable>();
+
+    /**
+     * Constructs the task.
+     *
+     * @param callable the work which finishes the query.  It may throw a {@link PacketException} to
+     *        send back an error.
+     */
+    public QueryTask(Callable<?> callable)
+    {
+        super((Callable<Object>) callable);
+    }
+
+    /**
+     * Adds a callback to run once the task is done, on whichever thread finished it.  Callbacks run in
+     * the order they were added.  If the task is already done, the callback runs straight away.
+     *
+     * @param callback the callback.
+     */
+    public void whenDone(Runnable callback)
+    {
+        synchronized (this)
+        {
+            if (callbacks != null)
+            {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    /**
+     * Runs the callbacks.
+     */
+    protected void done()
+    {
+        List<Runnable> toRun;
+        synchronized (this)
+        {
+            toRun = callbacks;
+            callbacks = null;
+        }
+        for (Runnable callback : toRun)
+        {
+            try
+            {
+                callback.run();
+            }
+            catch (Throwable t)
+            {
+                log.error("Error in query callback", t);
+            }
+        }
+    }
+
+    /**
+     * Waits for the task to be done, and checks that it succeeded.
+     *
+     * @throws PacketException the error to send back if the task failed or was cancelled.
+     */
+    public void check() throws PacketException
+    {
+        try
+        {
+            get();
+        }
+        catch (CancellationException e)
+        {
+            throw new PacketException(PacketError.WAIT, PacketError.REMOTE_SERVER_TIMEOUT_CONDITION);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new PacketException(PacketError.WAIT, PacketError.INTERNAL_SERVER_ERROR_CONDITION);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof PacketException)
+            {
+                throw (PacketException) e.getCause();
+            }
+            log.error("Unexpected error performing query", e.getCause());
+            throw new PacketException(PacketError.CANCEL, PacketError.INTERNAL_SERVER_ERROR_CONDITION);
+        }
+    }
+}
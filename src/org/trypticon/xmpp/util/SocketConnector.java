@@ -0,0 +1,379 @@
+/*
+ * Copyright 2004-2005 Trypticon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trypticon.xmpp.util;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Opens a socket to the first of several targets which answers, in the style of "Happy Eyeballs"
+ * (RFC 8305).
+ * <p>
+ * Targets are tried in the order given, and each target's addresses are tried alternating between IPv6
+ * and IPv4.  Rather than waiting for each attempt to time out before starting the next, a new attempt
+ * is started every time the attempt delay passes without a connection, while the earlier attempts are
+ * left running.  The first socket to connect wins and the rest are closed.  A target which is down
+ * therefore costs the attempt delay, not the whole TCP timeout.
+ */
+public class SocketConnector
+{
+    /**
+     * Logger.
+     */
+    private static final Log log = LogFactory.getLog(SocketConnector.class);
+
+    /**
+     * The time to wait for an attempt before starting the next, in milliseconds.
+     */
+    private long attemptDelay = 250;
+
+    /**
+     * The time each attempt may take to connect, in milliseconds.
+     */
+    private int connectTimeout = 30000;
+
+    /**
+     * Sets the time to wait for an attempt before starting the next one in parallel.
+     *
+     * @param attemptDelay the delay, in milliseconds.
+     * @throws IllegalArgumentException if <code>attemptDelay</code> is negative.
+     */
+    public void setAttemptDelay(long attemptDelay)
+    {
+        if (attemptDelay < 0)
+        {
+            throw new IllegalArgumentException("Attempt delay cannot be negative");
+        }
+        this.attemptDelay = attemptDelay;
+    }
+
+    /**
+     * Sets the time each attempt may take to connect.
+     *
+     * @param connectTimeout the timeout, in milliseconds, or zero to wait for as long as the operating
+     *        system allows.
+     * @throws IllegalArgumentException if <code>connectTimeout</code> is negative.
+     */
+    public void setConnectTimeout(int connectTimeout)
+    {
+        if (connectTimeout < 0)
+        {
+            throw new IllegalArgumentException("Connect timeout cannot be negative");
+        }
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Connects to the first target which answers.
+     *
+     * @param targets the targets, in order of preference.  Host names which are not yet resolved are
+     *        resolved as they are reached.
+     * @return the connected socket.
+     * @throws IOException if no target could be connected to.
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    public Socket connect(List<InetSocketAddress> targets) throws IOException, InterruptedException
+    {
+        Race race = new Race();
+        Socket socket = null;
+        try
+        {
+            for (InetSocketAddress target : targets)
+            {
+                for (InetSocketAddress address : resolve(target))
+                {
+                    race.start(address);
+
+                    // Give this attempt a head start before trying the next address.
+                    socket = race.await(attemptDelay);
+                    if (socket != null)
+                    {
+                        return socket;
+                    }
+                }
+            }
+
+            // Everything has been started, so wait for whatever is still running.
+            socket = race.awaitAll();
+            if (socket != null)
+            {
+                return socket;
+            }
+
+            IOException failure = race.getLastFailure();
+            if (failure == null)
+            {
+                failure = new IOException("No addresses to connect to for targets " + targets);
+            }
+            throw failure;
+        }
+        finally
+        {
+            race.finish(socket);
+        }
+    }
+
+    /**
+     * Resolves a target to its addresses, alternating between IPv6 and IPv4.
+     *
+     * @param target the target.
+     * @return the addresses, which may be empty if the host name could not be resolved.
+     */
+    private List<InetSocketAddress> resolve(InetSocketAddress target)
+    {
+        List<InetSocketAddress> result = new ArrayList<InetSocketAddress>();
+
+        if (!target.isUnresolved())
+        {
+            result.add(target);
+            return result;
+        }
+
+        InetAddress[] addresses;
+        try
+        {
+            addresses = InetAddress.getAllByName(target.getHostName());
+        }
+        catch (UnknownHostException e)
+        {
+            log.warn("Could not resolve " + target.getHostName(), e);
+            return result;
+        }
+
+        LinkedList<InetAddress> ipv6 = new LinkedList<InetAddress>();
+        LinkedList<InetAddress> ipv4 = new LinkedList<InetAddress>();
+        for (InetAddress address : addresses)
+        {
+            if (address instanceof Inet6Address)
+            {
+                ipv6.add(address);
+            }
+            else
+            {
+                ipv4.add(address);
+            }
+        }
+
+        while (!ipv6.isEmpty() || !ipv4.isEmpty())
+        {
+            if (!ipv6.isEmpty())
+            {
+                result.add(new InetSocketAddress(ipv6.removeFirst(), target.getPort()));
+            }
+            if (!ipv4.isEmpty())
+            {
+                result.add(new InetSocketAddress(ipv4.removeFirst(), target.getPort()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A set of connection attempts running in parallel, of which the first to connect wins.
+     */
+    private class Race
+    {
+        /**
+         * Sockets which are still connecting.
+         */
+        private List<Socket> running = new ArrayList<Socket>();
+
+        /**
+         * The socket which connected first, or <code>null</code> if none has yet.
+         */
+        private Socket winner;
+
+        /**
+         * The most recent failure, or <code>null</code> if nothing has failed.
+         */
+        private IOException lastFailure;
+
+        /**
+         * Set once the race is over, after which any socket which connects is closed.
+         */
+        private boolean finished;
+
+        /**
+         * Starts an attempt to connect to an address.
+         *
+         * @param address the address.
+         */
+        public void start(final InetSocketAddress address)
+        {
+            final Socket socket = new Socket();
+            synchronized (this)
+            {
+                running.add(socket);
+            }
+
+            Thread thread = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    attempt(socket, address);
+                }
+            }, "connect-" + address);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Performs an attempt to connect.  Runs on a thread of its own.
+         *
+         * @param socket the socket to connect.
+         * @param address the address to connect to.
+         */
+        private void attempt(Socket socket, InetSocketAddress address)
+        {
+            IOException failure = null;
+            try
+            {
+                log.debug("Connecting to " + address);
+                socket.connect(address, connectTimeout);
+            }
+            catch (IOException e)
+            {
+                failure = e;
+            }
+
+            boolean won = false;
+            synchronized (this)
+            {
+                running.remove(socket);
+                if (failure != null)
+                {
+                    if (!finished)
+                    {
+                        log.debug("Failed to connect to " + address, failure);
+                        lastFailure = failure;
+                    }
+                }
+                else if (!finished && winner == null)
+                {
+                    log.debug("Connected to " + address);
+                    winner = socket;
+                    won = true;
+                }
+                notifyAll();
+            }
+
+            if (failure == null && !won)
+            {
+                closeQuietly(socket);
+            }
+        }
+
+        /**
+         * Waits for an attempt to connect.
+         *
+         * @param timeout the maximum time to wait, in milliseconds.
+         * @return the connected socket, or <code>null</code> if none has connected yet.
+         * @throws InterruptedException if the thread was interrupted while waiting.
+         */
+        public synchronized Socket await(long timeout) throws InterruptedException
+        {
+            long deadline = System.currentTimeMillis() + timeout;
+            long remaining = timeout;
+            while (winner == null && !running.isEmpty() && remaining > 0)
+            {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return winner;
+        }
+
+        /**
+         * Waits until an attempt connects or every attempt has failed.
+         *
+         * @return the connected socket, or <code>null</code> if every attempt failed.
+         * @throws InterruptedException if the thread was interrupted while waiting.
+         */
+        public synchronized Socket awaitAll() throws InterruptedException
+        {
+            while (winner == null && !running.isEmpty())
+            {
+                wait();
+            }
+            return winner;
+        }
+
+        /**
+         * Gets the most recent failure.
+         *
+         * @return the failure, or <code>null</code> if nothing has failed.
+         */
+        public synchronized IOException getLastFailure()
+        {
+            return lastFailure;
+        }
+
+        /**
+         * Ends the race, abandoning any attempts which are still running.
+         *
+         * @param result the socket being returned to the caller, or <code>null</code> if there is none.
+         */
+        public void finish(Socket result)
+        {
+            List<Socket> losers;
+            synchronized (this)
+            {
+                finished = true;
+                losers = new ArrayList<Socket>(running);
+                running.clear();
+
+                // A winner which arrived too late to be returned has to be closed too.
+                if (winner != null && winner != result)
+                {
+                    losers.add(winner);
+                }
+            }
+
+            // Closing a socket which is still connecting makes the attempt give up.
+            for (Socket socket : losers)
+            {
+                closeQuietly(socket);
+            }
+        }
+
+        /**
+         * Closes a socket, ignoring any error.
+         *
+         * @param socket the socket.
+         */
+        private void closeQuietly(Socket socket)
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e)
+            {
+                log.debug("Error closing abandoned socket", e);
+            }
+        }
+    }
+}
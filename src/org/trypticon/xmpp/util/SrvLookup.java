@@ -17,13 +17,14 @@
 package org.trypticon.xmpp.util;
 
 import java.net.InetSocketAddress;
-import java.util.Hashtable;
-
-import javax.naming.NamingException;
-import javax.naming.directory.Attribute;
-import javax.naming.directory.Attributes;
-import javax.naming.directory.DirContext;
-import javax.naming.directory.InitialDirContext;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -39,29 +40,25 @@ public class SrvLookup
     private static final String JABBER_SERVICE = "jabber";
     private static final String TCP_PROTOCOL = "tcp";
 
+    /**
+     * The longest time to wait for a lookup by default, in milliseconds.
+     */
+    public static final long DEFAULT_LOOKUP_TIMEOUT = 10000;
+
     /**
      * Logger.
      */
     private static final Log log = LogFactory.getLog(SrvLookup.class);
 
     /**
-     * The JNDI context.
+     * The resolver, which caches results.
      */
-    private static DirContext context;
+    private static SrvResolver resolver = new SrvResolver();
 
-    static
-            {
-                try
-                {
-                    Hashtable<String, String> options = new Hashtable<String, String>();
-                    options.put("java.naming.factory.initial", "com.sun.jndi.dns.DnsContextFactory");
-                    context = new InitialDirContext(options);
-                }
-                catch (NamingException e)
-                {
-                    log.warn("Problem getting JNDI context for DNS lookups.  SRV lookups will not work.", e);
-                }
-            }
+    /**
+     * Source of randomness for choosing between records of the same priority.
+     */
+    private static Random random = new Random();
 
     /**
      * Prevent instantiation.
@@ -70,94 +67,385 @@ public class SrvLookup
     {
     }
 
+    /**
+     * Gets the resolver used for lookups, for configuring how results are cached.
+     *
+     * @return the resolver.
+     */
+    public static SrvResolver getResolver()
+    {
+        return resolver;
+    }
+
     /**
      * Resolves an XMPP server for client-to-server communications.
      *
      * @param domain the server domain.
-     * @return the server's host and port for client-to-server communications.
+     * @return the server's host and port for client-to-server communications, or <code>null</code> if the
+     *         domain says the service is not available.
      */
     public static InetSocketAddress resolveXmppClient(String domain)
     {
-        InetSocketAddress result = resolveSRV(domain, XMPP_CLIENT_SERVICE, TCP_PROTOCOL);
+        List<InetSocketAddress> targets = resolveXmppClientTargets(domain);
+        return targets.isEmpty() ? null : resolve(targets.get(0));
+    }
+
+    /**
+     * Resolves an XMPP server for server-to-server communications.
+     *
+     * @param domain the server domain.
+     * @return the server's host and port for server-to-server communications, or <code>null</code> if the
+     *         domain says the service is not available.
+     */
+    public static InetSocketAddress resolveXmppServer(String domain)
+    {
+        List<InetSocketAddress> targets = resolveXmppServerTargets(domain);
+        return targets.isEmpty() ? null : resolve(targets.get(0));
+    }
+
+    /**
+     * Resolves all the hosts serving a domain for client-to-server communications, in the order they should
+     * be tried.  The host names in the returned addresses are not resolved.
+     *
+     * @param domain the server domain.
+     * @return the hosts and ports for client-to-server communications.  This list is empty if the domain says
+     *         the service is not available.
+     */
+    public static List<InetSocketAddress> resolveXmppClientTargets(String domain)
+    {
+        return resolveXmppClientTargets(domain, DEFAULT_LOOKUP_TIMEOUT);
+    }
+
+    /**
+     * Resolves all the hosts serving a domain for client-to-server communications, in the order they should
+     * be tried, waiting a limited time for DNS.  The host names in the returned addresses are not resolved.
+     *
+     * @param domain the server domain.
+     * @param timeout the longest time to wait for DNS, in milliseconds.  If it runs out, the result is the
+     *        same as if the domain had no SRV records.
+     * @return the hosts and ports for client-to-server communications.  This list is empty if the domain says
+     *         the service is not available.
+     */
+    public static List<InetSocketAddress> resolveXmppClientTargets(String domain, long timeout)
+    {
+        List<String> records = resolver.lookup(srvName(domain, XMPP_CLIENT_SERVICE, TCP_PROTOCOL), timeout);
+        return toClientTargets(domain, records);
+    }
+
+    /**
+     * Resolves all the hosts serving a domain for client-to-server communications without waiting.  The
+     * caller can decide how long to wait by using {@link Future#get(long, TimeUnit)}.
+     *
+     * @param domain the server domain.
+     * @return a future for the hosts and ports, as would be returned by {@link #resolveXmppClientTargets(String)}.
+     */
+    public static Future<List<InetSocketAddress>> resolveXmppClientTargetsAsync(String domain)
+    {
+        return new ClientTargetsFuture(domain,
+                                       resolver.lookup(srvName(domain, XMPP_CLIENT_SERVICE, TCP_PROTOCOL)));
+    }
+
+    /**
+     * Converts SRV records to the hosts serving a domain for client-to-server communications.
+     *
+     * @param domain the server domain.
+     * @param records the records, or <code>null</code> if there are none.
+     * @return the hosts and ports.
+     */
+    private static List<InetSocketAddress> toClientTargets(String domain, List<String> records)
+    {
+        List<InetSocketAddress> result = toTargets(domain, records);
 
         // Fallback
         if (result == null)
         {
-            result = new InetSocketAddress(domain, 5222);
+            result = Collections.singletonList(InetSocketAddress.createUnresolved(domain, 5222));
         }
 
         return result;
     }
 
     /**
-     * Resolves an XMPP server for server-to-server communications.
+     * Resolves all the hosts serving a domain for server-to-server communications, in the order they should
+     * be tried.  The host names in the returned addresses are not resolved.
      *
      * @param domain the server domain.
-     * @return the server's host and port for server-to-server communications.
+     * @return the hosts and ports for server-to-server communications.  This list is empty if the domain says
+     *         the service is not available.
      */
-    public static InetSocketAddress resolveXmppServer(String domain)
+    public static List<InetSocketAddress> resolveXmppServerTargets(String domain)
     {
-        InetSocketAddress result = resolveSRV(domain, XMPP_SERVER_SERVICE, TCP_PROTOCOL);
+        List<InetSocketAddress> result =
+                toTargets(domain, resolver.lookup(srvName(domain, XMPP_SERVER_SERVICE, TCP_PROTOCOL),
+                                                  DEFAULT_LOOKUP_TIMEOUT));
 
         // Backwards compatibility
         if (result == null)
         {
-            result = resolveSRV(domain, JABBER_SERVICE, TCP_PROTOCOL);
+            result = toTargets(domain, resolver.lookup(srvName(domain, JABBER_SERVICE, TCP_PROTOCOL),
+                                                       DEFAULT_LOOKUP_TIMEOUT));
         }
 
         // Fallback
         if (result == null)
         {
-            result = new InetSocketAddress(domain, 5269);
+            result = Collections.singletonList(InetSocketAddress.createUnresolved(domain, 5269));
         }
 
         return result;
     }
 
     /**
-     * Resolves a domain name to a host and port, by looking up the SRV record.
+     * Resolves the host name in an address.
+     *
+     * @param address the address.
+     * @return the resolved address.
+     */
+    private static InetSocketAddress resolve(InetSocketAddress address)
+    {
+        return new InetSocketAddress(address.getHostName(), address.getPort());
+    }
+
+    /**
+     * Gets the name to look up for the SRV records of a service.
      *
      * @param domain   the domain to look up.
      * @param service  the service to look up.
      * @param protocol the protocol to look up.
-     * @return the address, or <code>null</code> if it couldn't be resolved.
+     * @return the name.
      */
-    private static InetSocketAddress resolveSRV(String domain, String service, String protocol)
+    private static String srvName(String domain, String service, String protocol)
     {
-        if (context == null)
+        return "_" + service + "._" + protocol + "." + domain;
+    }
+
+    /**
+     * Converts SRV records to a list of hosts and ports.  The list is in the order described by RFC 2782:
+     * lowest priority first, and within the same priority, randomly ordered with the odds weighted by each
+     * record's weight.  As the order is random, it is worked out afresh every time.
+     *
+     * @param domain  the domain the records are for.
+     * @param srvRecords the records, or <code>null</code> if there are none.
+     * @return the addresses, or <code>null</code> if there are none.  If the domain explicitly says that the
+     *         service is not available, an empty list is returned.
+     */
+    private static List<InetSocketAddress> toTargets(String domain, List<String> srvRecords)
+    {
+        if (srvRecords == null)
+        {
+            return null;
+        }
+
+        List<SrvRecord> records = new ArrayList<SrvRecord>(srvRecords.size());
+        for (String srvRecord : srvRecords)
+        {
+            try
+            {
+                records.add(new SrvRecord(srvRecord));
+            }
+            catch (IllegalArgumentException e)
+            {
+                log.warn("Ignoring malformed SRV record '" + srvRecord + "' for domain " + domain, e);
+            }
+        }
+
+        if (records.isEmpty())
         {
             return null;
         }
 
-        try
+        // A single record with a target of "." means the service is decidedly not available.
+        if (records.size() == 1 && ".".equals(records.get(0).host))
         {
-            Attributes dnsLookup = context.getAttributes("_" + service + "._" + protocol + "." + domain);
-            Attribute srvAttribute = dnsLookup.get("SRV");
+            return Collections.emptyList();
+        }
 
-            // The attribute is null if there was no record in DNS.
-            if (srvAttribute == null)
+        List<InetSocketAddress> result = new ArrayList<InetSocketAddress>(records.size());
+        for (SrvRecord record : orderRecords(records))
+        {
+            if (!".".equals(record.host))
             {
-                return null;
+                result.add(InetSocketAddress.createUnresolved(record.host, record.port));
             }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Orders SRV records as described in RFC 2782.
+     *
+     * @param records the records, in any order.  This list is emptied in the process.
+     * @return the ordered records.
+     */
+    private static List<SrvRecord> orderRecords(List<SrvRecord> records)
+    {
+        Collections.sort(records);
 
-            String srvRecord = (String) srvAttribute.get();
+        List<SrvRecord> result = new ArrayList<SrvRecord>(records.size());
+        while (!records.isEmpty())
+        {
+            // Gather every record at the lowest remaining priority.
+            int priority = records.get(0).priority;
+            int end = 0;
+            int totalWeight = 0;
+            while (end < records.size() && records.get(end).priority == priority)
+            {
+                totalWeight += records.get(end).weight;
+                end++;
+            }
 
-            // The attribute value is null if there was somehow a record with a null value.
-            if (srvRecord == null)
+            // Pick from them at random, weighted, until none are left.
+            List<SrvRecord> samePriority = records.subList(0, end);
+            while (!samePriority.isEmpty())
             {
-                return null;
+                int index = 0;
+                if (totalWeight > 0)
+                {
+                    int chosen = random.nextInt(totalWeight + 1);
+                    int runningWeight = 0;
+                    for (index = 0; index < samePriority.size() - 1; index++)
+                    {
+                        runningWeight += samePriority.get(index).weight;
+                        if (runningWeight >= chosen)
+                        {
+                            break;
+                        }
+                    }
+                }
+
+                SrvRecord record = samePriority.remove(index);
+                totalWeight -= record.weight;
+                result.add(record);
             }
+        }
+        return result;
+    }
 
-            String[] srvRecordEntries = srvRecord.split(" ");
-            String host = srvRecordEntries[srvRecordEntries.length - 1];
-            int port = Integer.parseInt(srvRecordEntries[srvRecordEntries.length - 2]);
-            return new InetSocketAddress(host, port);
+    /**
+     * Future for the hosts serving a domain for client-to-server communications, converted from a future for
+     * its SRV records.
+     */
+    private static class ClientTargetsFuture implements Future<List<InetSocketAddress>>
+    {
+        /**
+         * The server domain.
+         */
+        private String domain;
+
+        /**
+         * The future for the SRV records.
+         */
+        private Future<List<String>> records;
+
+        /**
+         * Constructs the future.
+         *
+         * @param domain the server domain.
+         * @param records the future for the SRV records.
+         */
+        private ClientTargetsFuture(String domain, Future<List<String>> records)
+        {
+            this.domain = domain;
+            this.records = records;
         }
-        catch (NamingException e)
+
+        public boolean cancel(boolean mayInterruptIfRunning)
         {
-            log.warn("Problem looking up SRV record for domain " + domain + ", service " + service +
-                    ", protocol " + protocol, e);
-            return null;
+            // The lookup may be shared with other callers, so it is left to finish.
+            return false;
+        }
+
+        public boolean isCancelled()
+        {
+            return false;
+        }
+
+        public boolean isDone()
+        {
+            return records.isDone();
+        }
+
+        public List<InetSocketAddress> get() throws InterruptedException, ExecutionException
+        {
+            return toClientTargets(domain, records.get());
+        }
+
+        public List<InetSocketAddress> get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException
+        {
+            return toClientTargets(domain, records.get(timeout, unit));
+        }
+    }
+
+    /**
+     * A single SRV record.  Records sort by priority, and records with zero weight sort before the others
+     * at the same priority, so that they have a small chance of being picked first.
+     */
+    private static class SrvRecord implements Comparable<SrvRecord>
+    {
+        /**
+         * The priority of the record.  Lower values are tried first.
+         */
+        private int priority;
+
+        /**
+         * The relative weight of the record among those with the same priority.
+         */
+        private int weight;
+
+        /**
+         * The port of the target host.
+         */
+        private int port;
+
+        /**
+         * The target host, without any trailing dot.
+         */
+        private String host;
+
+        /**
+         * Parses a record from the form returned by JNDI, "priority weight port target".
+         *
+         * @param record the record.
+         * @throws IllegalArgumentException if the record is malformed.
+         */
+        private SrvRecord(String record)
+        {
+            String[] entries = record.trim().split("\\s+");
+            if (entries.length != 4)
+            {
+                throw new IllegalArgumentException("Expected 4 fields but got " + entries.length);
+            }
+
+            priority = Integer.parseInt(entries[0]);
+            weight = Integer.parseInt(entries[1]);
+            port = Integer.parseInt(entries[2]);
+
+            host = entries[3];
+            if (host.length() > 1 && host.endsWith("."))
+            {
+                host = host.substring(0, host.length() - 1);
+            }
+        }
+
+        /**
+         * Compares this record with another.
+         *
+         * @param other the other record.
+         * @return a negative number, zero or a positive number if this record sorts before, with or after
+         *         the other record.
+         */
+        public int compareTo(SrvRecord other)
+        {
+            if (priority != other.priority)
+            {
+                return (priority < other.priority) ? -1 : 1;
+            }
+            if ((weight == 0) != (other.weight == 0))
+            {
+                return (weight == 0) ? -1 : 1;
+            }
+            return 0;
         }
     }
 }
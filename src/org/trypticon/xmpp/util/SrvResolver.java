@@ -0,0 +1,428 @@
+/*
+ * Copyright 2004-2005 Trypticon
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.trypticon.xmpp.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Looks up SRV records in DNS, caching the results.
+ * <p>
+ * Lookups run in the background, and any number of requests for the same name while a lookup is running
+ * share that one lookup.  Results are cached for a while, including the absence of any records.  Once a
+ * cached result expires it is still served for a while longer as the next lookup runs, so that a slow or
+ * failing DNS server doesn't hold up reconnection to a server whose address hasn't changed.
+ * <p>
+ * JNDI does not tell us the TTL of the records it returns, so cache times are fixed rather than taken
+ * from the records themselves.  They can be adjusted with {@link #setCacheTimes(long, long, long)}.
+ */
+public class SrvResolver
+{
+    /**
+     * Logger.
+     */
+    private static final Log log = LogFactory.getLog(SrvResolver.class);
+
+    /**
+     * The JNDI environment for creating contexts.
+     */
+    private Hashtable<String, String> environment;
+
+    /**
+     * How long to cache records which were found, in milliseconds.
+     */
+    private volatile long positiveTime = 300000;
+
+    /**
+     * How long to cache the absence of records, or a failure to look them up, in milliseconds.
+     */
+    private volatile long negativeTime = 60000;
+
+    /**
+     * How long to keep serving records after they expire while a new lookup runs, in milliseconds.
+     */
+    private volatile long staleTime = 3600000;
+
+    /**
+     * Cached results, by name.
+     */
+    private ConcurrentMap<String, CacheEntry> cache = new ConcurrentHashMap<String, CacheEntry>();
+
+    /**
+     * Lookups which are currently running, by name.
+     */
+    private ConcurrentMap<String, Lookup> lookups = new ConcurrentHashMap<String, Lookup>();
+
+    /**
+     * Runs the lookups.
+     */
+    private ExecutorService executor;
+
+    /**
+     * Constructs the resolver.
+     */
+    public SrvResolver()
+    {
+        environment = new Hashtable<String, String>();
+        environment.put("java.naming.factory.initial", "com.sun.jndi.dns.DnsContextFactory");
+
+        // The defaults allow a single lookup to take over 15 seconds.
+        environment.put("com.sun.jndi.dns.timeout.initial", "1000");
+        environment.put("com.sun.jndi.dns.timeout.retries", "2");
+
+        executor = Executors.newFixedThreadPool(2, new LookupThreadFactory());
+    }
+
+    /**
+     * Sets how long results are cached.
+     *
+     * @param positiveTime how long to cache records which were found, in milliseconds.
+     * @param negativeTime how long to cache the absence of records, or a failure to look them up, in milliseconds.
+     * @param staleTime how long to keep serving records after they expire while a new lookup runs, in milliseconds.
+     * @throws IllegalArgumentException if any time is negative.
+     */
+    public void setCacheTimes(long positiveTime, long negativeTime, long staleTime)
+    {
+        if (positiveTime < 0 || negativeTime < 0 || staleTime < 0)
+        {
+            throw new IllegalArgumentException("Cache times cannot be negative");
+        }
+        this.positiveTime = positiveTime;
+        this.negativeTime = negativeTime;
+        this.staleTime = staleTime;
+    }
+
+    /**
+     * Looks up the SRV records for a name, without waiting.
+     *
+     * @param name the name, such as <code>_xmpp-client._tcp.example.com</code>.
+     * @return a future for the records, in the form "priority weight port target", which will be
+     *         <code>null</code> if there are none.  If there is a usable result in the cache, the future is
+     *         already done.
+     */
+    public Future<List<String>> lookup(String name)
+    {
+        long now = System.currentTimeMillis();
+        CacheEntry entry = cache.get(name);
+        if (entry != null && now < entry.expiry)
+        {
+            return completed(entry.records);
+        }
+
+        Future<List<String>> lookup = refresh(name);
+        if (entry != null && now < entry.staleExpiry)
+        {
+            return completed(entry.records);
+        }
+        return lookup;
+    }
+
+    /**
+     * Looks up the SRV records for a name, waiting for a limited time.
+     *
+     * @param name the name, such as <code>_xmpp-client._tcp.example.com</code>.
+     * @param timeout the longest time to wait, in milliseconds.
+     * @return the records, in the form "priority weight port target", or <code>null</code> if there are
+     *         none or they couldn't be looked up in time.
+     */
+    public List<String> lookup(String name, long timeout)
+    {
+        try
+        {
+            return lookup(name).get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            log.warn("Timed out looking up SRV records for " + name + ", continuing in the background");
+            return null;
+        }
+        catch (ExecutionException e)
+        {
+            log.warn("Problem looking up SRV records for " + name, e.getCause());
+            return null;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Discards all cached results.
+     */
+    public void clear()
+    {
+        cache.clear();
+    }
+
+    /**
+     * Starts a lookup for a name, unless one is already running.
+     *
+     * @param name the name.
+     * @return the running lookup.
+     */
+    private Future<List<String>> refresh(String name)
+    {
+        Lookup lookup = lookups.get(name);
+        if (lookup == null)
+        {
+            Lookup newLookup = new Lookup(name);
+            lookup = lookups.putIfAbsent(name, newLookup);
+            if (lookup == null)
+            {
+                lookup = newLookup;
+                try
+                {
+                    executor.execute(newLookup);
+                }
+                catch (RejectedExecutionException e)
+                {
+                    // Can't happen as we never shut down, but run it here rather than hang the caller.
+                    newLookup.run();
+                }
+            }
+        }
+        return lookup;
+    }
+
+    /**
+     * Queries DNS for a name and caches the result.  Runs on one of the lookup threads.
+     *
+     * @param name the name.
+     * @return the records, or <code>null</code> if there are none.
+     * @throws NamingException if the lookup failed and there were no previous results to fall back on.
+     */
+    private List<String> query(String name) throws NamingException
+    {
+        List<String> records;
+        try
+        {
+            records = queryDNS(name);
+        }
+        catch (NameNotFoundException e)
+        {
+            records = null;
+        }
+        catch (NamingException e)
+        {
+            // Keep using what we had, if anything, but don't hammer the DNS server in the meantime.
+            long now = System.currentTimeMillis();
+            CacheEntry previous = cache.get(name);
+            if (previous != null && previous.records != null)
+            {
+                log.warn("Problem looking up SRV records for " + name + ", using previous records", e);
+                cache.put(name, new CacheEntry(previous.records, now + negativeTime, now + negativeTime));
+                return previous.records;
+            }
+
+            cache.put(name, new CacheEntry(null, now + negativeTime, now + negativeTime));
+            throw e;
+        }
+
+        long now = System.currentTimeMillis();
+        if (records == null)
+        {
+            cache.put(name, new CacheEntry(null, now + negativeTime, now + negativeTime));
+        }
+        else
+        {
+            cache.put(name, new CacheEntry(records, now + positiveTime, now + positiveTime + staleTime));
+        }
+        return records;
+    }
+
+    /**
+     * Queries DNS for a name.
+     *
+     * @param name the name.
+     * @return the records, or <code>null</code> if there are none.
+     * @throws NamingException if the lookup failed.
+     */
+    private List<String> queryDNS(String name) throws NamingException
+    {
+        // Contexts aren't safe to share between threads, and creating one is cheap next to the lookup.
+        DirContext context = new InitialDirContext(environment);
+        try
+        {
+            Attributes dnsLookup = context.getAttributes(name, new String[] { "SRV" });
+            Attribute srvAttribute = dnsLookup.get("SRV");
+
+            // The attribute is null if there was no record in DNS.
+            if (srvAttribute == null)
+            {
+                return null;
+            }
+
+            List<String> records = new ArrayList<String>();
+            NamingEnumeration<?> values = srvAttribute.getAll();
+            while (values.hasMore())
+            {
+                // The value is null if there was somehow a record with a null value.
+                Object value = values.next();
+                if (value != null)
+                {
+                    records.add(value.toString());
+                }
+            }
+
+            return records.isEmpty() ? null : Collections.unmodifiableList(records);
+        }
+        finally
+        {
+            context.close();
+        }
+    }
+
+    /**
+     * Creates a future which is already done.
+     *
+     * @param records the result of the future.
+     * @return the future.
+     */
+    private static Future<List<String>> completed(final List<String> records)
+    {
+        FutureTask<List<String>> future = new FutureTask<List<String>>(new Callable<List<String>>()
+        {
+            public List<String> call()
+            {
+                return records;
+            }
+        });
+        future.run();
+        return future;
+    }
+
+    /**
+     * A cached result.
+     */
+    private static class CacheEntry
+    {
+        /**
+         * The records, or <code>null</code> if there are none.
+         */
+        private List<String> records;
+
+        /**
+         * The time at which the result should be looked up again.
+         */
+        private long expiry;
+
+        /**
+         * The time after which the result should no longer be used even while looking it up again.
+         */
+        private long staleExpiry;
+
+        /**
+         * Constructs the entry.
+         *
+         * @param records the records, or <code>null</code> if there are none.
+         * @param expiry the time at which the result should be looked up again.
+         * @param staleExpiry the time after which the result should no longer be used at all.
+         */
+        private CacheEntry(List<String> records, long expiry, long staleExpiry)
+        {
+            this.records = records;
+            this.expiry = expiry;
+            this.staleExpiry = staleExpiry;
+        }
+    }
+
+    /**
+     * A running lookup, which removes itself from the running lookups once done.
+     */
+    private class Lookup extends FutureTask<List<String>>
+    {
+        /**
+         * The name being looked up.
+         */
+        private String name;
+
+        /**
+         * Constructs the lookup.
+         *
+         * @param name the name to look up.
+         */
+        private Lookup(final String name)
+        {
+            super(new Callable<List<String>>()
+            {
+                public List<String> call() throws NamingException
+                {
+                    return query(name);
+                }
+            });
+            this.name = name;
+        }
+
+        protected void done()
+        {
+            lookups.remove(name, this);
+        }
+    }
+
+    /**
+     * Thread factory giving the lookup threads recognisable names.  The threads are daemons, so that a
+     * hung lookup never keeps the JVM alive.
+     */
+    private static class LookupThreadFactory implements ThreadFactory
+    {
+        /**
+         * The number of the next thread to be created.
+         */
+        private AtomicInteger nextNumber = new AtomicInteger(1);
+
+        /**
+         * Creates a new thread.
+         *
+         * @param runnable the runnable for the thread to run.
+         * @return the thread.
+         */
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "srv-lookup-" + nextNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}